@@ -36,11 +36,10 @@
 -keep class eu.faircode.netguard.ServiceSinkhole {
     void nativeExit(java.lang.String);
     void nativeError(int, java.lang.String);
-    void logPacket(eu.faircode.netguard.Packet);
-    void dnsResolved(eu.faircode.netguard.ResourceRecord);
-    boolean isDomainBlocked(java.lang.String);
+    void logPending();
+    void dnsResolved(eu.faircode.netguard.ResourceRecord[]);
     eu.faircode.netguard.Allowed isAddressAllowed(eu.faircode.netguard.Packet);
-    void accountUsage(eu.faircode.netguard.Usage);
+    void accountUsage(eu.faircode.netguard.Usage[]);
 }
 
 #Support library
@@ -357,7 +357,18 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                                     Toast.makeText(ActivitySettings.this, R.string.msg_downloaded, Toast.LENGTH_LONG).show();
                                 }
 
-                                ServiceSinkhole.reload("hosts file download", ActivitySettings.this, false);
+                                new AsyncTask<Object, Object, Object>() {
+                                    @Override
+                                    protected Object doInBackground(Object... objects) {
+                                        ServiceSinkhole.compileHosts(ActivitySettings.this);
+                                        return null;
+                                    }
+
+                                    @Override
+                                    protected void onPostExecute(Object result) {
+                                        ServiceSinkhole.reload("hosts file download", ActivitySettings.this, false);
+                                    }
+                                }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                             }
 
                             @Override
@@ -711,7 +722,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
             getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_watchdog, prefs.getString(name, "0")));
             ServiceSinkhole.reload("changed " + name, this, false);
 
-        } else if ("show_stats".equals(name))
+        } else if ("show_stats".equals(name) || "show_metrics".equals(name))
             ServiceSinkhole.reloadStats("changed " + name, this);
 
         else if ("stats_frequency".equals(name))
@@ -725,6 +736,16 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
 
         else if ("loglevel".equals(name))
             ServiceSinkhole.reload("changed " + name, this, false);
+
+        else if ("workers".equals(name)) {
+            String workers = Integer.toString(ServiceSinkhole.getWorkers(prefs));
+            if (!workers.equals(prefs.getString(name, "1"))) {
+                // Store the clamped value, which triggers the reload
+                prefs.edit().putString(name, workers).apply();
+                return;
+            }
+            ServiceSinkhole.reload("changed " + name, this, false);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.M)
@@ -933,6 +954,10 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                     }
                     Log.i(TAG, "Copied bytes=" + total);
 
+                    out.close();
+                    out = null;
+                    ServiceSinkhole.compileHosts(ActivitySettings.this);
+
                     return null;
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
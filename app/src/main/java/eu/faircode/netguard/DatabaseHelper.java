@@ -26,6 +26,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
@@ -37,8 +38,10 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
@@ -362,54 +365,60 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Log
 
-    public void insertLog(Packet packet, String dname, int connection, boolean interactive) {
+    public void insertLog(List<Packet> packets, List<String> dnames, int connection, boolean interactive) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
                 ContentValues cv = new ContentValues();
-                cv.put("time", packet.time);
-                cv.put("version", packet.version);
+                for (int i = 0; i < packets.size(); i++) {
+                    Packet packet = packets.get(i);
+                    String dname = dnames.get(i);
 
-                if (packet.protocol < 0)
-                    cv.putNull("protocol");
-                else
-                    cv.put("protocol", packet.protocol);
+                    cv.clear();
+                    cv.put("time", packet.time);
+                    cv.put("version", packet.version);
 
-                cv.put("flags", packet.flags);
+                    if (packet.protocol < 0)
+                        cv.putNull("protocol");
+                    else
+                        cv.put("protocol", packet.protocol);
 
-                cv.put("saddr", packet.saddr);
-                if (packet.sport < 0)
-                    cv.putNull("sport");
-                else
-                    cv.put("sport", packet.sport);
+                    cv.put("flags", packet.flags);
 
-                cv.put("daddr", packet.daddr);
-                if (packet.dport < 0)
-                    cv.putNull("dport");
-                else
-                    cv.put("dport", packet.dport);
+                    cv.put("saddr", packet.saddr);
+                    if (packet.sport < 0)
+                        cv.putNull("sport");
+                    else
+                        cv.put("sport", packet.sport);
 
-                if (dname == null)
-                    cv.putNull("dname");
-                else
-                    cv.put("dname", dname);
+                    cv.put("daddr", packet.daddr);
+                    if (packet.dport < 0)
+                        cv.putNull("dport");
+                    else
+                        cv.put("dport", packet.dport);
 
-                cv.put("data", packet.data);
+                    if (dname == null)
+                        cv.putNull("dname");
+                    else
+                        cv.put("dname", dname);
 
-                if (packet.uid < 0)
-                    cv.putNull("uid");
-                else
-                    cv.put("uid", packet.uid);
+                    cv.put("data", packet.data);
 
-                cv.put("allowed", packet.allowed ? 1 : 0);
+                    if (packet.uid < 0)
+                        cv.putNull("uid");
+                    else
+                        cv.put("uid", packet.uid);
+
+                    cv.put("allowed", packet.allowed ? 1 : 0);
 
-                cv.put("connection", connection);
-                cv.put("interactive", interactive ? 1 : 0);
+                    cv.put("connection", connection);
+                    cv.put("interactive", interactive ? 1 : 0);
 
-                if (db.insert("log", null, cv) == -1)
-                    Log.e(TAG, "Insert log failed");
+                    if (db.insert("log", null, cv) == -1)
+                        Log.e(TAG, "Insert log failed");
+                }
 
                 db.setTransactionSuccessful();
             } finally {
@@ -561,44 +570,37 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return (rows == 0);
     }
 
-    public void updateUsage(Usage usage, String dname) {
+    public void updateUsage(List<Usage> usages, List<String> dnames) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
                 // There is a segmented index on uid, version, protocol, daddr and dport
-                String selection = "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?";
-                String[] selectionArgs = new String[]{
-                        Integer.toString(usage.Uid),
-                        Integer.toString(usage.Version),
-                        Integer.toString(usage.Protocol),
-                        dname == null ? usage.DAddr : dname,
-                        Integer.toString(usage.DPort)
-                };
-
-                Cursor cursor = db.query("access", new String[]{"sent", "received", "connections"}, selection, selectionArgs, null, null, null);
-                long sent = 0;
-                long received = 0;
-                int connections = 0;
-                int colSent = cursor.getColumnIndex("sent");
-                int colReceived = cursor.getColumnIndex("received");
-                int colConnections = cursor.getColumnIndex("connections");
-                if (cursor.moveToNext()) {
-                    sent = cursor.isNull(colSent) ? 0 : cursor.getLong(colSent);
-                    received = cursor.isNull(colReceived) ? 0 : cursor.getLong(colReceived);
-                    connections = cursor.isNull(colConnections) ? 0 : cursor.getInt(colConnections);
+                SQLiteStatement stmt = db.compileStatement("UPDATE access" +
+                        " SET sent = IFNULL(sent, 0) + ?" +
+                        ", received = IFNULL(received, 0) + ?" +
+                        ", connections = IFNULL(connections, 0) + ?" +
+                        " WHERE uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?");
+                for (int i = 0; i < usages.size(); i++) {
+                    Usage usage = usages.get(i);
+                    String dname = dnames.get(i);
+
+                    stmt.clearBindings();
+                    stmt.bindLong(1, usage.Sent);
+                    stmt.bindLong(2, usage.Received);
+                    stmt.bindLong(3, usage.Connections);
+                    stmt.bindLong(4, usage.Uid);
+                    stmt.bindLong(5, usage.Version);
+                    stmt.bindLong(6, usage.Protocol);
+                    stmt.bindString(7, dname == null ? usage.DAddr : dname);
+                    stmt.bindLong(8, usage.DPort);
+
+                    int rows = stmt.executeUpdateDelete();
+                    if (rows != 1)
+                        Log.e(TAG, "Update usage failed rows=" + rows);
                 }
-                cursor.close();
-
-                ContentValues cv = new ContentValues();
-                cv.put("sent", sent + usage.Sent);
-                cv.put("received", received + usage.Received);
-                cv.put("connections", connections + 1);
-
-                int rows = db.update("access", cv, selection, selectionArgs);
-                if (rows != 1)
-                    Log.e(TAG, "Update usage failed rows=" + rows);
+                stmt.close();
 
                 db.setTransactionSuccessful();
             } finally {
@@ -779,38 +781,45 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // DNS
 
-    public boolean insertDns(ResourceRecord rr) {
+    public Set<String> insertDns(ResourceRecord[] rrs) {
+        Set<String> qnames = new HashSet<>();
+
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                int ttl = rr.TTL;
-
                 int min = Integer.parseInt(prefs.getString("ttl", "259200"));
-                if (ttl < min)
-                    ttl = min;
 
                 ContentValues cv = new ContentValues();
-                cv.put("time", rr.Time);
-                cv.put("ttl", ttl * 1000L);
+                for (ResourceRecord rr : rrs) {
+                    int ttl = rr.TTL;
+                    if (ttl < min)
+                        ttl = min;
 
-                int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
-                        new String[]{rr.QName, rr.AName, rr.Resource});
+                    cv.clear();
+                    cv.put("time", rr.Time);
+                    cv.put("ttl", ttl * 1000L);
 
-                if (rows == 0) {
-                    cv.put("qname", rr.QName);
-                    cv.put("aname", rr.AName);
-                    cv.put("resource", rr.Resource);
+                    int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
+                            new String[]{rr.QName, rr.AName, rr.Resource});
 
-                    if (db.insert("dns", null, cv) == -1)
-                        Log.e(TAG, "Insert dns failed");
-                } else if (rows != 1)
-                    Log.e(TAG, "Update dns failed rows=" + rows);
+                    if (rows == 0) {
+                        cv.put("qname", rr.QName);
+                        cv.put("aname", rr.AName);
+                        cv.put("resource", rr.Resource);
+
+                        if (db.insert("dns", null, cv) == -1)
+                            Log.e(TAG, "Insert dns failed");
+
+                        qnames.add(rr.QName);
+                    } else if (rows != 1)
+                        Log.e(TAG, "Update dns failed rows=" + rows);
+                }
 
                 db.setTransactionSuccessful();
 
-                return (rows == 0);
+                return qnames;
             } finally {
                 db.endTransaction();
             }
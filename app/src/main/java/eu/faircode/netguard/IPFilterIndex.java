@@ -0,0 +1,314 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+// IP filters by version, protocol, port and uid, using open addressing throughout
+// Each key refers to a table of addresses with the block bit and expiry time packed into a long
+// Tables can be shared by copies and are copied themselves before being modified
+public class IPFilterIndex {
+    public static final int ADDED = 0;
+    public static final int REPLACED = 1;
+    public static final int UPDATED = 2;
+
+    private long[] keys = new long[16]; // zero when empty
+    private Table[] tables = new Table[16];
+    private int count = 0;
+
+    public static long key(int version, int protocol, int dport, int uid) {
+        // Only TCP (6) and UDP (17) have port numbers
+        if (protocol != 6 && protocol != 17)
+            dport = 0;
+        return ((long) version << 56) | ((long) (protocol & 0xFF) << 48) |
+                ((long) (dport & 0xFFFF) << 32) | (uid & 0xFFFFFFFFL);
+    }
+
+    public static boolean isBlocked(long value) {
+        return ((value & 1) != 0);
+    }
+
+    public static long getExpires(long value) {
+        return (value >>> 1);
+    }
+
+    public static boolean isExpired(long value, long now) {
+        return (now > getExpires(value));
+    }
+
+    public IPFilterIndex copy() {
+        IPFilterIndex index = new IPFilterIndex();
+        index.keys = keys.clone();
+        index.tables = tables.clone();
+        index.count = count;
+        for (Table table : tables)
+            if (table != null)
+                table.shared = true;
+        return index;
+    }
+
+    public void clear() {
+        keys = new long[16];
+        tables = new Table[16];
+        count = 0;
+    }
+
+    // Number of addresses, including expired addresses which were not purged yet
+    public int size() {
+        int size = 0;
+        for (Table table : tables)
+            if (table != null)
+                size += table.used;
+        return size;
+    }
+
+    public long get(long key, int addr) {
+        Table table = tables[find(key)];
+        return (table == null ? 0 : table.get(addr, 0, 0));
+    }
+
+    public long get(long key, long hi, long lo) {
+        Table table = tables[find(key)];
+        return (table == null ? 0 : table.get(0, hi, lo));
+    }
+
+    public int put(long key, InetAddress address, boolean block, long expires) {
+        int i = find(key);
+        Table table = tables[i];
+        if (table == null) {
+            if ((count + 1) * 4 > keys.length * 3) {
+                grow();
+                i = find(key);
+            }
+            table = new Table((int) (key >>> 56));
+            keys[i] = key;
+            tables[i] = table;
+            count++;
+        } else if (table.shared) {
+            table = table.copy();
+            tables[i] = table;
+        }
+
+        byte[] b = address.getAddress();
+        if (address instanceof Inet4Address)
+            return table.put(getInt(b, 0), 0, 0, block, expires);
+        else
+            return table.put(0, getLong(b, 0), getLong(b, 8), block, expires);
+    }
+
+    // Layout should match parse_rules in rules.c
+    public void write(ByteBuffer buffer) {
+        for (int i = 0; i < keys.length; i++)
+            if (tables[i] != null)
+                tables[i].write(keys[i], buffer);
+    }
+
+    // Current state of a single address, layout should match read_ip_rule in rules.c
+    public void write(long key, InetAddress address, ByteBuffer buffer) {
+        Table table = tables[find(key)];
+        byte[] b = address.getAddress();
+        if (address instanceof Inet4Address)
+            table.write(key, table.find(getInt(b, 0), 0, 0), buffer);
+        else
+            table.write(key, table.find(0, getLong(b, 0), getLong(b, 8)), buffer);
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = (int) mix(key) & mask;
+        while (keys[i] != 0 && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Table[] oldTables = tables;
+        keys = new long[oldKeys.length * 2];
+        tables = new Table[oldTables.length * 2];
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != 0) {
+                int j = find(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                tables[j] = oldTables[i];
+            }
+    }
+
+    private static long mix(long h) {
+        // MurmurHash3 finalizer
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) |
+                ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    static long getLong(byte[] b, int off) {
+        return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void putBytes(ByteBuffer buffer, long bits, int length) {
+        for (int i = length - 1; i >= 0; i--)
+            buffer.put((byte) (i < 8 ? bits >>> (i * 8) : 0));
+    }
+
+    private static class Table {
+        final int version;
+        boolean shared = false;
+        int used = 0;
+        int[] v4; // network order
+        long[] v6; // upper and lower half for each slot
+        long[] value; // expires << 1 | block, zero when empty
+
+        Table(int version) {
+            this(version, 8);
+        }
+
+        Table(int version, int capacity) {
+            this.version = version;
+            if (version == 4)
+                v4 = new int[capacity];
+            else
+                v6 = new long[capacity * 2];
+            value = new long[capacity];
+        }
+
+        Table copy() {
+            Table table = new Table(version, 0);
+            table.used = used;
+            table.v4 = (v4 == null ? null : v4.clone());
+            table.v6 = (v6 == null ? null : v6.clone());
+            table.value = value.clone();
+            return table;
+        }
+
+        long get(int addr, long hi, long lo) {
+            return value[find(addr, hi, lo)];
+        }
+
+        int put(int addr, long hi, long lo, boolean block, long expires) {
+            int i = find(addr, hi, lo);
+            long current = value[i];
+            if (current == 0 || !isBlocked(current)) {
+                if (current == 0) {
+                    if ((used + 1) * 4 > value.length * 3) {
+                        rehash();
+                        i = find(addr, hi, lo);
+                    }
+                    if (version == 4)
+                        v4[i] = addr;
+                    else {
+                        v6[i * 2] = hi;
+                        v6[i * 2 + 1] = lo;
+                    }
+                    used++;
+                }
+                value[i] = (expires << 1) | (block ? 1 : 0);
+                return (current == 0 ? ADDED : REPLACED);
+            } else {
+                // Blocked addresses stay blocked
+                value[i] = (Math.max(getExpires(current), expires) << 1) | 1;
+                return UPDATED;
+            }
+        }
+
+        void write(long key, ByteBuffer buffer) {
+            for (int i = 0; i < value.length; i++)
+                if (value[i] != 0)
+                    write(key, i, buffer);
+        }
+
+        void write(long key, int i, ByteBuffer buffer) {
+            buffer.putInt((int) (key >>> 56)); // version
+            buffer.putInt((int) (key >>> 48) & 0xFF); // protocol
+            buffer.putInt((int) (key >>> 32) & 0xFFFF); // dport
+            buffer.putInt((int) key); // uid
+            // Addresses are in network order
+            if (version == 4) {
+                putBytes(buffer, v4[i], 4);
+                putBytes(buffer, 0, 12);
+            } else {
+                putBytes(buffer, v6[i * 2], 8);
+                putBytes(buffer, v6[i * 2 + 1], 8);
+            }
+            buffer.putInt(isBlocked(value[i]) ? 1 : 0);
+            buffer.putLong(getExpires(value[i]));
+        }
+
+        private int find(int addr, long hi, long lo) {
+            int mask = value.length - 1;
+            int i = (int) mix(version == 4 ? addr : hi ^ Long.rotateLeft(lo, 32)) & mask;
+            if (version == 4)
+                while (value[i] != 0 && v4[i] != addr)
+                    i = (i + 1) & mask;
+            else
+                while (value[i] != 0 && (v6[i * 2] != hi || v6[i * 2 + 1] != lo))
+                    i = (i + 1) & mask;
+            return i;
+        }
+
+        private void rehash() {
+            // Expired addresses are dropped
+            long now = System.currentTimeMillis();
+            int live = 0;
+            for (long v : value)
+                if (v != 0 && !isExpired(v, now))
+                    live++;
+
+            int capacity = value.length;
+            while ((live + 1) * 2 > capacity)
+                capacity *= 2;
+
+            int[] oldV4 = v4;
+            long[] oldV6 = v6;
+            long[] oldValue = value;
+            if (version == 4)
+                v4 = new int[capacity];
+            else
+                v6 = new long[capacity * 2];
+            value = new long[capacity];
+            used = 0;
+
+            for (int i = 0; i < oldValue.length; i++)
+                if (oldValue[i] != 0 && !isExpired(oldValue[i], now)) {
+                    int addr = (version == 4 ? oldV4[i] : 0);
+                    long hi = (version == 4 ? 0 : oldV6[i * 2]);
+                    long lo = (version == 4 ? 0 : oldV6[i * 2 + 1]);
+                    int j = find(addr, hi, lo);
+                    if (version == 4)
+                        v4[j] = addr;
+                    else {
+                        v6[j * 2] = hi;
+                        v6[j * 2 + 1] = lo;
+                    }
+                    value[j] = oldValue[i];
+                    used++;
+                }
+        }
+    }
+}
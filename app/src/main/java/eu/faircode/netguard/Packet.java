@@ -19,6 +19,12 @@ package eu.faircode.netguard;
     Copyright 2015-2018 by Marcel Bokhorst (M66B)
 */
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
 public class Packet {
     public long time;
     public int version;
@@ -31,12 +37,125 @@ public class Packet {
     public String data;
     public int uid;
     public boolean allowed;
+    public long expires; // of the deciding IP filter, read by native code
+
+    // Layout of the flow descriptor, should match netguard.h
+    private static final int OFF_TIME = 0;
+    private static final int OFF_VERSION = 8;
+    private static final int OFF_PROTOCOL = 12;
+    private static final int OFF_SPORT = 16;
+    private static final int OFF_DPORT = 20;
+    private static final int OFF_UID = 24;
+    private static final int OFF_ALLOWED = 28;
+    private static final int OFF_FLAGS = 32;
+    private static final int OFF_SADDR = 40;
+    private static final int OFF_DADDR = 56;
+    private static final int OFF_SOURCE = 72;
+    private static final int OFF_DEST = 120;
+    private static final int OFF_DATA = 168;
+    public static final int SIZE = OFF_DATA + 296;
+
+    private ByteBuffer descriptor = null;
 
     public Packet() {
     }
 
+    // Called from native code
+    private Packet(ByteBuffer descriptor) {
+        this.descriptor = descriptor.order(ByteOrder.nativeOrder());
+    }
+
+    // Refresh a reused packet from the descriptor written by native code
+    public void load() {
+        if (descriptor == null)
+            return;
+
+        load(descriptor, 0);
+        expires = 0;
+
+        // Created on demand
+        flags = null;
+        saddr = null;
+        daddr = null;
+        data = null;
+    }
+
+    // Get a standalone copy, which can be kept
+    public Packet detach() {
+        if (descriptor == null)
+            return this;
+
+        Packet packet = new Packet();
+        packet.time = time;
+        packet.version = version;
+        packet.protocol = protocol;
+        packet.flags = (flags == null ? getString(descriptor, OFF_FLAGS, OFF_SADDR) : flags);
+        packet.saddr = (saddr == null ? getString(descriptor, OFF_SOURCE, OFF_DEST) : saddr);
+        packet.sport = sport;
+        packet.daddr = (daddr == null ? getString(descriptor, OFF_DEST, OFF_DATA) : daddr);
+        packet.dport = dport;
+        packet.data = (data == null ? getString(descriptor, OFF_DATA, SIZE) : data);
+        packet.uid = uid;
+        packet.allowed = allowed;
+        return packet;
+    }
+
+    // Read a descriptor from a buffer filled by native code
+    public static Packet read(ByteBuffer buffer, int offset) {
+        Packet packet = new Packet();
+        packet.load(buffer, offset);
+        packet.flags = getString(buffer, offset + OFF_FLAGS, offset + OFF_SADDR);
+        packet.saddr = getString(buffer, offset + OFF_SOURCE, offset + OFF_DEST);
+        packet.daddr = getString(buffer, offset + OFF_DEST, offset + OFF_DATA);
+        packet.data = getString(buffer, offset + OFF_DATA, offset + SIZE);
+        return packet;
+    }
+
+    private void load(ByteBuffer buffer, int offset) {
+        time = buffer.getLong(offset + OFF_TIME);
+        version = buffer.getInt(offset + OFF_VERSION);
+        protocol = buffer.getInt(offset + OFF_PROTOCOL);
+        sport = buffer.getInt(offset + OFF_SPORT);
+        dport = buffer.getInt(offset + OFF_DPORT);
+        uid = buffer.getInt(offset + OFF_UID);
+        allowed = (buffer.getInt(offset + OFF_ALLOWED) != 0);
+    }
+
+    // Destination address bits in network order, see IPFilterIndex
+    public int getDestination4() throws UnknownHostException {
+        if (descriptor == null)
+            return IPFilterIndex.getInt(InetAddress.getByName(daddr).getAddress(), 0);
+
+        int addr = 0;
+        for (int i = 0; i < 4; i++)
+            addr = (addr << 8) | (descriptor.get(OFF_DADDR + i) & 0xFF);
+        return addr;
+    }
+
+    public long getDestination6(int offset) throws UnknownHostException {
+        if (descriptor == null)
+            return IPFilterIndex.getLong(InetAddress.getByName(daddr).getAddress(), offset);
+
+        long addr = 0;
+        for (int i = 0; i < 8; i++)
+            addr = (addr << 8) | (descriptor.get(OFF_DADDR + offset + i) & 0xFF);
+        return addr;
+    }
+
+    private static String getString(ByteBuffer buffer, int from, int to) {
+        int len = 0;
+        while (from + len < to && buffer.get(from + len) != 0)
+            len++;
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++)
+            bytes[i] = buffer.get(from + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     @Override
     public String toString() {
-        return "uid=" + uid + " v" + version + " p" + protocol + " " + daddr + "/" + dport;
+        return "uid=" + uid + " v" + version + " p" + protocol + " " +
+                (daddr == null && descriptor != null ? getString(descriptor, OFF_DEST, OFF_DATA) : daddr) +
+                "/" + dport;
     }
 }
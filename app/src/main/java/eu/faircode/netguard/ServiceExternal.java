@@ -97,6 +97,8 @@ public class ServiceExternal extends IntentService {
                         hosts.delete();
                     tmp.renameTo(hosts);
 
+                    ServiceSinkhole.compileHosts(this);
+
                     String last = SimpleDateFormat.getDateTimeInstance().format(new Date().getTime());
                     prefs.edit().putString("hosts_last_download", last).apply();
 
@@ -70,6 +70,7 @@ import android.text.TextUtils;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 import android.util.Log;
+import android.util.Pair;
 import android.util.TypedValue;
 import android.widget.RemoteViews;
 
@@ -79,6 +80,7 @@ import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -93,9 +95,15 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -106,6 +114,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -136,20 +145,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private int last_blocked = -1;
     private int last_hosts = -1;
 
-    private long jni_context = 0;
+    private volatile long jni_context = 0;
     private Thread tunnelThread = null;
     private ServiceSinkhole.Builder last_builder = null;
     private ParcelFileDescriptor vpn = null;
     private boolean temporarilyStopped = false;
 
-    private long last_hosts_modified = 0;
-    private Map<String, Boolean> mapHostsBlocked = new HashMap<>();
+    private int hosts_count = 0;
     private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
     private Map<Integer, Integer> mapUidKnown = new HashMap<>();
-    private final Map<IPKey, Map<InetAddress, IPRule>> mapUidIPFilters = new HashMap<>();
+    private final IPFilterIndex indexUidIPFilters = new IPFilterIndex();
     private Map<Integer, Forward> mapForward = new HashMap<>();
     private Map<Integer, Boolean> mapNotify = new HashMap<>();
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private volatile FilterSnapshot snapshot = new FilterSnapshot();
 
     private volatile Looper commandLooper;
     private volatile Looper logLooper;
@@ -182,6 +191,25 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private static final int MSG_STATS_UPDATE = 3;
     private static final int MSG_PACKET = 4;
     private static final int MSG_USAGE = 5;
+    private static final int MSG_LOG = 6;
+
+    private static final int LOG_INTERVAL = 500; // milliseconds
+
+    private static final int NATIVE_RADDR_LEN = 47; // INET6_ADDRSTRLEN + 1
+    private static final int NATIVE_IP_FILTER_LEN = 5 * 4 + 16 + 8; // RULES_IP_LEN
+    public static final int MAX_WORKERS = 8; // WORKER_MAX
+    private static final int HOSTS_MAGIC = 0x4E474842;
+    private static final int HOSTS_VERSION = 1;
+    private static final Object hostsLock = new Object();
+
+    // Same order as the METRIC_ constants in netguard.h
+    private static final String[] METRIC_NAMES = new String[]{
+            "isAddressAllowed", "isDomainBlocked", "logPacket", "dnsResolved",
+            "accountUsage", "protect", "createPacket"};
+
+    // Same order as the POOL_ constants in netguard.h
+    private static final String[] POOL_NAMES = new String[]{
+            "session", "small", "medium", "large", "huge"};
 
     private enum State {none, waiting, enforcing, stats}
 
@@ -199,10 +227,24 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private native void jni_start(long context, int loglevel);
 
-    private native void jni_run(long context, int tun, boolean fwd53, int rcode);
+    private native void jni_run(long context, int tun, boolean fwd53, int rcode, int workers);
 
     private native void jni_stop(long context);
 
+    private native void jni_set_rules(long context, ByteBuffer rules);
+
+    private native void jni_add_ip_filters(long context, ByteBuffer filters);
+
+    private native int jni_set_hosts(long context, String path);
+
+    private native void jni_set_metrics(long context, boolean enabled);
+
+    private native long[] jni_get_metrics(long context);
+
+    private native ByteBuffer jni_get_log(long context);
+
+    private native int jni_log_next(long context, int consumed);
+
     private native void jni_clear(long context);
 
     private native int jni_get_mtu();
@@ -706,6 +748,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     }
 
     private final class LogHandler extends Handler {
+        private ByteBuffer logRing = null;
+        private int logTail = 0;
+        private boolean closed = false;
+
         public LogHandler(Looper looper) {
             super(looper);
         }
@@ -715,11 +761,15 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             try {
                 switch (msg.what) {
                     case MSG_PACKET:
-                        log((Packet) msg.obj, msg.arg1, msg.arg2 > 0);
+                        log(Collections.singletonList((Packet) msg.obj), msg.arg1, msg.arg2 > 0);
+                        break;
+
+                    case MSG_LOG:
+                        drain();
                         break;
 
                     case MSG_USAGE:
-                        usage((Usage) msg.obj);
+                        usage((Usage[]) msg.obj);
                         break;
 
                     default:
@@ -730,7 +780,64 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             }
         }
 
-        private void log(Packet packet, int connection, boolean interactive) {
+        // Drain for the last time and release the ring, before the native context is freed
+        public void close() {
+            final CountDownLatch latch = new CountDownLatch(1);
+            removeMessages(MSG_LOG);
+            boolean posted = post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drain();
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    } finally {
+                        closed = true;
+                        logRing = null;
+                        latch.countDown();
+                    }
+                }
+            });
+            if (posted)
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+        }
+
+        private void drain() {
+            removeMessages(MSG_LOG);
+            if (closed || jni_context == 0)
+                return;
+
+            if (logRing == null) {
+                logRing = jni_get_log(jni_context);
+                logRing.order(ByteOrder.nativeOrder());
+            }
+            int slots = logRing.capacity() / Packet.SIZE;
+
+            // Records are kept by native code until released by the next call
+            int count = jni_log_next(jni_context, 0);
+            while (count > 0) {
+                List<Packet> packets = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int slot = (logTail + i) % slots;
+                    packets.add(Packet.read(logRing, slot * Packet.SIZE));
+                }
+                logTail = (logTail + count) % slots;
+                count = jni_log_next(jni_context, count);
+
+                log(packets,
+                        last_connected ? (last_metered ? 2 : 1) : 0,
+                        last_interactive);
+            }
+
+            if (tunnelThread != null && !closed)
+                sendEmptyMessageDelayed(MSG_LOG, LOG_INTERVAL);
+        }
+
+        private void log(List<Packet> packets, int connection, boolean interactive) {
             // Get settings
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
             boolean log = prefs.getBoolean("log", false);
@@ -738,39 +845,59 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
             DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
 
-            // Get real name
-            String dname = dh.getQName(packet.uid, packet.daddr);
+            // Get real names
+            List<String> dnames = new ArrayList<>(packets.size());
+            Map<String, String> mapDName = new HashMap<>();
+            for (Packet packet : packets) {
+                String key = packet.uid + "/" + packet.daddr;
+                if (!mapDName.containsKey(key))
+                    mapDName.put(key, dh.getQName(packet.uid, packet.daddr));
+                dnames.add(mapDName.get(key));
+            }
 
             // Traffic log
             if (log)
-                dh.insertLog(packet, dname, connection, interactive);
+                dh.insertLog(packets, dnames, connection, interactive);
 
             // Application log
-            if (log_app && packet.uid >= 0 && !(packet.uid == 0 && packet.protocol == 17 && packet.dport == 53)) {
-                if (!(packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */))
-                    packet.dport = 0;
-                if (dh.updateAccess(packet, dname, -1)) {
-                    lock.readLock().lock();
-                    if (!mapNotify.containsKey(packet.uid) || mapNotify.get(packet.uid))
-                        showAccessNotification(packet.uid);
-                    lock.readLock().unlock();
+            if (log_app)
+                for (int i = 0; i < packets.size(); i++) {
+                    Packet packet = packets.get(i);
+                    if (packet.uid >= 0 && !(packet.uid == 0 && packet.protocol == 17 && packet.dport == 53)) {
+                        if (!(packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */))
+                            packet.dport = 0;
+                        if (dh.updateAccess(packet, dnames.get(i), -1)) {
+                            lock.readLock().lock();
+                            if (!mapNotify.containsKey(packet.uid) || mapNotify.get(packet.uid))
+                                showAccessNotification(packet.uid);
+                            lock.readLock().unlock();
+                        }
+                    }
                 }
-            }
         }
 
-        private void usage(Usage usage) {
-            if (usage.Uid >= 0 && !(usage.Uid == 0 && usage.Protocol == 17 && usage.DPort == 53)) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-                boolean filter = prefs.getBoolean("filter", false);
-                boolean log_app = prefs.getBoolean("log_app", false);
-                boolean track_usage = prefs.getBoolean("track_usage", false);
-                if (filter && log_app && track_usage) {
-                    DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+        private void usage(Usage[] usages) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+            boolean filter = prefs.getBoolean("filter", false);
+            boolean log_app = prefs.getBoolean("log_app", false);
+            boolean track_usage = prefs.getBoolean("track_usage", false);
+            if (!(filter && log_app && track_usage))
+                return;
+
+            DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+
+            List<Usage> accounted = new ArrayList<>(usages.length);
+            List<String> dnames = new ArrayList<>(usages.length);
+            for (Usage usage : usages)
+                if (usage.Uid >= 0 && !(usage.Uid == 0 && usage.Protocol == 17 && usage.DPort == 53)) {
                     String dname = dh.getQName(usage.Uid, usage.DAddr);
                     Log.i(TAG, "Usage account " + usage + " dname=" + dname);
-                    dh.updateUsage(usage, dname);
+                    accounted.add(usage);
+                    dnames.add(dname);
                 }
-            }
+
+            if (accounted.size() > 0)
+                dh.updateUsage(accounted, dnames);
         }
     }
 
@@ -820,6 +947,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
             boolean enabled = (!stats && prefs.getBoolean("show_stats", false));
             Log.i(TAG, "Stats start enabled=" + enabled);
+            if (jni_context != 0)
+                jni_set_metrics(jni_context, enabled && prefs.getBoolean("show_metrics", false));
             if (enabled) {
                 when = new Date().getTime();
                 t = -1;
@@ -837,6 +966,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         private void stopStats() {
             Log.i(TAG, "Stats stop");
             stats = false;
+            if (jni_context != 0)
+                jni_set_metrics(jni_context, false);
             this.removeMessages(MSG_STATS_UPDATE);
             if (state == State.stats) {
                 Log.d(TAG, "Stop foreground state=" + state.toString());
@@ -853,6 +984,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             long samples = Long.parseLong(prefs.getString("stats_samples", "90"));
             boolean filter = prefs.getBoolean("filter", false);
             boolean show_top = prefs.getBoolean("show_top", false);
+            boolean show_metrics = prefs.getBoolean("show_metrics", false);
             int loglevel = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
 
             // Schedule next update
@@ -1021,11 +1153,53 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 int[] count = jni_get_stats(jni_context);
                 remoteViews.setTextViewText(R.id.tvSessions, count[0] + "/" + count[1] + "/" + count[2]);
                 remoteViews.setTextViewText(R.id.tvFiles, count[3] + "/" + count[4]);
+
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < POOL_NAMES.length; i++)
+                    sb.append(' ').append(POOL_NAMES[i]).append('=')
+                            .append(count[6 + i * 2]).append('/').append(count[6 + i * 2 + 1]);
+                Log.i(TAG, "Pools used/idle" + sb + " oversize=" + count[5]);
+
+                int uids = 6 + POOL_NAMES.length * 2;
+                Log.i(TAG, "UID cache hits=" + count[uids] +
+                        " misses=" + count[uids + 1] + " evictions=" + count[uids + 2]);
             } else {
                 remoteViews.setTextViewText(R.id.tvSessions, "");
                 remoteViews.setTextViewText(R.id.tvFiles, "");
             }
 
+            // Show slowest native calls
+            if (show_metrics && jni_context != 0) {
+                final long[] metrics = jni_get_metrics(jni_context);
+                List<Integer> calls = new ArrayList<>();
+                for (int i = 0; i < METRIC_NAMES.length; i++)
+                    if (metrics[i * 4] > 0) {
+                        calls.add(i);
+                        Log.i(TAG, "Metric " + METRIC_NAMES[i] + " count=" + metrics[i * 4] +
+                                " p50=" + metrics[i * 4 + 1] + " p99=" + metrics[i * 4 + 2] +
+                                " max=" + metrics[i * 4 + 3] + " us");
+                    }
+                Collections.sort(calls, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer call, Integer other) {
+                        return -Long.compare(metrics[call * 4 + 2], metrics[other * 4 + 2]);
+                    }
+                });
+
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < calls.size() && i < 3; i++) {
+                    int call = calls.get(i);
+                    if (sb.length() > 0)
+                        sb.append("\n");
+                    sb.append(METRIC_NAMES[call]).append(' ')
+                            .append(metrics[call * 4 + 1]).append('/')
+                            .append(metrics[call * 4 + 2]).append('/')
+                            .append(metrics[call * 4 + 3]);
+                }
+                remoteViews.setTextViewText(R.id.tvMetrics, sb.toString());
+            } else
+                remoteViews.setTextViewText(R.id.tvMetrics, "");
+
             // Show notification
             Intent main = new Intent(ServiceSinkhole.this, ActivityMain.class);
             PendingIntent pi = PendingIntent.getActivity(ServiceSinkhole.this, 0, main, PendingIntent.FLAG_UPDATE_CURRENT);
@@ -1393,10 +1567,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             lock.writeLock().lock();
             mapUidAllowed.clear();
             mapUidKnown.clear();
-            mapHostsBlocked.clear();
-            mapUidIPFilters.clear();
+            indexUidIPFilters.clear();
             mapForward.clear();
             lock.writeLock().unlock();
+            hosts_count = jni_set_hosts(jni_context, null);
         }
 
         if (log_app)
@@ -1407,9 +1581,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             lock.writeLock().unlock();
         }
 
+        publishRules();
+
         if (log || log_app || filter) {
             int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
             final int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
+            final int workers = getWorkers(prefs);
             if (prefs.getBoolean("socks5_enabled", false))
                 jni_socks5(
                         prefs.getString("socks5_addr", ""),
@@ -1427,7 +1604,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                     @Override
                     public void run() {
                         Log.i(TAG, "Running tunnel");
-                        jni_run(jni_context, vpn.getFd(), mapForward.containsKey(53), rcode);
+                        jni_run(jni_context, vpn.getFd(), mapForward.containsKey(53), rcode, workers);
                         Log.i(TAG, "Tunnel exited");
                         tunnelThread = null;
                     }
@@ -1435,11 +1612,25 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 //tunnelThread.setPriority(Thread.MAX_PRIORITY);
                 tunnelThread.start();
 
+                // Logging can be enabled while running, see publishRules
+                logHandler.sendEmptyMessage(MSG_LOG);
+
                 Log.i(TAG, "Started tunnel thread");
             }
         }
     }
 
+    public static int getWorkers(SharedPreferences prefs) {
+        int workers;
+        try {
+            workers = Integer.parseInt(prefs.getString("workers", "1"));
+        } catch (NumberFormatException ex) {
+            Log.w(TAG, "Invalid workers " + prefs.getString("workers", null));
+            workers = 1;
+        }
+        return Math.max(1, Math.min(MAX_WORKERS, workers));
+    }
+
     private void stopNative(ParcelFileDescriptor vpn, boolean clear) {
         Log.i(TAG, "Stop native clear=" + clear);
 
@@ -1457,6 +1648,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 }
             tunnelThread = null;
 
+            // Flush remaining log records
+            logHandler.sendEmptyMessage(MSG_LOG);
+
             if (clear)
                 jni_clear(jni_context);
 
@@ -1468,11 +1662,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         lock.writeLock().lock();
         mapUidAllowed.clear();
         mapUidKnown.clear();
-        mapHostsBlocked.clear();
-        mapUidIPFilters.clear();
+        indexUidIPFilters.clear();
         mapForward.clear();
         mapNotify.clear();
         lock.writeLock().unlock();
+        hosts_count = jni_set_hosts(jni_context, null);
     }
 
     private void prepareUidAllowed(List<Rule> listAllowed, List<Rule> listRule) {
@@ -1495,46 +1689,77 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         File hosts = new File(getFilesDir(), "hosts.txt");
         if (!use_hosts || !hosts.exists() || !hosts.canRead()) {
             Log.i(TAG, "Hosts file use=" + use_hosts + " exists=" + hosts.exists());
-            lock.writeLock().lock();
-            mapHostsBlocked.clear();
-            lock.writeLock().unlock();
+            hosts_count = jni_set_hosts(jni_context, null);
             return;
         }
 
-        boolean changed = (hosts.lastModified() != last_hosts_modified);
-        if (!changed && mapHostsBlocked.size() > 0) {
+        File compiled = new File(getFilesDir(), "hosts.bin");
+        if (compiled.exists() && compiled.lastModified() >= hosts.lastModified()) {
             Log.i(TAG, "Hosts file unchanged");
+            hosts_count = jni_set_hosts(jni_context, compiled.getAbsolutePath());
+            if (hosts_count > 0)
+                return;
+
+            // Rejected by map_hosts, for example written by another version
+            Log.w(TAG, "Compiled hosts file rejected, recompiling");
+            compiled.delete();
+        }
+
+        // Normally compiled already when the hosts file was downloaded or imported
+        try {
+            compileHosts(this, hosts, compiled);
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            compiled.delete();
+            hosts_count = jni_set_hosts(jni_context, null);
             return;
         }
-        last_hosts_modified = hosts.lastModified();
 
-        lock.writeLock().lock();
+        hosts_count = jni_set_hosts(jni_context, compiled.getAbsolutePath());
+    }
 
-        mapHostsBlocked.clear();
+    public static void compileHosts(Context context) {
+        File hosts = new File(context.getFilesDir(), "hosts.txt");
+        File compiled = new File(context.getFilesDir(), "hosts.bin");
+        try {
+            compileHosts(context, hosts, compiled);
+        } catch (IOException ex) {
+            // Left older than the hosts file, prepareHostsBlocked will try again
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
+    private static void compileHosts(Context context, File hosts, File compiled) throws IOException {
+        synchronized (hostsLock) {
+            compileHostsLocked(context, hosts, compiled);
+        }
+    }
+
+    private static void compileHostsLocked(Context context, File hosts, File compiled) throws IOException {
+        // Layout should match map_hosts in hosts.c
+        long start = SystemClock.elapsedRealtime();
 
         int count = 0;
+        long[] hash = new long[4096];
         BufferedReader br = null;
         try {
             br = new BufferedReader(new FileReader(hosts));
             String line;
             while ((line = br.readLine()) != null) {
-                int hash = line.indexOf('#');
-                if (hash >= 0)
-                    line = line.substring(0, hash);
+                int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
                 line = line.trim();
                 if (line.length() > 0) {
                     String[] words = line.split("\\s+");
                     if (words.length == 2) {
-                        count++;
-                        mapHostsBlocked.put(words[1], true);
+                        if (count == hash.length)
+                            hash = Arrays.copyOf(hash, count * 2);
+                        hash[count++] = hashDomain(words[1]);
                     } else
                         Log.i(TAG, "Invalid hosts file line: " + line);
                 }
             }
-            mapHostsBlocked.put("test.netguard.me", true);
-            Log.i(TAG, count + " hosts read");
-        } catch (IOException ex) {
-            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
         } finally {
             if (br != null)
                 try {
@@ -1543,57 +1768,115 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                     Log.e(TAG, exex.toString() + "\n" + Log.getStackTraceString(exex));
                 }
         }
+        Log.i(TAG, count + " hosts read");
 
-        lock.writeLock().unlock();
+        if (count == hash.length)
+            hash = Arrays.copyOf(hash, count + 1);
+        hash[count++] = hashDomain("test.netguard.me");
+
+        // Sorted and unique
+        Arrays.sort(hash, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++)
+            if (unique == 0 || hash[i] != hash[unique - 1])
+                hash[unique++] = hash[i];
+
+        File tmp = new File(context.getFilesDir(), "hosts.bin.tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            FileChannel channel = fos.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.order(ByteOrder.nativeOrder());
+
+            buffer.putInt(HOSTS_MAGIC);
+            buffer.putInt(HOSTS_VERSION);
+            buffer.putInt(unique);
+            buffer.putInt(0);
+
+            for (int i = 0; i < unique; i++) {
+                if (buffer.remaining() < 8) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    buffer.clear();
+                }
+                buffer.putLong(hash[i]);
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            // Complete on disk before it replaces the previous file
+            fos.getFD().sync();
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        } finally {
+            if (fos != null)
+                fos.close();
+        }
+
+        // The native code might still have the previous file mapped
+        if (!tmp.renameTo(compiled))
+            throw new IOException("Rename " + tmp + " failed");
+
+        Log.i(TAG, unique + " hosts compiled in " + (SystemClock.elapsedRealtime() - start) + " ms");
     }
 
-    private void prepareUidIPFilters(String dname) {
-        SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
+    private static long hashDomain(String name) {
+        // FNV-1a, same as hash_domain in hosts.c
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8))
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        return h;
+    }
 
-        lock.writeLock().lock();
+    private void prepareUidIPFilters(Collection<String> dnames) {
+        SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
 
-        if (dname == null) {
-            mapUidIPFilters.clear();
-            if (!IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this)) {
-                lock.writeLock().unlock();
-                return;
-            }
+        if (dnames == null && !IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this)) {
+            lock.writeLock().lock();
+            indexUidIPFilters.clear();
+            lock.writeLock().unlock();
+            return;
         }
 
-        Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(dname);
-        int colUid = cursor.getColumnIndex("uid");
-        int colVersion = cursor.getColumnIndex("version");
-        int colProtocol = cursor.getColumnIndex("protocol");
-        int colDAddr = cursor.getColumnIndex("daddr");
-        int colResource = cursor.getColumnIndex("resource");
-        int colDPort = cursor.getColumnIndex("dport");
-        int colBlock = cursor.getColumnIndex("block");
-        int colTime = cursor.getColumnIndex("time");
-        int colTTL = cursor.getColumnIndex("ttl");
-        while (cursor.moveToNext()) {
-            int uid = cursor.getInt(colUid);
-            int version = cursor.getInt(colVersion);
-            int protocol = cursor.getInt(colProtocol);
-            String daddr = cursor.getString(colDAddr);
-            String dresource = (cursor.isNull(colResource) ? null : cursor.getString(colResource));
-            int dport = cursor.getInt(colDPort);
-            boolean block = (cursor.getInt(colBlock) > 0);
-            long time = (cursor.isNull(colTime) ? new Date().getTime() : cursor.getLong(colTime));
-            long ttl = (cursor.isNull(colTTL) ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTTL));
-
-            if (isLockedDown(last_metered)) {
-                String[] pkg = getPackageManager().getPackagesForUid(uid);
-                if (pkg != null && pkg.length > 0) {
-                    if (!lockdown.getBoolean(pkg[0], false))
-                        continue;
+        // Query outside of the write lock
+        List<Pair<InetAddress, IPRule>> rules = new ArrayList<>();
+        DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+        for (String dname : (dnames == null ? Collections.singletonList((String) null) : dnames)) {
+            Cursor cursor = dh.getAccessDns(dname);
+            int colUid = cursor.getColumnIndex("uid");
+            int colVersion = cursor.getColumnIndex("version");
+            int colProtocol = cursor.getColumnIndex("protocol");
+            int colDAddr = cursor.getColumnIndex("daddr");
+            int colResource = cursor.getColumnIndex("resource");
+            int colDPort = cursor.getColumnIndex("dport");
+            int colBlock = cursor.getColumnIndex("block");
+            int colTime = cursor.getColumnIndex("time");
+            int colTTL = cursor.getColumnIndex("ttl");
+            while (cursor.moveToNext()) {
+                int uid = cursor.getInt(colUid);
+                int version = cursor.getInt(colVersion);
+                int protocol = cursor.getInt(colProtocol);
+                String daddr = cursor.getString(colDAddr);
+                String dresource = (cursor.isNull(colResource) ? null : cursor.getString(colResource));
+                int dport = cursor.getInt(colDPort);
+                boolean block = (cursor.getInt(colBlock) > 0);
+                long time = (cursor.isNull(colTime) ? new Date().getTime() : cursor.getLong(colTime));
+                long ttl = (cursor.isNull(colTTL) ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTTL));
+
+                if (isLockedDown(last_metered)) {
+                    String[] pkg = getPackageManager().getPackagesForUid(uid);
+                    if (pkg != null && pkg.length > 0) {
+                        if (!lockdown.getBoolean(pkg[0], false))
+                            continue;
+                    }
                 }
-            }
-
-            IPKey key = new IPKey(version, protocol, dport, uid);
-            synchronized (mapUidIPFilters) {
-                if (!mapUidIPFilters.containsKey(key))
-                    mapUidIPFilters.put(key, new HashMap());
 
+                IPKey key = new IPKey(version, protocol, dport, uid);
                 try {
                     String name = (dresource == null ? daddr : dresource);
                     if (Util.isNumericAddress(name)) {
@@ -1606,24 +1889,106 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                         //if (dname != null)
                         Log.i(TAG, "Set filter " + key + " " + daddr + "/" + dresource + "=" + block);
 
-                        boolean exists = mapUidIPFilters.get(key).containsKey(iname);
-                        if (!exists || !mapUidIPFilters.get(key).get(iname).isBlocked()) {
-                            IPRule rule = new IPRule(key, name + "/" + iname, block, time + ttl);
-                            mapUidIPFilters.get(key).put(iname, rule);
-                            if (exists)
-                                Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + dresource);
-                        } else if (exists) {
-                            mapUidIPFilters.get(key).get(iname).updateExpires(time + ttl);
-                            Log.w(TAG, "Address updated " + key + " " + daddr + "/" + dresource);
-                        }
+                        rules.add(new Pair<>(iname, new IPRule(key, name + "/" + iname, block, time + ttl)));
                     } else
                         Log.w(TAG, "Address not numeric " + name);
                 } catch (UnknownHostException ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
             }
+            cursor.close();
+        }
+
+        // New names are published as a delta, else by the next publishRules
+        ByteBuffer delta = null;
+        if (dnames != null) {
+            if (rules.size() == 0)
+                return;
+            delta = ByteBuffer.allocateDirect(4 + rules.size() * NATIVE_IP_FILTER_LEN);
+            delta.order(ByteOrder.nativeOrder());
+            delta.putInt(rules.size());
+        }
+
+        // Apply all changes at once
+        lock.writeLock().lock();
+
+        if (dnames == null)
+            indexUidIPFilters.clear();
+
+        synchronized (indexUidIPFilters) {
+            for (Pair<InetAddress, IPRule> pair : rules) {
+                IPRule rule = pair.second;
+                IPKey key = rule.getKey();
+                long ikey = IPFilterIndex.key(key.version, key.protocol, key.dport, key.uid);
+                int result = indexUidIPFilters.put(ikey, pair.first, rule.isBlocked(), rule.getExpires());
+                if (result == IPFilterIndex.REPLACED)
+                    Log.w(TAG, "Address conflict " + key + " " + rule);
+                else if (result == IPFilterIndex.UPDATED)
+                    Log.w(TAG, "Address updated " + key + " " + rule);
+                if (delta != null)
+                    indexUidIPFilters.write(ikey, pair.first, delta);
+            }
+        }
+
+        if (delta != null) {
+            snapshot = new FilterSnapshot(snapshot, indexUidIPFilters);
+            jni_add_ip_filters(jni_context, delta);
         }
-        cursor.close();
+
+        lock.writeLock().unlock();
+    }
+
+    private void publishRules() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean filter = prefs.getBoolean("filter", false);
+        boolean log = (prefs.getBoolean("log", false) || prefs.getBoolean("log_app", false));
+
+        // Publishers should not overtake each other
+        lock.writeLock().lock();
+
+        snapshot = new FilterSnapshot(filter, log, last_connected, Process.myUid(),
+                mapUidAllowed, mapUidKnown, indexUidIPFilters, mapForward);
+
+        // Layout should match parse_rules in rules.c
+
+        int filters = indexUidIPFilters.size();
+
+        int size = 4 * 4 +
+                4 + mapUidAllowed.size() * 2 * 4 +
+                4 + mapUidKnown.size() * 4 +
+                4 + filters * NATIVE_IP_FILTER_LEN +
+                4 + mapForward.size() * (3 * 4 + NATIVE_RADDR_LEN);
+        ByteBuffer rules = ByteBuffer.allocateDirect(size);
+        rules.order(ByteOrder.nativeOrder());
+
+        rules.putInt(filter ? 1 : 0);
+        rules.putInt(last_connected ? 1 : 0);
+        rules.putInt(Process.myUid());
+        rules.putInt(log ? 1 : 0);
+
+        rules.putInt(mapUidAllowed.size());
+        for (Map.Entry<Integer, Boolean> entry : mapUidAllowed.entrySet()) {
+            rules.putInt(entry.getKey());
+            rules.putInt(entry.getValue() ? 1 : 0);
+        }
+
+        rules.putInt(mapUidKnown.size());
+        for (Integer uid : mapUidKnown.keySet())
+            rules.putInt(uid);
+
+        rules.putInt(filters);
+        indexUidIPFilters.write(rules);
+
+        rules.putInt(mapForward.size());
+        for (Forward fwd : mapForward.values()) {
+            rules.putInt(fwd.dport);
+            rules.putInt(fwd.ruid);
+            rules.putInt(fwd.rport);
+            byte[] raddr = (fwd.raddr == null ? new byte[0] : fwd.raddr.getBytes());
+            rules.put(Arrays.copyOf(raddr, NATIVE_RADDR_LEN));
+        }
+
+        jni_set_rules(jni_context, rules);
 
         lock.writeLock().unlock();
     }
@@ -1783,6 +2148,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     }
 
     // Called from native code
+    private void logPending() {
+        logHandler.removeMessages(MSG_LOG);
+        logHandler.sendEmptyMessage(MSG_LOG);
+    }
+
     private void logPacket(Packet packet) {
         Message msg = logHandler.obtainMessage();
         msg.obj = packet;
@@ -1793,21 +2163,14 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     }
 
     // Called from native code
-    private void dnsResolved(ResourceRecord rr) {
-        if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr)) {
-            Log.i(TAG, "New IP " + rr);
-            prepareUidIPFilters(rr.QName);
+    private void dnsResolved(ResourceRecord[] rrs) {
+        Set<String> qnames = DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rrs);
+        if (qnames.size() > 0) {
+            Log.i(TAG, "New IPs for " + TextUtils.join(",", qnames));
+            prepareUidIPFilters(qnames);
         }
     }
 
-    // Called from native code
-    private boolean isDomainBlocked(String name) {
-        lock.readLock().lock();
-        boolean blocked = (mapHostsBlocked.containsKey(name) && mapHostsBlocked.get(name));
-        lock.readLock().unlock();
-        return blocked;
-    }
-
     private boolean isSupported(int protocol) {
         return (protocol == 1 /* ICMPv4 */ ||
                 protocol == 59 /* ICMPv6 */ ||
@@ -1817,53 +2180,52 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     // Called from native code
     private Allowed isAddressAllowed(Packet packet) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        // Never blocks, see publishRules
+        FilterSnapshot snapshot = this.snapshot;
 
-        lock.readLock().lock();
+        packet.load();
 
         packet.allowed = false;
-        if (prefs.getBoolean("filter", false)) {
+        if (snapshot.filter) {
             // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
             if (packet.uid < 2000 &&
-                    !last_connected && isSupported(packet.protocol)) {
+                    !snapshot.connected && isSupported(packet.protocol)) {
                 // Allow system applications in disconnected state
                 packet.allowed = true;
                 Log.w(TAG, "Allowing disconnected system " + packet);
 
             } else if (packet.uid < 2000 &&
-                    !mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
+                    !snapshot.mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
                 // Allow unknown system traffic
                 packet.allowed = true;
                 Log.w(TAG, "Allowing unknown system " + packet);
-            } else if (packet.uid == Process.myUid()) {
+            } else if (packet.uid == snapshot.self) {
                 // Allow self
                 packet.allowed = true;
                 Log.w(TAG, "Allowing self " + packet);
             } else {
                 boolean filtered = false;
-                IPKey key = new IPKey(packet.version, packet.protocol, packet.dport, packet.uid);
-                if (mapUidIPFilters.containsKey(key))
-                    try {
-                        InetAddress iaddr = InetAddress.getByName(packet.daddr);
-                        Map<InetAddress, IPRule> map = mapUidIPFilters.get(key);
-                        if (map != null && map.containsKey(iaddr)) {
-                            IPRule rule = map.get(iaddr);
-                            if (rule.isExpired())
-                                Log.i(TAG, "DNS expired " + packet + " rule " + rule);
-                            else {
-                                filtered = true;
-                                packet.allowed = !rule.isBlocked();
-                                Log.i(TAG, "Filtering " + packet +
-                                        " allowed=" + packet.allowed + " rule " + rule);
-                            }
+                long key = IPFilterIndex.key(packet.version, packet.protocol, packet.dport, packet.uid);
+                try {
+                    long value = (packet.version == 4
+                            ? snapshot.indexUidIPFilters.get(key, packet.getDestination4())
+                            : snapshot.indexUidIPFilters.get(key, packet.getDestination6(0), packet.getDestination6(8)));
+                    if (value != 0)
+                        if (IPFilterIndex.isExpired(value, System.currentTimeMillis()))
+                            Log.i(TAG, "DNS expired " + packet);
+                        else {
+                            filtered = true;
+                            packet.allowed = !IPFilterIndex.isBlocked(value);
+                            packet.expires = IPFilterIndex.getExpires(value);
+                            Log.i(TAG, "Filtering " + packet + " allowed=" + packet.allowed);
                         }
-                    } catch (UnknownHostException ex) {
-                        Log.w(TAG, "Allowed " + ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    }
+                } catch (UnknownHostException ex) {
+                    Log.w(TAG, "Allowed " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
 
                 if (!filtered)
-                    if (mapUidAllowed.containsKey(packet.uid))
-                        packet.allowed = mapUidAllowed.get(packet.uid);
+                    if (snapshot.mapUidAllowed.containsKey(packet.uid))
+                        packet.allowed = snapshot.mapUidAllowed.get(packet.uid);
                     else
                         Log.w(TAG, "No rules for " + packet);
             }
@@ -1871,8 +2233,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
         Allowed allowed = null;
         if (packet.allowed) {
-            if (mapForward.containsKey(packet.dport)) {
-                Forward fwd = mapForward.get(packet.dport);
+            if (snapshot.mapForward.containsKey(packet.dport)) {
+                Forward fwd = snapshot.mapForward.get(packet.dport);
                 if (fwd.ruid == packet.uid) {
                     allowed = new Allowed();
                 } else {
@@ -1883,20 +2245,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 allowed = new Allowed();
         }
 
-        lock.readLock().unlock();
-
-        if (prefs.getBoolean("log", false) || prefs.getBoolean("log_app", false))
-            if (packet.protocol != 6 /* TCP */ || !"".equals(packet.flags))
-                if (packet.uid != Process.myUid())
-                    logPacket(packet);
+        if (snapshot.log) {
+            Packet logged = packet.detach();
+            if (logged.protocol != 6 /* TCP */ || !"".equals(logged.flags))
+                if (logged.uid != snapshot.self)
+                    logPacket(logged);
+        }
 
         return allowed;
     }
 
     // Called from native code
-    private void accountUsage(Usage usage) {
+    private void accountUsage(Usage[] usages) {
         Message msg = logHandler.obtainMessage();
-        msg.obj = usage;
+        msg.obj = usages;
         msg.what = MSG_USAGE;
         logHandler.sendMessage(msg);
     }
@@ -2445,7 +2807,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String name) {
-        if ("theme".equals(name)) {
+        if ("filter".equals(name) || "log".equals(name) || "log_app".equals(name)) {
+            if (jni_context != 0)
+                publishRules();
+        } else if ("theme".equals(name)) {
             Log.i(TAG, "Theme changed");
             Util.setTheme(this);
             if (state != State.none) {
@@ -2561,7 +2926,6 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         synchronized (this) {
             Log.i(TAG, "Destroy");
             commandLooper.quit();
-            logLooper.quit();
             statsLooper.quit();
 
             for (Command command : Command.values())
@@ -2622,7 +2986,13 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
 
-            jni_done(jni_context);
+            // The log thread reads the native log ring
+            logHandler.close();
+            logLooper.quit();
+
+            long context = jni_context;
+            jni_context = 0;
+            jni_done(context);
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
             prefs.unregisterOnSharedPreferenceChangeListener(this);
@@ -2696,7 +3066,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private void updateEnforcingNotification(int allowed, int total) {
         // Update notification
-        Notification notification = getEnforcingNotification(allowed, total - allowed, mapHostsBlocked.size());
+        Notification notification = getEnforcingNotification(allowed, total - allowed, hosts_count);
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         nm.notify(NOTIFY_ENFORCING, notification);
     }
@@ -3066,12 +3436,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             return this.block;
         }
 
-        public boolean isExpired() {
-            return System.currentTimeMillis() > this.expires;
+        public IPKey getKey() {
+            return this.key;
         }
 
-        public void updateExpires(long expires) {
-            this.expires = Math.max(this.expires, expires);
+        public long getExpires() {
+            return this.expires;
         }
 
         @Override
@@ -3086,6 +3456,52 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
+    private class FilterSnapshot {
+        final boolean filter;
+        final boolean log;
+        final boolean connected;
+        final int self;
+        final Map<Integer, Boolean> mapUidAllowed;
+        final Map<Integer, Integer> mapUidKnown;
+        final IPFilterIndex indexUidIPFilters;
+        final Map<Integer, Forward> mapForward;
+
+        FilterSnapshot() {
+            this(false, false, false, Process.myUid(),
+                    Collections.<Integer, Boolean>emptyMap(),
+                    Collections.<Integer, Integer>emptyMap(),
+                    new IPFilterIndex(),
+                    Collections.<Integer, Forward>emptyMap());
+        }
+
+        FilterSnapshot(boolean filter, boolean log, boolean connected, int self,
+                       Map<Integer, Boolean> mapUidAllowed,
+                       Map<Integer, Integer> mapUidKnown,
+                       IPFilterIndex indexUidIPFilters,
+                       Map<Integer, Forward> mapForward) {
+            this.filter = filter;
+            this.log = log;
+            this.connected = connected;
+            this.self = self;
+            this.mapUidAllowed = new HashMap<>(mapUidAllowed);
+            this.mapUidKnown = new HashMap<>(mapUidKnown);
+            this.indexUidIPFilters = indexUidIPFilters.copy();
+            this.mapForward = new HashMap<>(mapForward);
+        }
+
+        FilterSnapshot(FilterSnapshot snapshot, IPFilterIndex indexUidIPFilters) {
+            // Snapshots are never modified, so only the changed IP filters are copied
+            this.filter = snapshot.filter;
+            this.log = snapshot.log;
+            this.connected = snapshot.connected;
+            this.self = snapshot.self;
+            this.mapUidAllowed = snapshot.mapUidAllowed;
+            this.mapUidKnown = snapshot.mapUidKnown;
+            this.indexUidIPFilters = indexUidIPFilters.copy();
+            this.mapForward = snapshot.mapForward;
+        }
+    }
+
     public static void run(String reason, Context context) {
         Intent intent = new Intent(context, ServiceSinkhole.class);
         intent.putExtra(EXTRA_COMMAND, Command.run);
@@ -19,198 +19,542 @@
 
 #include "netguard.h"
 
+// Names are validated before use: labels and compression pointers stay within the message,
+// the number of pointers is limited to stop loops and the decoded name fits DNS_QNAME_MAX
+
+static int32_t walk_name(const uint8_t *data, const size_t datalen, uint16_t off, char *name) {
+    int32_t end = -1;
+    int jumps = 0;
+    int noff = 0;
+    uint32_t ptr = off;
+    while (ptr < datalen) {
+        uint8_t len = *(data + ptr);
+        if ((len & 0xC0) == 0xC0) {
+            if (ptr + 1 >= datalen || ++jumps > DNS_JUMPS_MAX)
+                return -1;
+            if (end < 0)
+                end = ptr + 2;
+            ptr = (uint32_t) ((len & 0x3F) * 256 + *(data + ptr + 1));
+        } else if (len & 0xC0)
+            return -1;
+        else if (len == 0) {
+            if (name != NULL)
+                *(name + (noff ? noff - 1 : 0)) = 0;
+            return (end < 0 ? (int32_t) ptr + 1 : end);
+        } else if (ptr + 1 + len <= datalen && noff + len <= DNS_QNAME_MAX) {
+            if (name != NULL) {
+                memcpy(name + noff, data + ptr + 1, len);
+                *(name + noff + len) = '.';
+            }
+            noff += len + 1;
+            ptr += len + 1;
+        } else
+            return -1;
+    }
+    return -1;
+}
+
 int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char *qname) {
     *qname = 0;
+    int32_t end = walk_name(data, datalen, off, qname);
+    if (end < 0 || *qname == 0) {
+        log_android(ANDROID_LOG_ERROR, "DNS qname invalid off %d datalen %d", off, datalen);
+        return -1;
+    }
+
+    log_android(ANDROID_LOG_DEBUG, "qname %s", qname);
+    return end;
+}
+
+static uint16_t get_label(const uint8_t *data, uint16_t off) {
+    while ((*(data + off) & 0xC0) == 0xC0)
+        off = (uint16_t) ((*(data + off) & 0x3F) * 256 + *(data + off + 1));
+    return off;
+}
+
+// Compare two validated names in place, ignoring case
+static int is_same_name(const uint8_t *data, uint16_t a, uint16_t b) {
+    while (1) {
+        a = get_label(data, a);
+        b = get_label(data, b);
+        uint8_t len = *(data + a);
+        if (len != *(data + b))
+            return 0;
+        if (len == 0)
+            return 1;
+        if (strncasecmp((const char *) data + a + 1, (const char *) data + b + 1, len))
+            return 0;
+        a += len + 1;
+        b += len + 1;
+    }
+}
+
+int parse_dns(const uint8_t *data, size_t datalen, struct dns_message *msg) {
+    if (datalen < sizeof(struct dns_header) + 1 || datalen > 0xFFFF) {
+        log_android(ANDROID_LOG_WARN, "DNS length %d", datalen);
+        return -1;
+    }
+
+    // http://tools.ietf.org/html/rfc1035
+    const struct dns_header *dns = (struct dns_header *) data;
+    msg->qcount = ntohs(dns->q_count);
+    msg->acount = ntohs(dns->ans_count);
+    msg->questions = 0;
+    msg->answers = 0;
+    msg->edns = 0;
+
+    int32_t off = sizeof(struct dns_header);
+    for (int q = 0; q < msg->qcount; q++) {
+        int32_t end = walk_name(data, datalen, (uint16_t) off, NULL);
+        if (end < 0 || end + 4 > datalen) {
+            log_android(ANDROID_LOG_WARN, "DNS question %d invalid off %d datalen %d",
+                        q, off, datalen);
+            return -1;
+        }
+        if (msg->questions < DNS_QUESTIONS_MAX) {
+            struct dns_question *question = &msg->question[msg->questions++];
+            question->name = (uint16_t) off;
+            question->qtype = ntohs(*((uint16_t *) (data + end)));
+            question->qclass = ntohs(*((uint16_t *) (data + end + 2)));
+        }
+        off = end + 4;
+    }
+    msg->qend = (uint16_t) off;
+
+    // Answers are required, a broken authority or additional section only loses EDNS0
+    int acount = msg->acount;
+    int rcount = acount + ntohs(dns->auth_count) + ntohs(dns->add_count);
+    for (int r = 0; r < rcount; r++) {
+        int32_t end = walk_name(data, datalen, (uint16_t) off, NULL);
+        uint16_t rdlength = 0;
+        if (end >= 0 && end + 10 <= datalen)
+            rdlength = ntohs(*((uint16_t *) (data + end + 8)));
+        if (end < 0 || end + 10 + rdlength > datalen) {
+            log_android(ANDROID_LOG_WARN, "DNS record %d invalid off %d datalen %d",
+                        r, off, datalen);
+            if (r < acount)
+                return -1;
+            break;
+        }
 
-    uint16_t c = 0;
-    uint8_t noff = 0;
-    uint16_t ptr = off;
-    uint8_t len = *(data + ptr);
-    while (len) {
-        if (len & 0xC0) {
-            ptr = (uint16_t) ((len & 0x3F) * 256 + *(data + ptr + 1));
-            len = *(data + ptr);
-            log_android(ANDROID_LOG_DEBUG, "DNS qname compression ptr %d len %d", ptr, len);
-            if (!c) {
-                c = 1;
-                off += 2;
+        uint16_t qtype = ntohs(*((uint16_t *) (data + end)));
+        uint16_t qclass = ntohs(*((uint16_t *) (data + end + 2)));
+        if (r < acount) {
+            if (qtype == DNS_QTYPE_CNAME &&
+                walk_name(data, datalen, (uint16_t) (end + 10), NULL) < 0) {
+                log_android(ANDROID_LOG_WARN, "DNS CNAME %d invalid off %d", r, end + 10);
+                return -1;
             }
-        } else if (ptr + 1 + len <= datalen && noff + len <= DNS_QNAME_MAX) {
-            memcpy(qname + noff, data + ptr + 1, len);
-            *(qname + noff + len) = '.';
-            noff += (len + 1);
+            if (msg->answers < DNS_ANSWERS_MAX) {
+                struct dns_record *answer = &msg->answer[msg->answers++];
+                answer->name = (uint16_t) off;
+                answer->qtype = qtype;
+                answer->qclass = qclass;
+                answer->ttl = ntohl(*((uint32_t *) (data + end + 4)));
+                answer->rdlength = rdlength;
+                answer->rdata = (uint16_t) (end + 10);
+            }
+        } else if (qtype == DNS_QTYPE_OPT && *(data + off) == 0)
+            msg->edns = qclass;
 
-            ptr += (len + 1);
-            len = *(data + ptr);
-        } else
+        off = end + 10 + rdlength;
+        if (r + 1 == acount)
+            msg->aend = (uint16_t) off;
+    }
+    if (acount == 0)
+        msg->aend = msg->qend;
+
+    return 0;
+}
+
+// Follow the CNAME chain of an answer back to the question it answers
+static int get_dns_question(const uint8_t *data, const struct dns_message *msg, uint16_t name) {
+    for (int hop = 0; hop <= msg->answers; hop++) {
+        for (int q = 0; q < msg->questions; q++)
+            if (is_same_name(data, name, msg->question[q].name))
+                return q;
+
+        int c = 0;
+        while (c < msg->answers &&
+               !(msg->answer[c].qtype == DNS_QTYPE_CNAME &&
+                 is_same_name(data, msg->answer[c].rdata, name)))
+            c++;
+        if (c == msg->answers)
             break;
+        name = msg->answer[c].name;
+    }
+    return 0;
+}
+
+void queue_dns_resolved(const struct arguments *args,
+                        const char *qname, const char *aname, const char *resource, int ttl) {
+    struct worker *worker = args->worker;
+    if (worker->dns_resolved == NULL) {
+        worker->dns_resolved = malloc(DNS_RESOLVED_BATCH * sizeof(struct dns_resolution));
+        if (worker->dns_resolved == NULL) {
+            log_android(ANDROID_LOG_ERROR, "DNS resolved malloc failed");
+            return;
+        }
+    }
+
+    struct dns_resolution *r = &worker->dns_resolved[worker->dns_resolved_count++];
+    strcpy(r->qname, qname);
+    strcpy(r->aname, aname);
+    strcpy(r->resource, resource);
+    r->ttl = ttl;
+
+    if (worker->dns_resolved_count >= DNS_RESOLVED_BATCH)
+        flush_dns_resolved(args);
+}
+
+void flush_dns_resolved(const struct arguments *args) {
+    struct worker *worker = args->worker;
+    if (worker->dns_resolved_count > 0) {
+        log_android(ANDROID_LOG_DEBUG, "DNS resolved count %d", worker->dns_resolved_count);
+        dns_resolved(args, worker->dns_resolved, worker->dns_resolved_count);
+        worker->dns_resolved_count = 0;
+    }
+}
+
+// Answers are cached by question with their TTL, least recently used answers are evicted first
+// The TTLs of cached answers count down, answers are reported to Java again once per DNS_CACHE_REPORT
+
+static uint32_t hash_dns(const char *qname, uint16_t qtype, uint16_t qclass) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    for (const char *c = qname; *c; c++)
+        h = (h ^ (uint8_t) *c) * 16777619u;
+    h = (h ^ (qtype & 0xFF)) * 16777619u;
+    h = (h ^ (qtype >> 8)) * 16777619u;
+    h = (h ^ (qclass & 0xFF)) * 16777619u;
+    h = (h ^ (qclass >> 8)) * 16777619u;
+    return h;
+}
+
+static void get_dns_key(const char *qname, char *key) {
+    while (*qname)
+        *key++ = (char) tolower(*qname++);
+    *key = 0;
+}
+
+static struct dns_cache_entry *find_dns_cache(struct dns_cache *cache, uint32_t hash,
+                                              const char *key, uint16_t qtype, uint16_t qclass) {
+    struct dns_cache_entry *e = cache->hash[hash & (DNS_CACHE_HASH - 1)];
+    while (e != NULL && (e->hash != hash || e->qtype != qtype || e->qclass != qclass ||
+                         strcmp(e->qname, key) != 0))
+        e = e->hnext;
+    return e;
+}
+
+static void unlink_dns_cache(struct dns_cache *cache, struct dns_cache_entry *e) {
+    if (e->prev == NULL)
+        cache->head = e->next;
+    else
+        e->prev->next = e->next;
+    if (e->next == NULL)
+        cache->tail = e->prev;
+    else
+        e->next->prev = e->prev;
+}
+
+static void link_dns_cache(struct dns_cache *cache, struct dns_cache_entry *e) {
+    e->prev = NULL;
+    e->next = cache->head;
+    if (cache->head != NULL)
+        cache->head->prev = e;
+    cache->head = e;
+    if (cache->tail == NULL)
+        cache->tail = e;
+}
+
+static void free_dns_cache(struct dns_cache *cache, struct dns_cache_entry *e) {
+    struct dns_cache_entry **p = &cache->hash[e->hash & (DNS_CACHE_HASH - 1)];
+    while (*p != e)
+        p = &(*p)->hnext;
+    *p = e->hnext;
+    unlink_dns_cache(cache, e);
+    cache->memory -= e->size;
+    free(e);
+}
+
+static void put_dns_cache(const struct arguments *args, const char *qname,
+                          const uint8_t *data, const struct dns_message *msg) {
+    struct dns_cache *cache = &args->ctx->dns_cache;
+    uint16_t qtype = msg->question[0].qtype;
+    uint16_t qclass = msg->question[0].qclass;
+    int ancount = msg->answers;
+    uint16_t qlen = msg->qend;
+
+    uint32_t minttl = DNS_CACHE_TTL_MAX;
+    for (int a = 0; a < ancount; a++)
+        if (msg->answer[a].ttl < minttl)
+            minttl = msg->answer[a].ttl;
+    if (minttl == 0)
+        return;
+
+    size_t qsize = strlen(qname) + 1;
+    size_t alen = (size_t) (msg->aend - qlen);
+    size_t size = sizeof(struct dns_cache_entry) + qsize + alen;
+    if (size > DNS_CACHE_MEMORY / 64)
+        return;
+
+    struct dns_cache_entry *n = malloc(size);
+    if (n == NULL)
+        return;
+    n->qname = (char *) (n + 1);
+    n->answers = (uint8_t *) n->qname + qsize;
+    get_dns_key(qname, n->qname);
+    memcpy(n->answers, data + qlen, alen);
+    n->hash = hash_dns(n->qname, qtype, qclass);
+    n->qtype = qtype;
+    n->qclass = qclass;
+    n->qlen = qlen;
+    n->ancount = (uint16_t) ancount;
+    for (int a = 0; a < ancount; a++)
+        n->ttl[a] = (uint16_t) (msg->answer[a].rdata - 6 - qlen);
+    n->time = args->worker->batch;
+    n->expires = n->time + minttl * 1000LL;
+    n->reported = n->time;
+    n->size = size;
+    n->alen = alen;
+
+    if (pthread_mutex_lock(&cache->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct dns_cache_entry *e = find_dns_cache(cache, n->hash, n->qname, qtype, qclass);
+    if (e != NULL)
+        free_dns_cache(cache, e);
+
+    while (cache->tail != NULL && cache->memory + size > DNS_CACHE_MEMORY)
+        free_dns_cache(cache, cache->tail);
+
+    struct dns_cache_entry **slot = &cache->hash[n->hash & (DNS_CACHE_HASH - 1)];
+    n->hnext = *slot;
+    *slot = n;
+    link_dns_cache(cache, n);
+    cache->memory += size;
+
+    if (pthread_mutex_unlock(&cache->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    log_android(ANDROID_LOG_DEBUG, "DNS cached qname %s qtype %d ttl %u answers %d",
+                n->qname, qtype, minttl, ancount);
+}
+
+int answer_dns(const struct arguments *args,
+               const uint8_t *pkt, const uint8_t *payload,
+               const uint8_t *data, size_t datalen, jint uid) {
+    struct dns_cache *cache = &args->ctx->dns_cache;
+    const uint8_t version = (*pkt) >> 4;
+    const struct iphdr *ip4 = (struct iphdr *) pkt;
+    const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
+    const struct udphdr *udphdr = (struct udphdr *) payload;
+
+    // Reply flow
+    struct udp_session flow;
+    memset(&flow, 0, sizeof(struct udp_session));
+    flow.time = time(NULL);
+    flow.uid = uid;
+    flow.version = version;
+    flow.mss = (uint16_t) (version == 4 ? UDP4_MAXMSG : UDP6_MAXMSG);
+    if (version == 4) {
+        flow.saddr.ip4 = (__be32) ip4->saddr;
+        flow.daddr.ip4 = (__be32) ip4->daddr;
+    } else {
+        memcpy(&flow.saddr.ip6, &ip6->ip6_src, 16);
+        memcpy(&flow.daddr.ip6, &ip6->ip6_dst, 16);
     }
-    ptr++;
+    flow.source = udphdr->source;
+    flow.dest = udphdr->dest;
+    flow.state = UDP_ACTIVE;
+
+    uint16_t qtype;
+    uint16_t qclass;
+    char qname[DNS_QNAME_MAX + 1];
+    int qlen = get_dns_query(args, &flow, data, datalen, &qtype, &qclass, qname);
+    if (qlen < 0 || ntohs(((struct dns_header *) data)->q_count) != 1 ||
+        is_domain_blocked(args, qname))
+        return -1;
+
+    char key[DNS_QNAME_MAX + 1];
+    get_dns_key(qname, key);
+    uint32_t hash = hash_dns(key, qtype, qclass);
+    long long now = args->worker->batch;
+
+    if (pthread_mutex_lock(&cache->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-    if (len > 0 || noff == 0) {
-        log_android(ANDROID_LOG_ERROR, "DNS qname invalid len %d noff %d", len, noff);
+    struct dns_cache_entry *e = find_dns_cache(cache, hash, key, qtype, qclass);
+    if (e != NULL && now >= e->expires) {
+        free_dns_cache(cache, e);
+        e = NULL;
+    }
+
+    // Compression pointers in the answers need the question at the same place
+    if (e == NULL || e->qlen != qlen) {
+        if (pthread_mutex_unlock(&cache->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
         return -1;
     }
 
-    *(qname + noff - 1) = 0;
-    log_android(ANDROID_LOG_DEBUG, "qname %s", qname);
+    // Build response from the query and the cached answers
+    size_t size = qlen + e->alen;
+    size_t rlen = size;
+    uint8_t *response = alloc_buffer(args->worker, size);
+    memcpy(response, data, (size_t) qlen);
+    memcpy(response + qlen, e->answers, e->alen);
+
+    struct dns_header *rh = (struct dns_header *) response;
+    rh->qr = 1;
+    rh->aa = 0;
+    rh->tc = 0;
+    rh->ra = 1;
+    rh->z = 0;
+    rh->ad = 0;
+    rh->rcode = 0;
+    rh->ans_count = htons(e->ancount);
+    rh->auth_count = 0;
+    rh->add_count = 0;
+
+    uint32_t elapsed = (uint32_t) ((now - e->time) / 1000);
+    for (int a = 0; a < e->ancount; a++) {
+        uint32_t *ttl = (uint32_t *) (response + qlen + e->ttl[a]);
+        uint32_t t = ntohl(*ttl);
+        *ttl = htonl(t > elapsed ? t - elapsed : 0);
+    }
+
+    int report = (now - e->reported > DNS_CACHE_REPORT);
+    if (report)
+        e->reported = now;
+
+    unlink_dns_cache(cache, e);
+    link_dns_cache(cache, e);
+
+    if (pthread_mutex_unlock(&cache->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    log_android(ANDROID_LOG_INFO, "DNS cache hit qname %s qtype %d report %d", qname, qtype, report);
+
+    // Let Java know the name was resolved again
+    if (report)
+        parse_dns_response(args, &flow, response, &rlen);
+
+    if (write_udp(args, &flow, response, rlen) < 0)
+        log_android(ANDROID_LOG_WARN, "DNS cache response not written");
 
-    return (c ? off : ptr);
+    free_buffer(args->worker, response, size);
+    return 0;
+}
+
+void clear_dns_cache(struct context *ctx) {
+    struct dns_cache *cache = &ctx->dns_cache;
+    if (pthread_mutex_lock(&cache->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    while (cache->tail != NULL)
+        free_dns_cache(cache, cache->tail);
+
+    if (pthread_mutex_unlock(&cache->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 }
 
 void parse_dns_response(const struct arguments *args, const struct udp_session *u,
                         const uint8_t *data, size_t *datalen) {
-    if (*datalen < sizeof(struct dns_header) + 1) {
-        log_android(ANDROID_LOG_WARN, "DNS response length %d", *datalen);
+    struct dns_message msg;
+    if (parse_dns(data, *datalen, &msg) < 0)
         return;
-    }
 
-    // Check if standard DNS query
-    // TODO multiple qnames
+    // Check if standard DNS response
     struct dns_header *dns = (struct dns_header *) data;
-    int qcount = ntohs(dns->q_count);
-    int acount = ntohs(dns->ans_count);
-    if (dns->qr == 1 && dns->opcode == 0 && qcount > 0 && acount > 0) {
-        log_android(ANDROID_LOG_DEBUG, "DNS response qcount %d acount %d", qcount, acount);
-        if (qcount > 1)
-            log_android(ANDROID_LOG_WARN, "DNS response qcount %d acount %d", qcount, acount);
-
-        // http://tools.ietf.org/html/rfc1035
-        char name[DNS_QNAME_MAX + 1];
-        int32_t off = sizeof(struct dns_header);
-
-        uint16_t qtype;
-        uint16_t qclass;
-        char qname[DNS_QNAME_MAX + 1];
-
-        for (int q = 0; q < 1; q++) {
-            off = get_qname(data, *datalen, (uint16_t) off, name);
-            if (off > 0 && off + 4 <= *datalen) {
-                // TODO multiple qnames?
-                if (q == 0) {
-                    strcpy(qname, name);
-                    qtype = ntohs(*((uint16_t *) (data + off)));
-                    qclass = ntohs(*((uint16_t *) (data + off + 2)));
-                    log_android(ANDROID_LOG_DEBUG,
-                                "DNS question %d qtype %d qclass %d qname %s",
-                                q, qtype, qclass, qname);
-                }
-                off += 4;
-            } else {
-                log_android(ANDROID_LOG_WARN,
-                            "DNS response Q invalid off %d datalen %d", off, *datalen);
-                return;
-            }
+    if (dns->qr == 1 && dns->opcode == 0 && msg.qcount > 0 && msg.acount > 0) {
+        log_android(ANDROID_LOG_DEBUG, "DNS response qcount %d acount %d edns %d",
+                    msg.qcount, msg.acount, msg.edns);
+
+        char qname[DNS_QUESTIONS_MAX][DNS_QNAME_MAX + 1];
+        for (int q = 0; q < msg.questions; q++) {
+            get_qname(data, *datalen, msg.question[q].name, qname[q]);
+            log_android(ANDROID_LOG_DEBUG,
+                        "DNS question %d qtype %d qclass %d qname %s",
+                        q, msg.question[q].qtype, msg.question[q].qclass, qname[q]);
         }
 
-        int32_t aoff = off;
-        for (int a = 0; a < acount; a++) {
-            off = get_qname(data, *datalen, (uint16_t) off, name);
-            if (off > 0 && off + 10 <= *datalen) {
-                uint16_t qtype = ntohs(*((uint16_t *) (data + off)));
-                uint16_t qclass = ntohs(*((uint16_t *) (data + off + 2)));
-                uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
-                uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
-                off += 10;
-
-                if (off + rdlength <= *datalen) {
-                    if (qclass == DNS_QCLASS_IN &&
-                        (qtype == DNS_QTYPE_A || qtype == DNS_QTYPE_AAAA)) {
-
-                        char rd[INET6_ADDRSTRLEN + 1];
-                        if (qtype == DNS_QTYPE_A)
-                            inet_ntop(AF_INET, data + off, rd, sizeof(rd));
-                        else if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_AAAA)
-                            inet_ntop(AF_INET6, data + off, rd, sizeof(rd));
-
-                        dns_resolved(args, qname, name, rd, ttl);
-                        log_android(ANDROID_LOG_DEBUG,
-                                    "DNS answer %d qname %s qtype %d ttl %d data %s",
-                                    a, name, qtype, ttl, rd);
-
-                    } else
-                        log_android(ANDROID_LOG_DEBUG,
-                                    "DNS answer %d qname %s qclass %d qtype %d ttl %d length %d",
-                                    a, name, qclass, qtype, ttl, rdlength);
-
-                    off += rdlength;
-                } else {
-                    log_android(ANDROID_LOG_WARN,
-                                "DNS response A invalid off %d rdlength %d datalen %d",
-                                off, rdlength, *datalen);
-                    return;
-                }
-            } else {
-                log_android(ANDROID_LOG_WARN,
-                            "DNS response A invalid off %d datalen %d", off, *datalen);
-                return;
-            }
+        // Report addresses with the question at the head of their CNAME chain
+        char name[DNS_QNAME_MAX + 1];
+        for (int a = 0; a < msg.answers; a++) {
+            const struct dns_record *answer = &msg.answer[a];
+            get_qname(data, *datalen, answer->name, name);
+            if (answer->qclass == DNS_QCLASS_IN &&
+                ((answer->qtype == DNS_QTYPE_A && answer->rdlength == 4) ||
+                 (answer->qtype == DNS_QTYPE_AAAA && answer->rdlength == 16))) {
+
+                char rd[INET6_ADDRSTRLEN + 1];
+                inet_ntop(answer->qtype == DNS_QTYPE_A ? AF_INET : AF_INET6,
+                          data + answer->rdata, rd, sizeof(rd));
+
+                int q = get_dns_question(data, &msg, answer->name);
+                queue_dns_resolved(args, qname[q], name, rd, answer->ttl);
+                log_android(ANDROID_LOG_DEBUG,
+                            "DNS answer %d qname %s qtype %d ttl %d data %s",
+                            a, name, answer->qtype, answer->ttl, rd);
+            } else
+                log_android(ANDROID_LOG_DEBUG,
+                            "DNS answer %d qname %s qclass %d qtype %d ttl %d length %d",
+                            a, name, answer->qclass, answer->qtype, answer->ttl, answer->rdlength);
         }
 
-        if (qcount > 0 && is_domain_blocked(args, qname)) {
-            dns->qr = 1;
-            dns->aa = 0;
-            dns->tc = 0;
-            dns->rd = 0;
-            dns->ra = 0;
-            dns->z = 0;
-            dns->ad = 0;
-            dns->cd = 0;
-            dns->rcode = (uint16_t) args->rcode;
-            dns->ans_count = 0;
-            dns->auth_count = 0;
-            dns->add_count = 0;
-            *datalen = aoff;
-
-            char source[INET6_ADDRSTRLEN + 1];
-            char dest[INET6_ADDRSTRLEN + 1];
-            if (u->version == 4) {
-                inet_ntop(AF_INET, &u->saddr.ip4, source, sizeof(source));
-                inet_ntop(AF_INET, &u->daddr.ip4, dest, sizeof(dest));
-            } else {
-                inet_ntop(AF_INET6, &u->saddr.ip6, source, sizeof(source));
-                inet_ntop(AF_INET6, &u->daddr.ip6, dest, sizeof(dest));
+        for (int q = 0; q < msg.questions; q++)
+            if (is_domain_blocked(args, qname[q])) {
+                dns->qr = 1;
+                dns->aa = 0;
+                dns->tc = 0;
+                dns->rd = 0;
+                dns->ra = 0;
+                dns->z = 0;
+                dns->ad = 0;
+                dns->cd = 0;
+                dns->rcode = (uint16_t) args->rcode;
+                dns->ans_count = 0;
+                dns->auth_count = 0;
+                dns->add_count = 0;
+                *datalen = msg.qend;
+
+                // Log qname
+                char blocked[DNS_QNAME_MAX + 40 + 1];
+                sprintf(blocked, "qtype %d qname %s rcode %d",
+                        msg.question[q].qtype, qname[q], dns->rcode);
+                log_packet(args, u->version, IPPROTO_UDP, "",
+                           &u->saddr, ntohs(u->source), &u->daddr, ntohs(u->dest),
+                           blocked, 0, 0);
+                return;
             }
 
-            // Log qname
-            char name[DNS_QNAME_MAX + 40 + 1];
-            sprintf(name, "qtype %d qname %s rcode %d", qtype, qname, dns->rcode);
-            jobject objPacket = create_packet(
-                    args, u->version, IPPROTO_UDP, "",
-                    source, ntohs(u->source), dest, ntohs(u->dest),
-                    name, 0, 0);
-            log_packet(args, objPacket);
-        }
-    } else if (acount > 0)
+        if (msg.qcount == 1 && dns->rcode == 0 && !dns->tc &&
+            msg.acount == msg.answers && msg.answers <= DNS_CACHE_ANSWERS)
+            put_dns_cache(args, qname[0], data, &msg);
+    } else if (msg.acount > 0)
         log_android(ANDROID_LOG_WARN,
                     "DNS response qr %d opcode %d qcount %d acount %d",
-                    dns->qr, dns->opcode, qcount, acount);
+                    dns->qr, dns->opcode, msg.qcount, msg.acount);
 }
 
 int get_dns_query(const struct arguments *args, const struct udp_session *u,
                   const uint8_t *data, const size_t datalen,
                   uint16_t *qtype, uint16_t *qclass, char *qname) {
-    if (datalen < sizeof(struct dns_header) + 1) {
-        log_android(ANDROID_LOG_WARN, "DNS query length %d", datalen);
+    struct dns_message msg;
+    if (parse_dns(data, datalen, &msg) < 0)
         return -1;
-    }
 
-    // Check if standard DNS query
-    // TODO multiple qnames
+    // Check if standard DNS query, EDNS0 and other additional records are allowed
     const struct dns_header *dns = (struct dns_header *) data;
-    int qcount = ntohs(dns->q_count);
-    if (dns->qr == 0 && dns->opcode == 0 && qcount > 0) {
-        if (qcount > 1)
-            log_android(ANDROID_LOG_WARN, "DNS query qcount %d", qcount);
-
-        // http://tools.ietf.org/html/rfc1035
-        int off = get_qname(data, datalen, sizeof(struct dns_header), qname);
-        if (off > 0 && off + 4 == datalen) {
-            *qtype = ntohs(*((uint16_t *) (data + off)));
-            *qclass = ntohs(*((uint16_t *) (data + off + 2)));
-            return 0;
-        } else
-            log_android(ANDROID_LOG_WARN, "DNS query invalid off %d datalen %d", off, datalen);
+    if (dns->qr == 0 && dns->opcode == 0 && msg.qcount > 0) {
+        if (msg.qcount > 1)
+            log_android(ANDROID_LOG_WARN, "DNS query qcount %d", msg.qcount);
+
+        if (get_qname(data, datalen, msg.question[0].name, qname) > 0) {
+            *qtype = msg.question[0].qtype;
+            *qclass = msg.question[0].qclass;
+            return msg.qend;
+        }
     }
 
     return -1;
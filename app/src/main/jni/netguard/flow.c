@@ -0,0 +1,147 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Sessions are kept in a list for iteration and in a hash table by 5-tuple for lookups
+// ICMP sessions have no ports and can have stopped duplicates
+
+static void get_key(const struct ng_session *s,
+                    int *version, const void **saddr, __be16 *sport,
+                    const void **daddr, __be16 *dport) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        *version = s->icmp.version;
+        *saddr = &s->icmp.saddr;
+        *daddr = &s->icmp.daddr;
+        *sport = 0;
+        *dport = 0;
+    } else if (s->protocol == IPPROTO_UDP) {
+        *version = s->udp.version;
+        *saddr = &s->udp.saddr;
+        *daddr = &s->udp.daddr;
+        *sport = s->udp.source;
+        *dport = s->udp.dest;
+    } else {
+        *version = s->tcp.version;
+        *saddr = &s->tcp.saddr;
+        *daddr = &s->tcp.daddr;
+        *sport = s->tcp.source;
+        *dport = s->tcp.dest;
+    }
+}
+
+uint32_t get_flow_hash(int protocol, int version,
+                       const void *saddr, __be16 sport,
+                       const void *daddr, __be16 dport) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    size_t alen = (version == 4 ? 4 : 16);
+    const uint8_t *s = (const uint8_t *) saddr;
+    const uint8_t *d = (const uint8_t *) daddr;
+    for (size_t i = 0; i < alen; i++) {
+        h = (h ^ s[i]) * 16777619u;
+        h = (h ^ d[i]) * 16777619u;
+    }
+    h = (h ^ (uint8_t) protocol) * 16777619u;
+    h = (h ^ (sport & 0xFF)) * 16777619u;
+    h = (h ^ (sport >> 8)) * 16777619u;
+    h = (h ^ (dport & 0xFF)) * 16777619u;
+    h = (h ^ (dport >> 8)) * 16777619u;
+    return h;
+}
+
+static uint32_t hash_flow(int protocol, int version,
+                          const void *saddr, __be16 sport,
+                          const void *daddr, __be16 dport) {
+    return get_flow_hash(protocol, version, saddr, sport, daddr, dport) & (SESSION_HASH_SIZE - 1);
+}
+
+struct ng_session *find_session(const struct worker *worker,
+                                int protocol, int version,
+                                const void *saddr, __be16 sport,
+                                const void *daddr, __be16 dport) {
+    size_t alen = (version == 4 ? 4 : 16);
+    struct ng_session *s = worker->session_hash[hash_flow(protocol, version,
+                                                          saddr, sport, daddr, dport)];
+    while (s != NULL) {
+        int sversion;
+        const void *ssaddr, *sdaddr;
+        __be16 ssport, sdport;
+        get_key(s, &sversion, &ssaddr, &ssport, &sdaddr, &sdport);
+        if (s->protocol == protocol && sversion == version &&
+            ssport == sport && sdport == dport &&
+            memcmp(ssaddr, saddr, alen) == 0 && memcmp(sdaddr, daddr, alen) == 0 &&
+            !((protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) && s->icmp.stop))
+            return s;
+        s = s->hnext;
+    }
+    return NULL;
+}
+
+void add_session(struct worker *worker, struct ng_session *s) {
+    int version;
+    const void *saddr, *daddr;
+    __be16 sport, dport;
+    get_key(s, &version, &saddr, &sport, &daddr, &dport);
+    uint32_t h = hash_flow(s->protocol, version, saddr, sport, daddr, dport);
+
+    s->hnext = worker->session_hash[h];
+    worker->session_hash[h] = s;
+
+    s->sndbuf = 0;
+    s->tnext = NULL;
+    s->tpprev = NULL;
+    s->deadline = 0;
+    s->dirty = 0;
+    s->active = 0;
+    s->evicted = 0;
+
+    s->prev = NULL;
+    s->next = worker->ng_session;
+    if (s->next != NULL)
+        s->next->prev = s;
+    worker->ng_session = s;
+
+    start_session(worker, s);
+}
+
+void remove_session(struct worker *worker, struct ng_session *s) {
+    int version;
+    const void *saddr, *daddr;
+    __be16 sport, dport;
+    get_key(s, &version, &saddr, &sport, &daddr, &dport);
+    uint32_t h = hash_flow(s->protocol, version, saddr, sport, daddr, dport);
+
+    struct ng_session **p = &worker->session_hash[h];
+    while (*p != NULL && *p != s)
+        p = &(*p)->hnext;
+    if (*p == s)
+        *p = s->hnext;
+    else
+        log_android(ANDROID_LOG_ERROR, "Session not in hash table");
+
+    if (s->prev == NULL)
+        worker->ng_session = s->next;
+    else
+        s->prev->next = s->next;
+    if (s->next != NULL)
+        s->next->prev = s->prev;
+
+    cancel_session(worker, s);
+}
@@ -0,0 +1,138 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Compiled hosts file, see ServiceSinkhole.compileHosts
+// A header followed by the sorted 64 bits FNV-1a fingerprints of the blocked domain names
+
+static int64_t hash_domain(const char *name) {
+    // FNV-1a
+    uint64_t h = 14695981039346656037ull;
+    for (const uint8_t *p = (const uint8_t *) name; *p; p++)
+        h = (h ^ *p) * 1099511628211ull;
+    return (int64_t) h;
+}
+
+void free_hosts(struct hosts *hosts) {
+    if (hosts == NULL)
+        return;
+    if (munmap(hosts->map, hosts->length))
+        log_android(ANDROID_LOG_ERROR, "munmap error %d: %s", errno, strerror(errno));
+    free(hosts);
+}
+
+static struct hosts *map_hosts(const char *path) {
+    int fd = open(path, O_RDONLY);
+    if (fd < 0) {
+        log_android(ANDROID_LOG_ERROR, "open %s error %d: %s", path, errno, strerror(errno));
+        return NULL;
+    }
+
+    struct stat st;
+    if (fstat(fd, &st)) {
+        log_android(ANDROID_LOG_ERROR, "fstat %s error %d: %s", path, errno, strerror(errno));
+        close(fd);
+        return NULL;
+    }
+
+    if (st.st_size < sizeof(struct hosts_header)) {
+        log_android(ANDROID_LOG_ERROR, "Invalid hosts file length %ld", (long) st.st_size);
+        close(fd);
+        return NULL;
+    }
+
+    void *map = mmap(NULL, (size_t) st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+    if (close(fd))
+        log_android(ANDROID_LOG_ERROR, "close %s error %d: %s", path, errno, strerror(errno));
+    if (map == MAP_FAILED) {
+        log_android(ANDROID_LOG_ERROR, "mmap %s error %d: %s", path, errno, strerror(errno));
+        return NULL;
+    }
+
+    const struct hosts_header *hdr = (const struct hosts_header *) map;
+    if (hdr->magic != HOSTS_MAGIC || hdr->version != HOSTS_VERSION ||
+        sizeof(struct hosts_header) + (size_t) hdr->count * sizeof(int64_t) != st.st_size) {
+        log_android(ANDROID_LOG_ERROR, "Invalid hosts file magic %x version %u count %u",
+                    hdr->magic, hdr->version, hdr->count);
+        munmap(map, (size_t) st.st_size);
+        return NULL;
+    }
+
+    // Lookups are binary searches
+    madvise(map, (size_t) st.st_size, MADV_RANDOM);
+
+    struct hosts *hosts = malloc(sizeof(struct hosts));
+    hosts->map = map;
+    hosts->length = (size_t) st.st_size;
+    hosts->hash = (const int64_t *) ((const uint8_t *) map + sizeof(struct hosts_header));
+    hosts->count = hdr->count;
+    return hosts;
+}
+
+int set_hosts(struct context *ctx, const char *path) {
+    struct hosts *hosts = (path == NULL ? NULL : map_hosts(path));
+
+    if (pthread_mutex_lock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct hosts *old = ctx->hosts;
+    ctx->hosts = hosts;
+
+    if (pthread_mutex_unlock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    free_hosts(old);
+
+    int count = (hosts == NULL ? 0 : (int) hosts->count);
+    log_android(ANDROID_LOG_WARN, "Hosts blocked %d", count);
+    return count;
+}
+
+jboolean is_domain_blocked(const struct arguments *args, const char *name) {
+    struct context *ctx = args->ctx;
+    long long start = metric_start(ctx);
+    int64_t h = hash_domain(name);
+    jboolean blocked = 0;
+
+    if (pthread_mutex_lock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    if (ctx->hosts != NULL) {
+        size_t lo = 0;
+        size_t hi = ctx->hosts->count;
+        while (lo < hi) {
+            size_t mid = lo + (hi - lo) / 2;
+            int64_t m = ctx->hosts->hash[mid];
+            if (m == h) {
+                blocked = 1;
+                break;
+            } else if (m < h)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+    }
+
+    if (pthread_mutex_unlock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    metric_end(ctx, METRIC_IS_DOMAIN_BLOCKED, start);
+    return blocked;
+}
@@ -34,13 +34,107 @@ uint16_t get_default_mss(int version) {
         return (uint16_t) (get_mtu() - sizeof(struct ip6_hdr) - sizeof(struct tcphdr));
 }
 
+// With more than one worker the first one reads the tun and passes packets
+// to the worker owning the flow, so that each session is handled by one thread only
+
+static struct worker *get_worker(const struct arguments *args,
+                                 const uint8_t *pkt, size_t length) {
+    struct context *ctx = args->ctx;
+    if (ctx->workers <= 1)
+        return args->worker;
+
+    int protocol;
+    const void *saddr;
+    const void *daddr;
+    const uint8_t *payload;
+    uint8_t version = (*pkt) >> 4;
+    if (version == 4 && length >= sizeof(struct iphdr)) {
+        const struct iphdr *ip4hdr = (const struct iphdr *) pkt;
+        protocol = ip4hdr->protocol;
+        saddr = &ip4hdr->saddr;
+        daddr = &ip4hdr->daddr;
+        payload = pkt + ip4hdr->ihl * 4;
+    } else if (version == 6 && length >= sizeof(struct ip6_hdr)) {
+        const struct ip6_hdr *ip6hdr = (const struct ip6_hdr *) pkt;
+        protocol = ip6hdr->ip6_nxt;
+        saddr = &ip6hdr->ip6_src;
+        daddr = &ip6hdr->ip6_dst;
+        payload = pkt + sizeof(struct ip6_hdr);
+    } else
+        return args->worker; // handle_ip will drop it
+
+    // Ports only when directly after the IP header, extension headers vary per packet
+    __be16 sport = 0;
+    __be16 dport = 0;
+    if ((protocol == IPPROTO_TCP || protocol == IPPROTO_UDP) && payload + 4 <= pkt + length) {
+        memcpy(&sport, payload, 2);
+        memcpy(&dport, payload + 2, 2);
+    } else if (protocol != IPPROTO_ICMP && protocol != IPPROTO_ICMPV6)
+        protocol = 0;
+
+    uint32_t h = get_flow_hash(protocol, version, saddr, sport, daddr, dport);
+    return &ctx->worker[(h >> 16) % ctx->workers]; // low bits select the session hash bucket
+}
+
+static int dispatch_ip(struct worker *worker, const uint8_t *pkt, size_t length) {
+    // Single producer, single consumer, slots are reused
+    uint32_t head = worker->inbound_head;
+    uint32_t tail = __atomic_load_n(&worker->inbound_tail, __ATOMIC_ACQUIRE);
+    if (head - tail >= WORKER_QUEUE_SIZE) {
+        worker->inbound_dropped++;
+        log_android(ANDROID_LOG_WARN, "Worker %d queue full dropped %u",
+                    worker->id, worker->inbound_dropped);
+        return -1;
+    }
+
+    int slot = head & (WORKER_QUEUE_SIZE - 1);
+    if (worker->inbound[slot] == NULL) {
+        worker->inbound[slot] = malloc(get_mtu());
+        if (worker->inbound[slot] == NULL) {
+            log_android(ANDROID_LOG_ERROR, "Worker %d queue malloc failed", worker->id);
+            return -1;
+        }
+    }
+
+    memcpy(worker->inbound[slot], pkt, length);
+    worker->inbound_len[slot] = length;
+    __atomic_store_n(&worker->inbound_head, head + 1, __ATOMIC_RELEASE);
+    return 0;
+}
+
+void wake_worker(struct worker *worker) {
+    uint64_t one = 1;
+    if (worker->wakefd >= 0 && write(worker->wakefd, &one, sizeof(one)) < 0 && errno != EAGAIN)
+        log_android(ANDROID_LOG_WARN, "Worker %d eventfd write error %d: %s",
+                    worker->id, errno, strerror(errno));
+}
+
+void check_inbound(const struct arguments *args, const int epoll_fd, int maxsessions) {
+    struct worker *worker = args->worker;
+    uint32_t head = __atomic_load_n(&worker->inbound_head, __ATOMIC_ACQUIRE);
+    uint32_t tail = worker->inbound_tail;
+    int count = 0;
+    while (tail != head) {
+        int slot = tail & (WORKER_QUEUE_SIZE - 1);
+        handle_ip(args, worker->inbound[slot], worker->inbound_len[slot],
+                  epoll_fd, maxsessions);
+        count++;
+        tail++;
+        __atomic_store_n(&worker->inbound_tail, tail, __ATOMIC_RELEASE);
+    }
+    if (count)
+        log_android(ANDROID_LOG_DEBUG, "Worker %d handled %d packets", worker->id, count);
+}
+
 int check_tun(const struct arguments *args,
               const struct epoll_event *ev,
               const int epoll_fd,
-              int sessions, int maxsessions) {
+              int maxsessions) {
     // Check tun error
     if (ev->events & EPOLLERR) {
         log_android(ANDROID_LOG_ERROR, "tun %d exception", args->tun);
+        if (args->worker->id != 0)
+            return -1; // reported by the tun reader
         if (fcntl(args->tun, F_GETFL) < 0) {
             log_android(ANDROID_LOG_ERROR, "fcntl tun %d F_GETFL error %d: %s",
                         args->tun, errno, strerror(errno));
@@ -51,50 +145,123 @@ int check_tun(const struct arguments *args,
         return -1;
     }
 
+    // Check tun write
+    if (ev->events & EPOLLOUT)
+        flush_tun(args);
+
     // Check tun read
     if (ev->events & EPOLLIN) {
-        uint8_t *buffer = malloc(get_mtu());
-        ssize_t length = read(args->tun, buffer, get_mtu());
-        if (length < 0) {
-            free(buffer);
+        // The tun is nonblocking, read until drained or the batch is full
+        int count = 0;
+        int woken[WORKER_MAX];
+        memset(woken, 0, sizeof(woken));
+        uint8_t *buffer = alloc_buffer(args->worker, get_mtu());
+        while (count < TUN_READ_BATCH) {
+            ssize_t length = read(args->tun, buffer, get_mtu());
+            if (length < 0) {
+                if (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR)
+                    // Retry later
+                    break;
 
-            log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
-                        args->tun, errno, strerror(errno));
-            if (errno == EINTR || errno == EAGAIN)
-                // Retry later
-                return 0;
-            else {
+                free_buffer(args->worker, buffer, get_mtu());
+                log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
+                            args->tun, errno, strerror(errno));
                 report_exit(args, "tun %d read error %d: %s",
                             args->tun, errno, strerror(errno));
                 return -1;
+            } else if (length > 0) {
+                count++;
+
+                // Write pcap record
+                if (pcap_file != NULL)
+                    write_pcap_rec(buffer, (size_t) length);
+
+                if (length > max_tun_msg) {
+                    max_tun_msg = length;
+                    log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
+                }
+
+                // Handle IP from tun
+                struct worker *worker = get_worker(args, buffer, (size_t) length);
+                if (worker == args->worker)
+                    handle_ip(args, buffer, (size_t) length, epoll_fd, maxsessions);
+                else if (dispatch_ip(worker, buffer, (size_t) length) == 0)
+                    woken[worker->id] = 1;
+            } else {
+                // tun eof
+                free_buffer(args->worker, buffer, get_mtu());
+
+                log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
+                report_exit(args, "tun %d empty read", args->tun);
+                return -1;
             }
-        } else if (length > 0) {
-            // Write pcap record
-            if (pcap_file != NULL)
-                write_pcap_rec(buffer, (size_t) length);
-
-            if (length > max_tun_msg) {
-                max_tun_msg = length;
-                log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
-            }
+        }
+        free_buffer(args->worker, buffer, get_mtu());
 
-            // Handle IP from tun
-            handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
+        // Wake up workers once per batch
+        for (int i = 1; i < args->ctx->workers; i++)
+            if (woken[i])
+                wake_worker(&args->ctx->worker[i]);
 
-            free(buffer);
-        } else {
-            // tun eof
-            free(buffer);
+        log_android(ANDROID_LOG_DEBUG, "tun %d read %d packets", args->tun, count);
+    }
 
-            log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
-            report_exit(args, "tun %d empty read", args->tun);
+    return 0;
+}
+
+// Outgoing packets are queued and written at the end of an event batch
+// The queue takes ownership of the buffer unless -1 is returned
+
+ssize_t write_tun(const struct arguments *args, uint8_t *buffer, size_t len) {
+    struct worker *worker = args->worker;
+    if (worker->tun_queued == TUN_QUEUE_SIZE) {
+        flush_tun(args);
+        if (worker->tun_queued == TUN_QUEUE_SIZE) {
+            errno = EAGAIN;
             return -1;
         }
     }
 
+    struct tun_packet *p = &worker->tun_queue[(worker->tun_head + worker->tun_queued) % TUN_QUEUE_SIZE];
+    p->buffer = buffer;
+    p->len = len;
+    worker->tun_queued++;
+    return len;
+}
+
+int flush_tun(const struct arguments *args) {
+    struct worker *worker = args->worker;
+    while (worker->tun_queued > 0) {
+        struct tun_packet *p = &worker->tun_queue[worker->tun_head];
+        ssize_t res = write(args->tun, p->buffer, p->len);
+        if (res < 0 && (errno == EAGAIN || errno == EWOULDBLOCK)) {
+            log_android(ANDROID_LOG_WARN, "tun %d full queued %d", args->tun, worker->tun_queued);
+            return worker->tun_queued;
+        }
+
+        if (res < 0)
+            log_android(ANDROID_LOG_ERROR, "tun %d write error %d: %s",
+                        args->tun, errno, strerror(errno));
+        else if (res != p->len)
+            log_android(ANDROID_LOG_ERROR, "tun %d write %d/%d", args->tun, res, p->len);
+
+        free_buffer(worker, p->buffer, p->len);
+        worker->tun_head = (worker->tun_head + 1) % TUN_QUEUE_SIZE;
+        worker->tun_queued--;
+    }
     return 0;
 }
 
+void clear_tun(struct worker *worker) {
+    while (worker->tun_queued > 0) {
+        struct tun_packet *p = &worker->tun_queue[worker->tun_head];
+        free_buffer(worker, p->buffer, p->len);
+        worker->tun_head = (worker->tun_head + 1) % TUN_QUEUE_SIZE;
+        worker->tun_queued--;
+    }
+    worker->tun_head = 0;
+}
+
 // https://en.wikipedia.org/wiki/IPv6_packet#Extension_headers
 // http://www.iana.org/assignments/protocol-numbers/protocol-numbers.xhtml
 int is_lower_layer(int protocol) {
@@ -119,7 +286,7 @@ int is_upper_layer(int protocol) {
 void handle_ip(const struct arguments *args,
                const uint8_t *pkt, const size_t length,
                const int epoll_fd,
-               int sessions, int maxsessions) {
+               int maxsessions) {
     uint8_t protocol;
     void *saddr;
     void *daddr;
@@ -265,24 +432,39 @@ void handle_ip(const struct arguments *args,
 
     flags[flen] = 0;
 
-    // Limit number of sessions
-    if (sessions >= maxsessions) {
-        if ((protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) ||
-            (protocol == IPPROTO_UDP && !has_udp_session(args, pkt, payload)) ||
-            (protocol == IPPROTO_TCP && syn)) {
-            log_android(ANDROID_LOG_ERROR,
-                        "%d of max %d sessions, dropping version %d protocol %d",
-                        sessions, maxsessions, protocol, version);
-            return;
-        }
+    // Look up the UDP session once, a hash lookup per packet
+    int udp_session = (protocol == IPPROTO_UDP && has_udp_session(args, pkt, payload));
+
+    int create = (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6 ||
+                  (protocol == IPPROTO_UDP && !udp_session) ||
+                  (protocol == IPPROTO_TCP && syn));
+
+    // Limit number of sessions, counting the sessions created and evicted by this batch
+    struct worker *worker = args->worker;
+    int sessions = worker->isessions + worker->usessions + worker->tsessions;
+    if (create && sessions >= maxsessions && evict_session(args, -1) < 0) {
+        log_android(ANDROID_LOG_ERROR,
+                    "%d of max %d sessions, dropping version %d protocol %d",
+                    sessions, maxsessions, version, protocol);
+        return;
     }
 
     // Get uid
     jint uid = -1;
-    if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6 ||
-        (protocol == IPPROTO_UDP && !has_udp_session(args, pkt, payload)) ||
-        (protocol == IPPROTO_TCP && syn))
-        uid = get_uid(version, protocol, saddr, sport, daddr, dport);
+    if (create)
+        uid = get_uid(version, protocol, saddr, sport, daddr, dport, args->worker->batch);
+
+    // Limit number of sessions per uid, only reachable above the quota in total
+    int quota = maxsessions * SESSION_UID_LIMIT / 100;
+    if (create && uid >= 0 && sessions >= quota) {
+        int usessions = get_uid_sessions(args->worker, uid);
+        if (usessions >= quota && evict_session(args, uid) < 0) {
+            log_android(ANDROID_LOG_ERROR,
+                        "%d of max %d sessions uid %d, dropping version %d protocol %d",
+                        usessions, quota, uid, version, protocol);
+            return;
+        }
+    }
 
     log_android(ANDROID_LOG_DEBUG,
                 "Packet v%d %s/%u > %s/%u proto %d flags %s uid %d",
@@ -290,15 +472,15 @@ void handle_ip(const struct arguments *args,
 
     // Check if allowed
     int allowed = 0;
+    struct allowed redirect_buffer;
     struct allowed *redirect = NULL;
-    if (protocol == IPPROTO_UDP && has_udp_session(args, pkt, payload))
+    if (udp_session)
         allowed = 1; // could be a lingering/blocked session
     else if (protocol == IPPROTO_TCP && !syn)
         allowed = 1; // assume existing session
     else {
-        jobject objPacket = create_packet(
-                args, version, protocol, flags, source, sport, dest, dport, "", uid, 0);
-        redirect = is_address_allowed(args, objPacket);
+        redirect = get_allowed(args, version, protocol, flags, saddr, sport, daddr, dport,
+                               uid, &redirect_buffer);
         allowed = (redirect != NULL);
         if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
             redirect = NULL;
@@ -323,9 +505,13 @@ void handle_ip(const struct arguments *args,
     }
 }
 
+// The uid cache is shared by the workers
+static pthread_mutex_t uid_lock = PTHREAD_MUTEX_INITIALIZER;
+
 jint get_uid(const int version, const int protocol,
              const void *saddr, const uint16_t sport,
-             const void *daddr, const uint16_t dport) {
+             const void *daddr, const uint16_t dport,
+             long long since) {
     jint uid = -1;
 
     char source[INET6_ADDRSTRLEN + 1];
@@ -337,6 +523,9 @@ jint get_uid(const int version, const int protocol,
     gettimeofday(&time, NULL);
     long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
 
+    if (pthread_mutex_lock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
     // Check IPv6 table first
     if (version == 4) {
         int8_t saddr128[16];
@@ -351,17 +540,22 @@ jint get_uid(const int version, const int protocol,
         daddr128[11] = (uint8_t) 0xFF;
         memcpy(daddr128 + 12, daddr, 4);
 
-        uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport, source, dest, now);
+        uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport,
+                          source, dest, now, since);
         log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
                     version, protocol, source, sport, dest, dport, uid);
     }
 
     if (uid == -1) {
-        uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport, source, dest, now);
+        uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport,
+                          source, dest, now, since);
         log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
                     version, protocol, source, sport, dest, dport, uid);
     }
 
+    if (pthread_mutex_unlock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
     if (uid == -1)
         log_android(ANDROID_LOG_WARN, "uid v%d p%d %s/%u > %s/%u => not found",
                     version, protocol, source, sport, dest, dport);
@@ -372,138 +566,33 @@ jint get_uid(const int version, const int protocol,
     return uid;
 }
 
-int uid_cache_size = 0;
-struct uid_cache_entry *uid_cache = NULL;
-
 jint get_uid_sub(const int version, const int protocol,
                  const void *saddr, const uint16_t sport,
                  const void *daddr, const uint16_t dport,
                  const char *source, const char *dest,
-                 long now) {
+                 long now, long long since) {
     // NETLINK is not available on Android due to SELinux policies :-(
     // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
     // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
 
-    static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-
     // Check cache
-    for (int i = 0; i < uid_cache_size; i++)
-        if (now - uid_cache[i].time <= UID_MAX_AGE &&
-            uid_cache[i].version == version &&
-            uid_cache[i].protocol == protocol &&
-            uid_cache[i].sport == sport &&
-            (uid_cache[i].dport == dport || uid_cache[i].dport == 0) &&
-            (memcmp(uid_cache[i].saddr, saddr, version == 4 ? 4 : 16) == 0 ||
-             memcmp(uid_cache[i].saddr, zero, version == 4 ? 4 : 16) == 0) &&
-            (memcmp(uid_cache[i].daddr, daddr, version == 4 ? 4 : 16) == 0 ||
-             memcmp(uid_cache[i].daddr, zero, version == 4 ? 4 : 16) == 0)) {
-
-            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
-                        version, protocol, source, sport, dest, dport, uid_cache[i].uid);
-
-            if (protocol == IPPROTO_UDP)
-                return -2;
-            else
-                return uid_cache[i].uid;
-        }
-
-    // Get proc file name
-    char *fn = NULL;
-    if (protocol == IPPROTO_ICMP && version == 4)
-        fn = "/proc/net/icmp";
-    else if (protocol == IPPROTO_ICMPV6 && version == 6)
-        fn = "/proc/net/icmp6";
-    else if (protocol == IPPROTO_TCP)
-        fn = (version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6");
-    else if (protocol == IPPROTO_UDP)
-        fn = (version == 4 ? "/proc/net/udp" : "/proc/net/udp6");
-    else
-        return -1;
-
-    // Open proc file
-    FILE *fd = fopen(fn, "r");
-    if (fd == NULL) {
-        log_android(ANDROID_LOG_ERROR, "fopen %s error %d: %s", fn, errno, strerror(errno));
-        return -2;
-    }
-
-    jint uid = -1;
-
-    char line[250];
-    int fields;
-
-    char shex[16 * 2 + 1];
-    uint8_t _saddr[16];
-    int _sport;
-
-    char dhex[16 * 2 + 1];
-    uint8_t _daddr[16];
-    int _dport;
-
-    jint _uid;
-
-    // Scan proc file
-    int l = 0;
-    *line = 0;
-    int c = 0;
-    int ws = (version == 4 ? 1 : 4);
-    const char *fmt = (version == 4
-                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
-                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
-    while (fgets(line, sizeof(line), fd) != NULL) {
-        if (!l++)
-            continue;
-
-        fields = sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid);
-        if (fields == 5 && strlen(shex) == ws * 8 && strlen(dhex) == ws * 8) {
-            hex2bytes(shex, _saddr);
-            hex2bytes(dhex, _daddr);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
-
-            if (_sport == sport &&
-                (_dport == dport || _dport == 0) &&
-                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
-                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
-                uid = _uid;
-
-            for (; c < uid_cache_size; c++)
-                if (now - uid_cache[c].time > UID_MAX_AGE)
-                    break;
+    const struct uid_cache_entry *cached =
+            find_uid_cache(version, protocol, saddr, sport, daddr, dport, now);
+    if (cached != NULL) {
+        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
+                    version, protocol, source, sport, dest, dport, cached->uid);
 
-            if (c >= uid_cache_size) {
-                if (uid_cache_size == 0)
-                    uid_cache = malloc(sizeof(struct uid_cache_entry));
-                else
-                    uid_cache = realloc(uid_cache,
-                                        sizeof(struct uid_cache_entry) *
-                                        (uid_cache_size + 1));
-                c = uid_cache_size;
-                uid_cache_size++;
-            }
-
-            uid_cache[c].version = (uint8_t) version;
-            uid_cache[c].protocol = (uint8_t) protocol;
-            memcpy(uid_cache[c].saddr, _saddr, (size_t) (ws * 4));
-            uid_cache[c].sport = (uint16_t) _sport;
-            memcpy(uid_cache[c].daddr, daddr, (size_t) (ws * 4));
-            uid_cache[c].dport = (uint16_t) _dport;
-            uid_cache[c].uid = _uid;
-            uid_cache[c].time = now;
-        } else {
-            log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
+        if (protocol == IPPROTO_UDP)
             return -2;
-        }
+        else
+            return cached->uid;
     }
 
-    if (fclose(fd))
-        log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
+    // Check proc snapshot
+    struct uid_row row;
+    jint uid = get_uid_snapshot(version, protocol, saddr, sport, daddr, dport, since, &row);
+    if (uid >= 0)
+        put_uid_cache(version, protocol, &row, now);
 
     return uid;
 }
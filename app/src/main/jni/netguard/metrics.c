@@ -0,0 +1,88 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Latency histograms of calls into Java, enabled at runtime, see ServiceSinkhole.jni_set_metrics
+// Buckets are log-linear: exact below 4 microseconds and 4 buckets for each power of two above
+
+static int metric_bucket(uint32_t us) {
+    if (us < 4)
+        return us;
+    int e = 31 - __builtin_clz(us);
+    return 4 + (e - 2) * 4 + ((us >> (e - 2)) & 3);
+}
+
+static uint32_t metric_upper(int bucket) {
+    if (bucket < 4)
+        return (uint32_t) bucket;
+    int e = (bucket - 4) / 4 + 2;
+    uint32_t sub = (uint32_t) (bucket - 4) % 4;
+    return ((4 + sub) << (e - 2)) + (1u << (e - 2)) - 1;
+}
+
+void set_metrics(struct context *ctx, int enabled) {
+    if (enabled && !ctx->metrics)
+        memset(ctx->metric, 0, sizeof(ctx->metric));
+    ctx->metrics = enabled;
+    log_android(ANDROID_LOG_WARN, "Metrics enabled %d", enabled);
+}
+
+long long metric_start(const struct context *ctx) {
+    return (ctx->metrics ? get_us() : 0);
+}
+
+void metric_end(struct context *ctx, int metric, long long start) {
+    if (start == 0)
+        return;
+
+    long long elapsed = get_us() - start;
+    uint32_t us = (elapsed < 0 ? 0 : (elapsed > UINT32_MAX ? UINT32_MAX : (uint32_t) elapsed));
+
+    // Readers can tolerate a slightly inconsistent histogram
+    struct metric *m = &ctx->metric[metric];
+    __atomic_fetch_add(&m->bucket[metric_bucket(us)], 1, __ATOMIC_RELAXED);
+    __atomic_fetch_add(&m->count, 1, __ATOMIC_RELAXED);
+    if (us > m->max)
+        m->max = us;
+}
+
+static uint32_t metric_percentile(const struct metric *m, uint32_t count, int percentile) {
+    uint64_t rank = ((uint64_t) count * percentile + 99) / 100;
+    uint64_t seen = 0;
+    for (int b = 0; b < METRIC_BUCKETS; b++) {
+        seen += m->bucket[b];
+        if (seen >= rank && seen > 0) {
+            uint32_t upper = metric_upper(b);
+            return (upper > m->max ? m->max : upper);
+        }
+    }
+    return m->max;
+}
+
+void get_metrics(const struct context *ctx, jlong *values) {
+    for (int i = 0; i < METRIC_COUNT; i++) {
+        const struct metric *m = &ctx->metric[i];
+        uint32_t count = __atomic_load_n(&m->count, __ATOMIC_RELAXED);
+        values[i * 4 + 0] = count;
+        values[i * 4 + 1] = (count == 0 ? 0 : metric_percentile(m, count, 50));
+        values[i * 4 + 2] = (count == 0 ? 0 : metric_percentile(m, count, 99));
+        values[i * 4 + 3] = m->max;
+    }
+}
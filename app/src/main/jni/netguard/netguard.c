@@ -38,6 +38,7 @@ extern long pcap_file_size;
 
 // JNI
 
+JavaVM *jvm;
 jclass clsPacket;
 jclass clsAllowed;
 jclass clsRR;
@@ -46,6 +47,8 @@ jclass clsUsage;
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     log_android(ANDROID_LOG_INFO, "JNI load");
 
+    jvm = vm;
+
     JNIEnv *env;
     if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
         log_android(ANDROID_LOG_INFO, "JNI load GetEnv failed");
@@ -99,6 +102,7 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
         JNIEnv *env, jobject instance, jint sdk) {
     struct context *ctx = calloc(1, sizeof(struct context));
     ctx->sdk = sdk;
+    ctx->generation = 1;
 
     loglevel = ANDROID_LOG_WARN;
 
@@ -108,7 +112,21 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
     *socks5_password = 0;
     pcap_file = NULL;
 
-    if (pthread_mutex_init(&ctx->lock, NULL))
+    for (int i = 0; i < WORKER_MAX; i++) {
+        ctx->worker[i].id = i;
+        ctx->worker[i].wakefd = -1;
+        for (int r = 0; r < RESOLVER_SOCKETS; r++)
+            ctx->worker[i].resolver[r].socket = -1;
+        if (pthread_mutex_init(&ctx->worker[i].lock, NULL))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+        if (sem_init(&ctx->worker[i].started, 0, 0))
+            log_android(ANDROID_LOG_ERROR, "sem_init failed");
+    }
+    if (pthread_mutex_init(&ctx->rules_lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_mutex_init(&ctx->log_lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_mutex_init(&ctx->dns_cache.lock, NULL))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
 
     // Create signal pipe
@@ -138,18 +156,105 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1start(
 
 }
 
+static void wake_workers(struct context *ctx) {
+    for (int i = 1; i < ctx->workers; i++)
+        wake_worker(&ctx->worker[i]);
+}
+
+static void *run_worker(void *a) {
+    struct arguments *args = (struct arguments *) a;
+    jobject instance = args->instance;
+
+    // Without a JNI environment the global reference is deleted by jni_run
+    JNIEnv *env;
+    args->worker->attached = ((*jvm)->AttachCurrentThread(jvm, &env, NULL) == JNI_OK);
+    if (sem_post(&args->worker->started))
+        log_android(ANDROID_LOG_ERROR, "sem_post failed");
+    if (!args->worker->attached) {
+        log_android(ANDROID_LOG_ERROR, "Worker %d AttachCurrentThread failed", args->worker->id);
+        return NULL;
+    }
+
+    args->env = env;
+    handle_events(args);
+
+    (*env)->DeleteGlobalRef(env, instance);
+    (*jvm)->DetachCurrentThread(jvm);
+    return NULL;
+}
+
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
-        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode) {
+        JNIEnv *env, jobject instance, jlong context,
+        jint tun, jboolean fwd53, jint rcode, jint workers) {
     struct context *ctx = (struct context *) context;
 
-    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d", tun, fwd53, loglevel);
+    if (workers < 1)
+        workers = 1;
+    if (workers > WORKER_MAX)
+        workers = WORKER_MAX;
 
-    // Set blocking
+    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d workers %d",
+                tun, fwd53, loglevel, workers);
+
+    // Sessions belong to the worker their flow hashes to
+    if (ctx->workers != workers) {
+        if (ctx->workers > 0) {
+            log_android(ANDROID_LOG_WARN, "Workers %d > %d clearing sessions",
+                        ctx->workers, workers);
+            clear(ctx);
+        }
+        ctx->workers = workers;
+    }
+
+    // Read and write tun without blocking, the tun reader drains it until EAGAIN
     int flags = fcntl(tun, F_GETFL, 0);
-    if (flags < 0 || fcntl(tun, F_SETFL, flags & ~O_NONBLOCK) < 0)
-        log_android(ANDROID_LOG_ERROR, "fcntl tun ~O_NONBLOCK error %d: %s",
-                    errno, strerror(errno));
+    if (flags < 0 || fcntl(tun, F_SETFL, flags | O_NONBLOCK) < 0)
+        log_android(ANDROID_LOG_ERROR, "fcntl tun %d O_NONBLOCK error %d: %s",
+                    tun, errno, strerror(errno));
+
+    // Start additional workers, the tun is read by the first one
+    for (int i = 1; i < workers; i++) {
+        struct worker *worker = &ctx->worker[i];
+        if (worker->wakefd < 0) {
+            worker->wakefd = eventfd(0, EFD_NONBLOCK);
+            if (worker->wakefd < 0)
+                log_android(ANDROID_LOG_ERROR, "Worker %d eventfd error %d: %s",
+                            i, errno, strerror(errno));
+        }
+
+        struct arguments *args = malloc(sizeof(struct arguments));
+        args->env = NULL;
+        args->instance = (*env)->NewGlobalRef(env, instance);
+        args->tun = tun;
+        args->fwd53 = fwd53;
+        args->rcode = rcode;
+        args->ctx = ctx;
+        args->worker = worker;
+        int err = pthread_create(&worker->thread, NULL, run_worker, args);
+        if (err)
+            log_android(ANDROID_LOG_ERROR, "Worker %d pthread_create error %d: %s",
+                        i, err, strerror(err));
+        else {
+            // Wait for the worker to attach, so that sessions are not hashed to a missing worker
+            while (sem_wait(&worker->started) && errno == EINTR);
+            if (worker->attached)
+                continue;
+            err = pthread_join(worker->thread, NULL);
+            if (err)
+                log_android(ANDROID_LOG_ERROR, "Worker %d pthread_join error %d: %s",
+                            i, err, strerror(err));
+        }
+
+        // Run with the workers started so far
+        (*env)->DeleteGlobalRef(env, args->instance);
+        free(args);
+        if (worker->wakefd >= 0 && close(worker->wakefd))
+            log_android(ANDROID_LOG_ERROR, "Close eventfd error %d: %s", errno, strerror(errno));
+        worker->wakefd = -1;
+        ctx->workers = i;
+        break;
+    }
 
     // Get arguments
     struct arguments *args = malloc(sizeof(struct arguments));
@@ -159,7 +264,18 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
     args->fwd53 = fwd53;
     args->rcode = rcode;
     args->ctx = ctx;
+    args->worker = &ctx->worker[0];
     handle_events(args);
+
+    // Stop the other workers too if the tun reader exited by itself
+    ctx->stopping = 1;
+    wake_workers(ctx);
+    for (int i = 1; i < ctx->workers; i++) {
+        int err = pthread_join(ctx->worker[i].thread, NULL);
+        if (err)
+            log_android(ANDROID_LOG_ERROR, "Worker %d pthread_join error %d: %s",
+                        i, err, strerror(err));
+    }
 }
 
 JNIEXPORT void JNICALL
@@ -171,6 +287,85 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1stop(
     log_android(ANDROID_LOG_WARN, "Write pipe wakeup");
     if (write(ctx->pipefds[1], "w", 1) < 0)
         log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+    wake_workers(ctx);
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1rules(
+        JNIEnv *env, jobject instance, jlong context, jobject buffer) {
+    struct context *ctx = (struct context *) context;
+    if (buffer == NULL)
+        set_rules(ctx, NULL, 0);
+    else
+        set_rules(ctx,
+                  (*env)->GetDirectBufferAddress(env, buffer),
+                  (size_t) (*env)->GetDirectBufferCapacity(env, buffer));
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1add_1ip_1filters(
+        JNIEnv *env, jobject instance, jlong context, jobject buffer) {
+    struct context *ctx = (struct context *) context;
+    add_ip_rules(ctx,
+                 (*env)->GetDirectBufferAddress(env, buffer),
+                 (size_t) (*env)->GetDirectBufferCapacity(env, buffer));
+}
+
+JNIEXPORT jint JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1hosts(
+        JNIEnv *env, jobject instance, jlong context, jstring path_) {
+    struct context *ctx = (struct context *) context;
+    if (path_ == NULL)
+        return set_hosts(ctx, NULL);
+
+    const char *path = (*env)->GetStringUTFChars(env, path_, 0);
+    jint count = set_hosts(ctx, path);
+    (*env)->ReleaseStringUTFChars(env, path_, path);
+    return count;
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1metrics(
+        JNIEnv *env, jobject instance, jlong context, jboolean enabled) {
+    struct context *ctx = (struct context *) context;
+    set_metrics(ctx, enabled);
+}
+
+JNIEXPORT jlongArray JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1metrics(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+
+    jlong values[METRIC_COUNT * 4];
+    get_metrics(ctx, values);
+
+    jlongArray jarray = (*env)->NewLongArray(env, METRIC_COUNT * 4);
+    (*env)->SetLongArrayRegion(env, jarray, 0, METRIC_COUNT * 4, values);
+    return jarray;
+}
+
+JNIEXPORT jobject JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1log(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+    return (*env)->NewDirectByteBuffer(env, ctx->log_ring, sizeof(ctx->log_ring));
+}
+
+JNIEXPORT jint JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1log_1next(
+        JNIEnv *env, jobject instance, jlong context, jint consumed) {
+    struct context *ctx = (struct context *) context;
+
+    uint32_t tail = ctx->log_tail + consumed;
+    __atomic_store_n(&ctx->log_tail, tail, __ATOMIC_RELEASE);
+    __atomic_store_n(&ctx->log_pending, 0, __ATOMIC_RELEASE);
+
+    uint32_t dropped = __atomic_exchange_n(&ctx->log_dropped, 0, __ATOMIC_RELAXED);
+    if (dropped > 0)
+        log_android(ANDROID_LOG_WARN, "Log ring full, dropped %u", dropped);
+
+    uint32_t head = __atomic_load_n(&ctx->log_head, __ATOMIC_ACQUIRE);
+    return (jint) (head - tail);
 }
 
 JNIEXPORT void JNICALL
@@ -190,29 +385,32 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
         JNIEnv *env, jobject instance, jlong context) {
     struct context *ctx = (struct context *) context;
 
-    if (pthread_mutex_lock(&ctx->lock))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
-
-    jintArray jarray = (*env)->NewIntArray(env, 5);
+    jintArray jarray = (*env)->NewIntArray(env, 6 + POOL_COUNT * 2 + 3);
     jint *jcount = (*env)->GetIntArrayElements(env, jarray, NULL);
 
-    struct ng_session *s = ctx->ng_session;
-    while (s != NULL) {
-        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-            if (!s->icmp.stop)
-                jcount[0]++;
-        } else if (s->protocol == IPPROTO_UDP) {
-            if (s->udp.state == UDP_ACTIVE)
-                jcount[1]++;
-        } else if (s->protocol == IPPROTO_TCP) {
-            if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                jcount[2]++;
+    // Sum over all workers, also the ones of a previous run
+    for (int w = 0; w < WORKER_MAX; w++) {
+        struct worker *worker = &ctx->worker[w];
+        if (pthread_mutex_lock(&worker->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+        jcount[0] += worker->isessions;
+        jcount[1] += worker->usessions;
+        jcount[2] += worker->tsessions;
+
+        // Pool occupancy
+        jcount[5] += worker->pool_oversize;
+        for (int i = 0; i < POOL_COUNT; i++) {
+            jcount[6 + i * 2] += worker->pool[i].used;
+            jcount[6 + i * 2 + 1] += worker->pool[i].idle;
         }
-        s = s->next;
+
+        if (pthread_mutex_unlock(&worker->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
     }
 
-    if (pthread_mutex_unlock(&ctx->lock))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+    // Uid cache hits, misses and evictions
+    get_uid_cache_stats(jcount + 6 + POOL_COUNT * 2);
 
     jcount[3] = 0;
     DIR *d = opendir("/proc/self/fd");
@@ -318,7 +516,29 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
 
     clear(ctx);
 
-    if (pthread_mutex_destroy(&ctx->lock))
+    for (int i = 0; i < WORKER_MAX; i++) {
+        struct worker *worker = &ctx->worker[i];
+        free_pools(worker);
+        free_packet(env, worker);
+        free(worker->dns_resolved);
+        for (int s = 0; s < WORKER_QUEUE_SIZE; s++)
+            free(worker->inbound[s]);
+        if (worker->wakefd >= 0 && close(worker->wakefd))
+            log_android(ANDROID_LOG_ERROR, "Close eventfd error %d: %s", errno, strerror(errno));
+        if (pthread_mutex_destroy(&worker->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+        if (sem_destroy(&worker->started))
+            log_android(ANDROID_LOG_ERROR, "sem_destroy failed");
+    }
+
+    free_rules(ctx->rules);
+    free_hosts(ctx->hosts);
+    free_uid_snapshots();
+    if (pthread_mutex_destroy(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    if (pthread_mutex_destroy(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    if (pthread_mutex_destroy(&ctx->dns_cache.lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
 
     for (int i = 0; i < 2; i++)
@@ -412,6 +632,8 @@ int protect_socket(const struct arguments *args, int socket) {
     if (args->ctx->sdk >= 21)
         return 0;
 
+    long long start = metric_start(args->ctx);
+
     jclass cls = (*args->env)->GetObjectClass(args->env, args->instance);
     if (cls == NULL) {
         log_android(ANDROID_LOG_ERROR, "protect socket failed to get class");
@@ -429,6 +651,8 @@ int protect_socket(const struct arguments *args, int socket) {
             args->env, args->instance, midProtect, socket);
     jniCheckException(args->env);
 
+    metric_end(args->ctx, METRIC_PROTECT_SOCKET, start);
+
     if (!isProtected) {
         log_android(ANDROID_LOG_ERROR, "protect socket failed");
         return -1;
@@ -494,34 +718,60 @@ int jniCheckException(JNIEnv *env) {
     return 0;
 }
 
-static jmethodID midLogPacket = NULL;
+static jmethodID midLogPending = NULL;
+
+void log_packet(const struct arguments *args,
+                jint version,
+                jint protocol,
+                const char *flags,
+                const void *saddr,
+                jint sport,
+                const void *daddr,
+                jint dport,
+                const char *data,
+                jint uid,
+                jboolean allowed) {
+    struct context *ctx = args->ctx;
+
+    // Workers take turns producing, single consumer, see LogHandler
+    if (pthread_mutex_lock(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-void log_packet(const struct arguments *args, jobject jpacket) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+    uint32_t head = ctx->log_head;
+    uint32_t tail = __atomic_load_n(&ctx->log_tail, __ATOMIC_ACQUIRE);
+    if (head - tail >= LOG_RING_SIZE) {
+        __atomic_fetch_add(&ctx->log_dropped, 1, __ATOMIC_RELAXED);
+        if (pthread_mutex_unlock(&ctx->log_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        return;
+    }
 
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+    write_packet(ctx->log_ring[head & (LOG_RING_SIZE - 1)],
+                 version, protocol, flags, saddr, sport, daddr, dport, data, uid, allowed);
+    __atomic_store_n(&ctx->log_head, head + 1, __ATOMIC_RELEASE);
 
-    const char *signature = "(Leu/faircode/netguard/Packet;)V";
-    if (midLogPacket == NULL)
-        midLogPacket = jniGetMethodID(args->env, clsService, "logPacket", signature);
+    // Wake up the log handler once per drain, which drains periodically otherwise
+    int pending = (head + 1 - tail >= LOG_RING_BATCH &&
+                   !__atomic_exchange_n(&ctx->log_pending, 1, __ATOMIC_ACQ_REL));
 
-    (*args->env)->CallVoidMethod(args->env, args->instance, midLogPacket, jpacket);
-    jniCheckException(args->env);
+    if (pthread_mutex_unlock(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    (*args->env)->DeleteLocalRef(args->env, jpacket);
+    if (pending) {
+        long long start = metric_start(args->ctx);
+
+        jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+
+        if (midLogPending == NULL)
+            midLogPending = jniGetMethodID(args->env, clsService, "logPending", "()V");
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
+        (*args->env)->CallVoidMethod(args->env, args->instance, midLogPending);
+        jniCheckException(args->env);
+
+        (*args->env)->DeleteLocalRef(args->env, clsService);
+
+        metric_end(args->ctx, METRIC_LOG_PACKET, start);
+    }
 }
 
 static jmethodID midDnsResolved = NULL;
@@ -533,16 +783,12 @@ jfieldID fidResource = NULL;
 jfieldID fidTTL = NULL;
 
 void dns_resolved(const struct arguments *args,
-                  const char *qname, const char *aname, const char *resource, int ttl) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+                  const struct dns_resolution *resolved, int count) {
+    long long start = metric_start(args->ctx);
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
 
-    const char *signature = "(Leu/faircode/netguard/ResourceRecord;)V";
+    const char *signature = "([Leu/faircode/netguard/ResourceRecord;)V";
     if (midDnsResolved == NULL)
         midDnsResolved = jniGetMethodID(args->env, clsService, "dnsResolved", signature);
 
@@ -550,8 +796,6 @@ void dns_resolved(const struct arguments *args,
     if (midInitRR == NULL)
         midInitRR = jniGetMethodID(args->env, clsRR, "<init>", "()V");
 
-    jobject jrr = jniNewObject(args->env, clsRR, midInitRR, rr);
-
     if (fidQTime == NULL) {
         const char *string = "Ljava/lang/String;";
         fidQTime = jniGetFieldID(args->env, clsRR, "Time", "J");
@@ -562,80 +806,46 @@ void dns_resolved(const struct arguments *args,
     }
 
     jlong jtime = time(NULL) * 1000LL;
-    jstring jqname = (*args->env)->NewStringUTF(args->env, qname);
-    jstring janame = (*args->env)->NewStringUTF(args->env, aname);
-    jstring jresource = (*args->env)->NewStringUTF(args->env, resource);
-
-    (*args->env)->SetLongField(args->env, jrr, fidQTime, jtime);
-    (*args->env)->SetObjectField(args->env, jrr, fidQName, jqname);
-    (*args->env)->SetObjectField(args->env, jrr, fidAName, janame);
-    (*args->env)->SetObjectField(args->env, jrr, fidResource, jresource);
-    (*args->env)->SetIntField(args->env, jrr, fidTTL, ttl);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved, jrr);
-    jniCheckException(args->env);
-
-    (*args->env)->DeleteLocalRef(args->env, jresource);
-    (*args->env)->DeleteLocalRef(args->env, janame);
-    (*args->env)->DeleteLocalRef(args->env, jqname);
-    (*args->env)->DeleteLocalRef(args->env, jrr);
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
-}
+    jobjectArray jrrs = (*args->env)->NewObjectArray(args->env, count, clsRR, NULL);
 
-static jmethodID midIsDomainBlocked = NULL;
+    for (int i = 0; i < count; i++) {
+        jobject jrr = jniNewObject(args->env, clsRR, midInitRR, rr);
 
-jboolean is_domain_blocked(const struct arguments *args, const char *name) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+        jstring jqname = (*args->env)->NewStringUTF(args->env, resolved[i].qname);
+        jstring janame = (*args->env)->NewStringUTF(args->env, resolved[i].aname);
+        jstring jresource = (*args->env)->NewStringUTF(args->env, resolved[i].resource);
 
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+        (*args->env)->SetLongField(args->env, jrr, fidQTime, jtime);
+        (*args->env)->SetObjectField(args->env, jrr, fidQName, jqname);
+        (*args->env)->SetObjectField(args->env, jrr, fidAName, janame);
+        (*args->env)->SetObjectField(args->env, jrr, fidResource, jresource);
+        (*args->env)->SetIntField(args->env, jrr, fidTTL, resolved[i].ttl);
 
-    const char *signature = "(Ljava/lang/String;)Z";
-    if (midIsDomainBlocked == NULL)
-        midIsDomainBlocked = jniGetMethodID(args->env, clsService, "isDomainBlocked", signature);
+        (*args->env)->SetObjectArrayElement(args->env, jrrs, i, jrr);
 
-    jstring jname = (*args->env)->NewStringUTF(args->env, name);
+        (*args->env)->DeleteLocalRef(args->env, jresource);
+        (*args->env)->DeleteLocalRef(args->env, janame);
+        (*args->env)->DeleteLocalRef(args->env, jqname);
+        (*args->env)->DeleteLocalRef(args->env, jrr);
+    }
 
-    jboolean jallowed = (*args->env)->CallBooleanMethod(
-            args->env, args->instance, midIsDomainBlocked, jname);
+    (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved, jrrs);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jname);
+    (*args->env)->DeleteLocalRef(args->env, jrrs);
     (*args->env)->DeleteLocalRef(args->env, clsService);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "is_domain_blocked %f", mselapsed);
-#endif
-
-    return jallowed;
+    metric_end(args->ctx, METRIC_DNS_RESOLVED, start);
 }
 
 static jmethodID midIsAddressAllowed = NULL;
 jfieldID fidRaddr = NULL;
 jfieldID fidRport = NULL;
-struct allowed allowed;
+jfieldID fidExpires = NULL;
 
-struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket,
+                                   struct allowed *buffer, long long *expires) {
+    long long start = metric_start(args->ctx);
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
 
@@ -647,6 +857,11 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
             args->env, args->instance, midIsAddressAllowed, jpacket);
     jniCheckException(args->env);
 
+    // Expiry of the IP filter which decided, zero if none
+    if (fidExpires == NULL)
+        fidExpires = jniGetFieldID(args->env, clsPacket, "expires", "J");
+    *expires = (*args->env)->GetLongField(args->env, jpacket, fidExpires);
+
     if (jallowed != NULL) {
         if (fidRaddr == NULL) {
             const char *string = "Ljava/lang/String;";
@@ -656,127 +871,113 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
 
         jstring jraddr = (*args->env)->GetObjectField(args->env, jallowed, fidRaddr);
         if (jraddr == NULL)
-            *allowed.raddr = 0;
+            *buffer->raddr = 0;
         else {
             const char *raddr = (*args->env)->GetStringUTFChars(args->env, jraddr, NULL);
-            strcpy(allowed.raddr, raddr);
+            strcpy(buffer->raddr, raddr);
             (*args->env)->ReleaseStringUTFChars(args->env, jraddr, raddr);
         }
-        allowed.rport = (uint16_t) (*args->env)->GetIntField(args->env, jallowed, fidRport);
+        buffer->rport = (uint16_t) (*args->env)->GetIntField(args->env, jallowed, fidRport);
 
         (*args->env)->DeleteLocalRef(args->env, jraddr);
     }
 
 
-    (*args->env)->DeleteLocalRef(args->env, jpacket);
     (*args->env)->DeleteLocalRef(args->env, clsService);
     (*args->env)->DeleteLocalRef(args->env, jallowed);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "is_address_allowed %f", mselapsed);
-#endif
+    metric_end(args->ctx, METRIC_IS_ADDRESS_ALLOWED, start);
 
-    return (jallowed == NULL ? NULL : &allowed);
+    return (jallowed == NULL ? NULL : buffer);
 }
 
 jmethodID midInitPacket = NULL;
 
-jfieldID fidTime = NULL;
-jfieldID fidVersion = NULL;
-jfieldID fidProtocol = NULL;
-jfieldID fidFlags = NULL;
-jfieldID fidSaddr = NULL;
-jfieldID fidSport = NULL;
-jfieldID fidDaddr = NULL;
-jfieldID fidDport = NULL;
-jfieldID fidData = NULL;
-jfieldID fidUid = NULL;
-jfieldID fidAllowed = NULL;
-
 jobject create_packet(const struct arguments *args,
                       jint version,
                       jint protocol,
                       const char *flags,
-                      const char *source,
+                      const void *saddr,
                       jint sport,
-                      const char *dest,
+                      const void *daddr,
                       jint dport,
                       const char *data,
                       jint uid,
                       jboolean allowed) {
     JNIEnv *env = args->env;
+    struct worker *worker = args->worker;
+
+    long long start = metric_start(args->ctx);
+
+    // The same packet object is reused for every call of a worker, see Packet.load
+    if (worker->packet == NULL) {
+        const char *packet = "eu/faircode/netguard/Packet";
+        if (midInitPacket == NULL)
+            midInitPacket = jniGetMethodID(env, clsPacket, "<init>", "(Ljava/nio/ByteBuffer;)V");
+        jobject jdescriptor = (*env)->NewDirectByteBuffer(env, worker->descriptor, PACKET_SIZE);
+        jobject jpacket = (*env)->NewObject(env, clsPacket, midInitPacket, jdescriptor);
+        if (jpacket == NULL)
+            log_android(ANDROID_LOG_ERROR, "Create object %s failed", packet);
+        else {
+            jniCheckException(env);
+            worker->packet = jniGlobalRef(env, jpacket);
+            (*env)->DeleteLocalRef(env, jpacket);
+        }
+        (*env)->DeleteLocalRef(env, jdescriptor);
+    }
 
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    /*
-        jbyte b[] = {1,2,3};
-        jbyteArray ret = env->NewByteArray(3);
-        env->SetByteArrayRegion (ret, 0, 3, b);
-     */
+    write_packet(worker->descriptor, version, protocol, flags,
+                 saddr, sport, daddr, dport, data, uid, allowed);
 
-    const char *packet = "eu/faircode/netguard/Packet";
-    if (midInitPacket == NULL)
-        midInitPacket = jniGetMethodID(env, clsPacket, "<init>", "()V");
-    jobject jpacket = jniNewObject(env, clsPacket, midInitPacket, packet);
+    metric_end(args->ctx, METRIC_CREATE_PACKET, start);
 
-    if (fidTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidTime = jniGetFieldID(env, clsPacket, "time", "J");
-        fidVersion = jniGetFieldID(env, clsPacket, "version", "I");
-        fidProtocol = jniGetFieldID(env, clsPacket, "protocol", "I");
-        fidFlags = jniGetFieldID(env, clsPacket, "flags", string);
-        fidSaddr = jniGetFieldID(env, clsPacket, "saddr", string);
-        fidSport = jniGetFieldID(env, clsPacket, "sport", "I");
-        fidDaddr = jniGetFieldID(env, clsPacket, "daddr", string);
-        fidDport = jniGetFieldID(env, clsPacket, "dport", "I");
-        fidData = jniGetFieldID(env, clsPacket, "data", string);
-        fidUid = jniGetFieldID(env, clsPacket, "uid", "I");
-        fidAllowed = jniGetFieldID(env, clsPacket, "allowed", "Z");
-    }
+    return worker->packet;
+}
 
+void write_packet(uint8_t *d,
+                  jint version,
+                  jint protocol,
+                  const char *flags,
+                  const void *saddr,
+                  jint sport,
+                  const void *daddr,
+                  jint dport,
+                  const char *data,
+                  jint uid,
+                  jboolean allowed) {
     struct timeval tv;
     gettimeofday(&tv, NULL);
     jlong t = tv.tv_sec * 1000LL + tv.tv_usec / 1000;
-    jstring jflags = (*env)->NewStringUTF(env, flags);
-    jstring jsource = (*env)->NewStringUTF(env, source);
-    jstring jdest = (*env)->NewStringUTF(env, dest);
-    jstring jdata = (*env)->NewStringUTF(env, data);
-
-    (*env)->SetLongField(env, jpacket, fidTime, t);
-    (*env)->SetIntField(env, jpacket, fidVersion, version);
-    (*env)->SetIntField(env, jpacket, fidProtocol, protocol);
-    (*env)->SetObjectField(env, jpacket, fidFlags, jflags);
-    (*env)->SetObjectField(env, jpacket, fidSaddr, jsource);
-    (*env)->SetIntField(env, jpacket, fidSport, sport);
-    (*env)->SetObjectField(env, jpacket, fidDaddr, jdest);
-    (*env)->SetIntField(env, jpacket, fidDport, dport);
-    (*env)->SetObjectField(env, jpacket, fidData, jdata);
-    (*env)->SetIntField(env, jpacket, fidUid, uid);
-    (*env)->SetBooleanField(env, jpacket, fidAllowed, allowed);
-
-    (*env)->DeleteLocalRef(env, jdata);
-    (*env)->DeleteLocalRef(env, jdest);
-    (*env)->DeleteLocalRef(env, jsource);
-    (*env)->DeleteLocalRef(env, jflags);
-    // Caller needs to delete reference to packet
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "create_packet %f", mselapsed);
-#endif
-
-    return jpacket;
+    jint jallowed = allowed;
+
+    memcpy(d + PACKET_TIME, &t, sizeof(jlong));
+    memcpy(d + PACKET_VERSION, &version, sizeof(jint));
+    memcpy(d + PACKET_PROTOCOL, &protocol, sizeof(jint));
+    memcpy(d + PACKET_SPORT, &sport, sizeof(jint));
+    memcpy(d + PACKET_DPORT, &dport, sizeof(jint));
+    memcpy(d + PACKET_UID, &uid, sizeof(jint));
+    memcpy(d + PACKET_ALLOWED, &jallowed, sizeof(jint));
+
+    strncpy((char *) d + PACKET_FLAGS, flags, PACKET_SADDR - PACKET_FLAGS - 1);
+    d[PACKET_SADDR - 1] = 0;
+
+    int af = (version == 4 ? AF_INET : AF_INET6);
+    size_t alen = (version == 4 ? 4 : 16);
+    memset(d + PACKET_SADDR, 0, 2 * 16);
+    memcpy(d + PACKET_SADDR, saddr, alen);
+    memcpy(d + PACKET_DADDR, daddr, alen);
+    inet_ntop(af, saddr, (char *) d + PACKET_SOURCE, PACKET_DEST - PACKET_SOURCE);
+    inet_ntop(af, daddr, (char *) d + PACKET_DEST, PACKET_DATA - PACKET_DEST);
+
+    strncpy((char *) d + PACKET_DATA, data, PACKET_DATA_MAX - 1);
+    d[PACKET_SIZE - 1] = 0;
+}
+
+void free_packet(JNIEnv *env, struct worker *worker) {
+    if (worker->packet != NULL) {
+        (*env)->DeleteGlobalRef(env, worker->packet);
+        worker->packet = NULL;
+    }
 }
 
 jmethodID midAccountUsage = NULL;
@@ -789,27 +990,22 @@ jfieldID fidUsageDPort = NULL;
 jfieldID fidUsageUid = NULL;
 jfieldID fidUsageSent = NULL;
 jfieldID fidUsageReceived = NULL;
+jfieldID fidUsageConnections = NULL;
 
-void account_usage(const struct arguments *args, jint version, jint protocol,
-                   const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+void account_usages(const struct arguments *args,
+                    const struct usage *usage, size_t size, int count) {
+    long long start = metric_start(args->ctx);
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
 
-    const char *signature = "(Leu/faircode/netguard/Usage;)V";
+    const char *signature = "([Leu/faircode/netguard/Usage;)V";
     if (midAccountUsage == NULL)
         midAccountUsage = jniGetMethodID(args->env, clsService, "accountUsage", signature);
 
-    const char *usage = "eu/faircode/netguard/Usage";
+    const char *name = "eu/faircode/netguard/Usage";
     if (midInitUsage == NULL)
         midInitUsage = jniGetMethodID(args->env, clsUsage, "<init>", "()V");
 
-    jobject jusage = jniNewObject(args->env, clsUsage, midInitUsage, usage);
-
     if (fidUsageTime == NULL) {
         const char *string = "Ljava/lang/String;";
         fidUsageTime = jniGetFieldID(args->env, clsUsage, "Time", "J");
@@ -820,32 +1016,45 @@ void account_usage(const struct arguments *args, jint version, jint protocol,
         fidUsageUid = jniGetFieldID(args->env, clsUsage, "Uid", "I");
         fidUsageSent = jniGetFieldID(args->env, clsUsage, "Sent", "J");
         fidUsageReceived = jniGetFieldID(args->env, clsUsage, "Received", "J");
+        fidUsageConnections = jniGetFieldID(args->env, clsUsage, "Connections", "I");
     }
 
     jlong jtime = time(NULL) * 1000LL;
-    jstring jdaddr = (*args->env)->NewStringUTF(args->env, daddr);
-
-    (*args->env)->SetLongField(args->env, jusage, fidUsageTime, jtime);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageVersion, version);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageProtocol, protocol);
-    (*args->env)->SetObjectField(args->env, jusage, fidUsageDAddr, jdaddr);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageDPort, dport);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageUid, uid);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageSent, sent);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageReceived, received);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midAccountUsage, jusage);
+    jobjectArray jusages = (*args->env)->NewObjectArray(args->env, count, clsUsage, NULL);
+
+    int c = 0;
+    for (size_t i = 0; i < size && c < count; i++) {
+        const struct usage *u = &usage[i];
+        if (!u->used)
+            continue;
+
+        char daddr[INET6_ADDRSTRLEN + 1];
+        inet_ntop(u->version == 4 ? AF_INET : AF_INET6, u->daddr, daddr, sizeof(daddr));
+
+        jobject jusage = jniNewObject(args->env, clsUsage, midInitUsage, name);
+        jstring jdaddr = (*args->env)->NewStringUTF(args->env, daddr);
+
+        (*args->env)->SetLongField(args->env, jusage, fidUsageTime, jtime);
+        (*args->env)->SetIntField(args->env, jusage, fidUsageVersion, u->version);
+        (*args->env)->SetIntField(args->env, jusage, fidUsageProtocol, u->protocol);
+        (*args->env)->SetObjectField(args->env, jusage, fidUsageDAddr, jdaddr);
+        (*args->env)->SetIntField(args->env, jusage, fidUsageDPort, u->dport);
+        (*args->env)->SetIntField(args->env, jusage, fidUsageUid, u->uid);
+        (*args->env)->SetLongField(args->env, jusage, fidUsageSent, u->sent);
+        (*args->env)->SetLongField(args->env, jusage, fidUsageReceived, u->received);
+        (*args->env)->SetIntField(args->env, jusage, fidUsageConnections, u->connections);
+
+        (*args->env)->SetObjectArrayElement(args->env, jusages, c++, jusage);
+
+        (*args->env)->DeleteLocalRef(args->env, jdaddr);
+        (*args->env)->DeleteLocalRef(args->env, jusage);
+    }
+
+    (*args->env)->CallVoidMethod(args->env, args->instance, midAccountUsage, jusages);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jdaddr);
-    (*args->env)->DeleteLocalRef(args->env, jusage);
+    (*args->env)->DeleteLocalRef(args->env, jusages);
     (*args->env)->DeleteLocalRef(args->env, clsService);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
+    metric_end(args->ctx, METRIC_ACCOUNT_USAGE, start);
 }
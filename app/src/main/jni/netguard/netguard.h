@@ -6,6 +6,7 @@
 #include <time.h>
 #include <unistd.h>
 #include <pthread.h>
+#include <semaphore.h>
 #include <setjmp.h>
 #include <errno.h>
 #include <fcntl.h>
@@ -15,9 +16,11 @@
 #include <sys/ioctl.h>
 #include <sys/socket.h>
 #include <sys/epoll.h>
+#include <sys/eventfd.h>
 #include <dlfcn.h>
 #include <sys/stat.h>
 #include <sys/resource.h>
+#include <sys/mman.h>
 
 #include <netdb.h>
 #include <arpa/inet.h>
@@ -35,12 +38,34 @@
 
 #define TAG "NetGuard.JNI"
 
-// #define PROFILE_JNI 5
-
 #define EPOLL_TIMEOUT 3600 // seconds
 #define EPOLL_EVENTS 20
 #define EPOLL_MIN_CHECK 100 // milliseconds
 
+#define SESSION_HASH_SIZE 4096 // buckets
+
+#define TUN_READ_BATCH 64 // packets per wakeup
+#define TUN_QUEUE_SIZE 64 // packets
+#define UDP_BATCH 8 // datagrams per system call
+
+#define RESOLVER_SOCKETS 8 // per worker
+#define RESOLVER_POOL 2 // sockets per resolver
+#define RESOLVER_PENDING 256 // queries per worker, power of two
+#define RESOLVER_TIMEOUT 10000 // milliseconds
+
+#define DNS_CACHE_HASH 1024 // buckets, power of two
+#define DNS_CACHE_MEMORY (512 * 1024) // bytes
+#define DNS_CACHE_ANSWERS 16 // records per response
+#define DNS_CACHE_TTL_MAX 3600 // seconds
+#define DNS_CACHE_REPORT 60000 // milliseconds
+
+#define WORKER_MAX 8 // event loops
+#define WORKER_QUEUE_SIZE 128 // packets, power of two
+
+#define TIMER_BITS 8
+#define TIMER_SLOTS (1 << TIMER_BITS) // level 0 slots of one second
+#define TIMER_FAR_SLOTS 64 // level 1 slots of TIMER_SLOTS seconds
+
 #define ICMP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
 #define ICMP6_MAXMSG (IPV6_MAXPACKET - 40 - 8) // bytes (socket)
 #define UDP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
@@ -60,10 +85,81 @@
 
 #define SESSION_LIMIT 40 // percent
 #define SESSION_MAX (1024 * SESSION_LIMIT / 100) // number
+#define SESSION_UID_LIMIT 50 // percent of max sessions per uid
+#define SESSION_EVICT_IDLE 5 // seconds
+#define SESSION_UID_SIZE 512 // entries, power of two, above SESSION_MAX
 
 #define SEND_BUF_DEFAULT 163840 // bytes
 
+#define TCP_RING_INITIAL 16384 // bytes, power of two
+#define TCP_RING_MAX 262144 // bytes per session, power of two
+#define TCP_RING_BUDGET (8 * 1024 * 1024) // bytes for all sessions
+#define TCP_RING_RANGES 16 // received ranges per session
+
+#define TCP_TUNE_INTERVAL 250 // milliseconds
+#define TCP_BUF_MAX (4 * 1024 * 1024) // bytes per socket buffer
+#define TCP_BUF_BUDGET (32 * 1024 * 1024) // bytes of tuned buffers for all sockets
+
 #define UID_MAX_AGE 30000 // milliseconds
+#define UID_CACHE_SIZE 1024 // entries, power of two
+#define UID_CACHE_WAYS 4 // entries per set
+#define UID_SNAPSHOTS 6 // tcp, udp and icmp for both versions
+#define UID_SNAPSHOT_BUFFER 16384 // bytes, grows as needed
+
+#define VERDICT_CACHE_SIZE 1024 // entries, power of two
+#define VERDICT_MAX_AGE 60000 // milliseconds
+
+// Flow descriptor shared with Packet.java
+#define PACKET_TIME 0 // long, wall clock milliseconds
+#define PACKET_VERSION 8
+#define PACKET_PROTOCOL 12
+#define PACKET_SPORT 16
+#define PACKET_DPORT 20
+#define PACKET_UID 24
+#define PACKET_ALLOWED 28
+#define PACKET_FLAGS 32 // text
+#define PACKET_SADDR 40 // network notation
+#define PACKET_DADDR 56 // network notation
+#define PACKET_SOURCE 72 // text
+#define PACKET_DEST 120 // text
+#define PACKET_DATA 168 // text
+#define PACKET_DATA_MAX 296 // DNS_QNAME_MAX + 40 + 1
+#define PACKET_SIZE (PACKET_DATA + PACKET_DATA_MAX)
+
+#define LOG_RING_SIZE 256 // records, power of two
+#define LOG_RING_BATCH 64 // records
+
+#define USAGE_TABLE_SIZE 256 // entries, power of two
+#define USAGE_FLUSH_COUNT 192 // entries
+#define USAGE_FLUSH_INTERVAL 60000 // milliseconds
+
+#define RULES_RADDR_LEN (INET6_ADDRSTRLEN + 1)
+#define RULES_IP_LEN (5 * 4 + 16 + 8) // bytes per IP filter record
+#define RULES_FORWARD_LEN (3 * 4 + RULES_RADDR_LEN) // bytes per forward record
+
+#define HOSTS_MAGIC 0x4E474842 // NGHB, see ServiceSinkhole.compileHosts
+#define HOSTS_VERSION 1
+
+#define METRIC_IS_ADDRESS_ALLOWED 0
+#define METRIC_IS_DOMAIN_BLOCKED 1
+#define METRIC_LOG_PACKET 2
+#define METRIC_DNS_RESOLVED 3
+#define METRIC_ACCOUNT_USAGE 4
+#define METRIC_PROTECT_SOCKET 5
+#define METRIC_CREATE_PACKET 6
+#define METRIC_COUNT 7 // see ServiceSinkhole.METRIC_NAMES
+#define METRIC_BUCKETS 128
+
+#define POOL_SESSION 0
+#define POOL_SMALL 1
+#define POOL_MEDIUM 2
+#define POOL_LARGE 3
+#define POOL_HUGE 4
+#define POOL_COUNT 5
+#define POOL_SMALL_SIZE 512 // bytes
+#define POOL_MEDIUM_SIZE 2048 // bytes
+#define POOL_LARGE_SIZE 10240 // bytes, MTU sized
+#define POOL_HUGE_SIZE 65536 // bytes, datagram sized
 
 #define SOCKS5_NONE 1
 #define SOCKS5_HELLO 2
@@ -71,12 +167,253 @@
 #define SOCKS5_CONNECT 4
 #define SOCKS5_CONNECTED 5
 
-struct context {
+struct allowed {
+    char raddr[INET6_ADDRSTRLEN + 1];
+    uint16_t rport; // host notation
+};
+
+struct verdict {
+    uint32_t generation;
+    uint8_t version;
+    uint8_t protocol;
+    uint16_t dport; // host notation
+    jint uid;
+    uint8_t daddr[16]; // network notation
+    long long expires; // milliseconds, monotonic
+    uint8_t allowed;
+    struct allowed redirect;
+};
+
+struct uid_rule {
+    jint uid;
+    uint8_t used;
+    uint8_t known;
+    uint8_t has_allowed;
+    uint8_t allowed;
+};
+
+struct ip_rule {
+    uint8_t used;
+    uint8_t version;
+    uint8_t protocol;
+    uint8_t block;
+    uint16_t dport; // host notation
+    jint uid;
+    uint8_t daddr[16]; // network notation
+    long long expires; // wall clock milliseconds
+};
+
+struct forward_rule {
+    uint16_t dport; // host notation
+    jint ruid;
+    struct allowed redirect;
+};
+
+struct rules {
+    int filter;
+    int connected;
+    jint self;
+    int log;
+    size_t uid_size;
+    struct uid_rule *uid;
+    size_t ip_size;
+    size_t ip_count; // used entries
+    struct ip_rule *ip;
+    size_t forward_count;
+    struct forward_rule *forward;
+};
+
+struct hosts_header {
+    uint32_t magic;
+    uint32_t version;
+    uint32_t count;
+    uint32_t reserved;
+};
+
+struct hosts {
+    void *map;
+    size_t length;
+    const int64_t *hash; // sorted
+    uint32_t count;
+};
+
+struct metric {
+    uint32_t count;
+    uint32_t max; // microseconds
+    uint32_t bucket[METRIC_BUCKETS];
+};
+
+struct uid_sessions {
+    jint uid;
+    int count; // active sessions, zero for a free entry
+    struct ng_session *first; // least recently active
+    struct ng_session *last;
+};
+
+struct tun_packet {
+    uint8_t *buffer;
+    size_t len;
+};
+
+struct udp_datagram {
+    struct ng_session *session;
+    uint8_t *data;
+    size_t len;
+    union {
+        struct sockaddr_in addr4;
+        struct sockaddr_in6 addr6;
+    } addr;
+    socklen_t addrlen;
+};
+
+struct resolver_socket {
+    int socket; // connected to port 53 of the resolver, -1 if closed
+    int version;
+    union {
+        __be32 ip4; // network notation
+        struct in6_addr ip6;
+    } addr;
+    long long used; // milliseconds
+    struct epoll_event ev;
+};
+
+struct resolver_query {
+    uint8_t used;
+    uint8_t version;
+    uint16_t id; // upstream, host notation
+    __be16 qid; // from the tun, network notation
+    int resolver; // index of the socket
+    long long time; // milliseconds
+    size_t sent; // bytes
+    jint uid;
+    union {
+        __be32 ip4; // network notation
+        struct in6_addr ip6;
+    } saddr;
+    __be16 source; // network notation
+    union {
+        __be32 ip4; // network notation
+        struct in6_addr ip6;
+    } daddr;
+};
+
+struct pool_item {
+    struct pool_item *next;
+};
+
+struct pool {
+    struct pool_item *free;
+    int used; // allocated
+    int idle; // kept for reuse
+};
+
+struct usage {
+    uint8_t used;
+    uint8_t version;
+    uint8_t protocol;
+    uint16_t dport; // host notation
+    jint uid;
+    uint8_t daddr[16]; // network notation
+    jlong sent;
+    jlong received;
+    jint connections;
+};
+
+// State of one event loop, only touched by its own thread
+// except for the inbound queue, which is filled by the tun reader
+struct worker {
+    int id;
+    pthread_t thread;
     pthread_mutex_t lock;
+    sem_t started; // posted when the thread attached to the JVM or failed to
+    int attached;
+    int wakefd; // signalled by the tun reader and on stop
+    uint8_t *inbound[WORKER_QUEUE_SIZE]; // packets dispatched by the tun reader
+    size_t inbound_len[WORKER_QUEUE_SIZE];
+    uint32_t inbound_head; // written by the tun reader only
+    uint32_t inbound_tail; // written by the worker only
+    uint32_t inbound_dropped;
+    struct ng_session *ng_session;
+    struct ng_session *session_hash[SESSION_HASH_SIZE];
+    struct ng_session *timer[TIMER_SLOTS];
+    struct ng_session *timer_far[TIMER_FAR_SLOTS];
+    time_t timer_time; // last expired second
+    int timer_sessions; // active sessions when all deadlines were last computed
+    struct ng_session *dirty; // sessions to check
+    int isessions; // active ICMP sessions
+    int usessions; // active UDP sessions
+    int tsessions; // active TCP sessions
+    struct ng_session *idle_first; // least recently active session
+    struct ng_session *idle_last;
+    struct uid_sessions uid_sessions[SESSION_UID_SIZE]; // open addressing by uid
+    long long batch; // start of the current event batch
+    struct verdict verdict[VERDICT_CACHE_SIZE];
+    uint8_t descriptor[PACKET_SIZE];
+    jobject packet;
+    struct usage usage[USAGE_TABLE_SIZE];
+    int usage_count;
+    long long usage_flushed;
+    struct dns_resolution *dns_resolved;
+    int dns_resolved_count;
+    struct pool pool[POOL_COUNT];
+    int pool_oversize; // buffers allocated outside of the pools
+    struct tun_packet tun_queue[TUN_QUEUE_SIZE];
+    int tun_head; // first packet to write
+    int tun_queued; // packets in the queue
+    uint8_t *udp_recv[UDP_BATCH]; // UDP4_MAXMSG sized
+    struct udp_datagram udp_send[UDP_BATCH]; // sent at the end of an event batch
+    int udp_queued;
+    struct resolver_socket resolver[RESOLVER_SOCKETS];
+    struct resolver_query resolver_query[RESOLVER_PENDING]; // by upstream id
+};
+
+struct dns_cache_entry {
+    struct dns_cache_entry *hnext; // hash chain
+    struct dns_cache_entry *prev; // more recently used
+    struct dns_cache_entry *next; // less recently used
+    uint32_t hash;
+    uint16_t qtype;
+    uint16_t qclass;
+    uint16_t qlen; // bytes of header and question
+    uint16_t ancount;
+    uint16_t ttl[DNS_CACHE_ANSWERS]; // offsets in answers
+    long long time; // milliseconds
+    long long expires; // milliseconds
+    long long reported; // milliseconds
+    size_t size; // bytes
+    size_t alen; // bytes
+    char *qname; // lower case
+    uint8_t *answers; // answer section as received
+};
+
+struct dns_cache {
+    pthread_mutex_t lock;
+    struct dns_cache_entry *hash[DNS_CACHE_HASH];
+    struct dns_cache_entry *head; // most recently used
+    struct dns_cache_entry *tail;
+    size_t memory; // bytes
+};
+
+struct context {
     int pipefds[2];
     int stopping;
     int sdk;
-    struct ng_session *ng_session;
+    int workers; // event loops of the current run
+    struct worker worker[WORKER_MAX];
+    volatile uint32_t generation;
+    pthread_mutex_t rules_lock;
+    struct rules *rules;
+    volatile int log; // copy of rules->log
+    struct hosts *hosts;
+    pthread_mutex_t log_lock; // serializes the workers writing the log ring
+    uint8_t log_ring[LOG_RING_SIZE][PACKET_SIZE];
+    uint32_t log_head; // written by the tunnel threads only
+    uint32_t log_tail; // written by the log thread only
+    uint32_t log_dropped;
+    uint32_t log_pending; // logPending called, cleared by the log thread
+    struct dns_cache dns_cache; // shared by the workers
+    volatile int metrics;
+    struct metric metric[METRIC_COUNT];
 };
 
 struct arguments {
@@ -86,20 +423,21 @@ struct arguments {
     jboolean fwd53;
     jint rcode;
     struct context *ctx;
+    struct worker *worker;
 };
 
-struct allowed {
-    char raddr[INET6_ADDRSTRLEN + 1];
-    uint16_t rport; // host notation
+struct tcp_range {
+    uint32_t start; // host notation
+    uint32_t end; // host notation, exclusive
+    int psh;
 };
 
-struct segment {
-    uint32_t seq;
-    uint16_t len;
-    uint16_t sent;
-    int psh;
-    uint8_t *data;
-    struct segment *next;
+struct tcp_ring {
+    uint8_t *data; // indexed by sequence number
+    uint32_t size; // bytes, power of two
+    uint32_t queued; // bytes received and not forwarded yet
+    int ranges;
+    struct tcp_range range[TCP_RING_RANGES]; // sorted, holes in between
 };
 
 struct icmp_session {
@@ -173,6 +511,14 @@ struct tcp_session {
     uint64_t sent;
     uint64_t received;
 
+    long long tune_time; // milliseconds
+    uint64_t tune_sent;
+    uint64_t tune_received;
+    uint32_t send_rate; // bytes per second, average
+    uint32_t recv_rate; // bytes per second, average
+    int sndbuf_tuned; // bytes, 0 if kernel managed
+    int rcvbuf_tuned; // bytes, 0 if kernel managed
+
     union {
         __be32 ip4; // network notation
         struct in6_addr ip6;
@@ -187,7 +533,7 @@ struct tcp_session {
 
     uint8_t state;
     uint8_t socks5;
-    struct segment *forward;
+    struct tcp_ring forward;
 };
 
 struct ng_session {
@@ -199,7 +545,22 @@ struct ng_session {
     };
     jint socket;
     struct epoll_event ev;
+    int sndbuf; // cached SO_SNDBUF of socket
     struct ng_session *next;
+    struct ng_session *prev;
+    struct ng_session *hnext; // hash chain
+    time_t deadline;
+    struct ng_session *tnext; // timer slot
+    struct ng_session **tpprev;
+    struct ng_session *dnext; // dirty list
+    struct ng_session *lnext; // idle order of the active sessions
+    struct ng_session *lprev;
+    struct ng_session *unext; // idle order of the active sessions of the uid
+    struct ng_session *uprev;
+    time_t ltime; // activity time in the idle order
+    uint8_t dirty;
+    uint8_t active;
+    uint8_t evicted; // closed and removed, freed by the next check
 };
 
 struct uid_cache_entry {
@@ -213,6 +574,27 @@ struct uid_cache_entry {
     long time;
 };
 
+struct uid_row {
+    uint8_t saddr[16];
+    uint16_t sport;
+    uint8_t daddr[16];
+    uint16_t dport;
+    jint uid;
+    int next; // next row in the same bucket
+};
+
+struct uid_snapshot {
+    int fd;
+    char *buffer;
+    size_t size;
+    struct uid_row *row;
+    int rows;
+    int capacity;
+    int *index; // first row by local port
+    int buckets;
+    long long time; // when read
+};
+
 // IPv6
 
 struct ip6_hdr_pseudo {
@@ -253,10 +635,23 @@ typedef struct pcaprec_hdr_s {
 
 #define DNS_QCLASS_IN 1
 #define DNS_QTYPE_A 1 // IPv4
+#define DNS_QTYPE_CNAME 5
 #define DNS_QTYPE_AAAA 28 // IPv6
+#define DNS_QTYPE_OPT 41 // EDNS0
 
 #define DNS_QNAME_MAX 255
+#define DNS_JUMPS_MAX 32 // compression pointers per name
+#define DNS_QUESTIONS_MAX 4
+#define DNS_ANSWERS_MAX 32
 #define DNS_TTL (10 * 60) // seconds
+#define DNS_RESOLVED_BATCH 64 // answers
+
+struct dns_resolution {
+    char qname[DNS_QNAME_MAX + 1];
+    char aname[DNS_QNAME_MAX + 1];
+    char resource[INET6_ADDRSTRLEN + 1];
+    int ttl;
+};
 
 struct dns_header {
     uint16_t id; // identification number
@@ -299,6 +694,34 @@ typedef struct dns_rr {
     __be16 rdlength;
 } __packed dns_rr;
 
+struct dns_question {
+    uint16_t name; // offset
+    uint16_t qtype;
+    uint16_t qclass;
+};
+
+struct dns_record {
+    uint16_t name; // offset
+    uint16_t qtype;
+    uint16_t qclass;
+    uint32_t ttl; // seconds
+    uint16_t rdlength;
+    uint16_t rdata; // offset
+};
+
+// Offsets into a parsed message, names are only decoded on demand
+struct dns_message {
+    int qcount;
+    int acount;
+    int questions; // parsed, at most DNS_QUESTIONS_MAX
+    int answers; // parsed, at most DNS_ANSWERS_MAX
+    uint16_t qend; // end of question section
+    uint16_t aend; // end of answer section
+    uint16_t edns; // EDNS0 UDP payload size, zero without OPT record
+    struct dns_question question[DNS_QUESTIONS_MAX];
+    struct dns_record answer[DNS_ANSWERS_MAX];
+};
+
 // DHCP
 
 #define DHCP_OPTION_MAGIC_NUMBER (0x63825363)
@@ -338,8 +761,41 @@ void report_error(const struct arguments *args, jint error, const char *fmt, ...
 
 void check_allowed(const struct arguments *args);
 
+int evict_session(const struct arguments *args, jint uid);
+
 void clear(struct context *ctx);
 
+struct ng_session *find_session(const struct worker *worker,
+                                int protocol, int version,
+                                const void *saddr, __be16 sport,
+                                const void *daddr, __be16 dport);
+
+uint32_t get_flow_hash(int protocol, int version,
+                       const void *saddr, __be16 sport,
+                       const void *daddr, __be16 dport);
+
+void add_session(struct worker *worker, struct ng_session *s);
+
+void remove_session(struct worker *worker, struct ng_session *s);
+
+void touch_session(struct worker *worker, struct ng_session *s);
+
+void start_session(struct worker *worker, struct ng_session *s);
+
+void arm_session(struct worker *worker, struct ng_session *s, time_t deadline);
+
+void cancel_session(struct worker *worker, struct ng_session *s);
+
+jint get_session_uid(const struct ng_session *s);
+
+int get_uid_sessions(const struct worker *worker, jint uid);
+
+struct ng_session *get_idle_session(const struct worker *worker, jint uid);
+
+void expire_sessions(struct worker *worker, time_t now);
+
+int get_timer_timeout(const struct worker *worker);
+
 int check_icmp_session(const struct arguments *args,
                        struct ng_session *s,
                        int sessions, int maxsessions);
@@ -367,22 +823,66 @@ uint16_t get_default_mss(int version);
 int check_tun(const struct arguments *args,
               const struct epoll_event *ev,
               const int epoll_fd,
-              int sessions, int maxsessions);
+              int maxsessions);
+
+ssize_t write_tun(const struct arguments *args, uint8_t *buffer, size_t len);
+
+int flush_tun(const struct arguments *args);
+
+void clear_tun(struct worker *worker);
+
+void wake_worker(struct worker *worker);
+
+void check_inbound(const struct arguments *args, const int epoll_fd, int maxsessions);
 
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev);
 
 void check_udp_socket(const struct arguments *args, const struct epoll_event *ev);
 
+void flush_udp(const struct arguments *args);
+
+void clear_udp(struct worker *worker);
+
+void drop_udp(struct worker *worker, const struct ng_session *s);
+
+int recv_udp(struct worker *worker, int sock, size_t size, struct mmsghdr *msgs);
+
+int forward_dns(const struct arguments *args,
+                const uint8_t *pkt, const uint8_t *payload,
+                const uint8_t *data, size_t datalen,
+                jint uid, int epoll_fd);
+
+int is_resolver_socket(const struct worker *worker, const void *ptr);
+
+void check_resolver_socket(const struct arguments *args, const struct epoll_event *ev);
+
+void clear_resolvers(struct worker *worker);
+
 int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char *qname);
 
+int parse_dns(const uint8_t *data, size_t datalen, struct dns_message *msg);
+
+void queue_dns_resolved(const struct arguments *args,
+                        const char *qname, const char *aname, const char *resource, int ttl);
+
+void flush_dns_resolved(const struct arguments *args);
+
 void parse_dns_response(const struct arguments *args, const struct udp_session *u,
                         const uint8_t *data, size_t *datalen);
 
+int answer_dns(const struct arguments *args,
+               const uint8_t *pkt, const uint8_t *payload,
+               const uint8_t *data, size_t datalen, jint uid);
+
+void clear_dns_cache(struct context *ctx);
+
 uint32_t get_send_window(const struct tcp_session *cur);
 
-int get_receive_buffer(const struct ng_session *cur);
+int get_receive_buffer(struct ng_session *cur);
 
-uint32_t get_receive_window(const struct ng_session *cur);
+void tune_tcp_buffers(const struct arguments *args, const char *session, struct ng_session *s);
+
+uint32_t get_receive_window(struct ng_session *cur);
 
 void check_tcp_socket(const struct arguments *args,
                       const struct epoll_event *ev,
@@ -395,7 +895,7 @@ int is_upper_layer(int protocol);
 void handle_ip(const struct arguments *args,
                const uint8_t *buffer, size_t length,
                const int epoll_fd,
-               int sessions, int maxsessions);
+               int maxsessions);
 
 jboolean handle_icmp(const struct arguments *args,
                      const uint8_t *pkt, size_t length,
@@ -479,13 +979,30 @@ void hex2bytes(const char *hex, uint8_t *buffer);
 
 jint get_uid(const int version, const int protocol,
              const void *saddr, const uint16_t sport,
-             const void *daddr, const uint16_t dport);
+             const void *daddr, const uint16_t dport,
+             long long since);
 
 jint get_uid_sub(const int version, const int protocol,
                  const void *saddr, const uint16_t sport,
                  const void *daddr, const uint16_t dport,
                  const char *source, const char *dest,
-                 long now);
+                 long now, long long since);
+
+jint get_uid_snapshot(const int version, const int protocol,
+                      const void *saddr, const uint16_t sport,
+                      const void *daddr, const uint16_t dport,
+                      long long since, struct uid_row *match);
+
+void free_uid_snapshots();
+
+const struct uid_cache_entry *find_uid_cache(const int version, const int protocol,
+                                            const void *saddr, const uint16_t sport,
+                                            const void *daddr, const uint16_t dport,
+                                            long now);
+
+void put_uid_cache(const int version, const int protocol, const struct uid_row *row, long now);
+
+void get_uid_cache_stats(jint *values);
 
 int protect_socket(const struct arguments *args, int socket);
 
@@ -507,29 +1024,113 @@ int sdk_int(JNIEnv *env);
 
 void log_android(int prio, const char *fmt, ...);
 
-void log_packet(const struct arguments *args, jobject jpacket);
+void log_packet(const struct arguments *args,
+                jint version,
+                jint protocol,
+                const char *flags,
+                const void *saddr,
+                jint sport,
+                const void *daddr,
+                jint dport,
+                const char *data,
+                jint uid,
+                jboolean allowed);
 
 void dns_resolved(const struct arguments *args,
-                  const char *qname, const char *aname, const char *resource, int ttl);
+                  const struct dns_resolution *resolved, int count);
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name);
 
-struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket);
+struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket,
+                                   struct allowed *buffer, long long *expires);
 
 jobject create_packet(const struct arguments *args,
                       jint version,
                       jint protocol,
                       const char *flags,
-                      const char *source,
+                      const void *saddr,
                       jint sport,
-                      const char *dest,
+                      const void *daddr,
                       jint dport,
                       const char *data,
                       jint uid,
                       jboolean allowed);
 
+void write_packet(uint8_t *d,
+                  jint version,
+                  jint protocol,
+                  const char *flags,
+                  const void *saddr,
+                  jint sport,
+                  const void *daddr,
+                  jint dport,
+                  const char *data,
+                  jint uid,
+                  jboolean allowed);
+
+void free_packet(JNIEnv *env, struct worker *worker);
+
 void account_usage(const struct arguments *args, jint version, jint protocol,
-                   const char *daddr, jint dport, jint uid, jlong sent, jlong received);
+                   const void *daddr, jint dport, jint uid, jlong sent, jlong received);
+
+void check_usage(const struct arguments *args);
+
+int get_usage_timeout(const struct worker *worker, int timeout);
+
+void flush_usage(const struct arguments *args);
+
+void account_usages(const struct arguments *args,
+                    const struct usage *usage, size_t size, int count);
+
+void set_rules(struct context *ctx, const uint8_t *buffer, size_t length);
+
+void add_ip_rules(struct context *ctx, const uint8_t *buffer, size_t length);
+
+void free_rules(struct rules *rules);
+
+int check_rules(struct context *ctx,
+                int version, int protocol,
+                const void *daddr, uint16_t dport, jint uid,
+                struct allowed *redirect);
+
+int set_hosts(struct context *ctx, const char *path);
+
+void free_hosts(struct hosts *hosts);
+
+void set_metrics(struct context *ctx, int enabled);
+
+long long metric_start(const struct context *ctx);
+
+void metric_end(struct context *ctx, int metric, long long start);
+
+void get_metrics(const struct context *ctx, jlong *values);
+
+void *pool_alloc(struct worker *worker, int pool);
+
+void pool_free(struct worker *worker, int pool, void *item);
+
+void *alloc_buffer(struct worker *worker, size_t size);
+
+void free_buffer(struct worker *worker, void *buffer, size_t size);
+
+void free_pools(struct worker *worker);
+
+void invalidate_verdicts(struct context *ctx);
+
+struct allowed *get_allowed(const struct arguments *args,
+                            int version, int protocol, const char *flags,
+                            const void *saddr, uint16_t sport,
+                            const void *daddr, uint16_t dport,
+                            jint uid, struct allowed *buffer);
+
+struct verdict *get_verdict(struct worker *worker, uint32_t generation,
+                            int version, int protocol,
+                            const void *daddr, uint16_t dport, jint uid);
+
+void put_verdict(struct worker *worker, uint32_t generation, uint32_t current,
+                 int version, int protocol,
+                 const void *daddr, uint16_t dport, jint uid,
+                 const struct allowed *redirect, long long expires);
 
 void write_pcap_hdr();
 
@@ -548,3 +1149,5 @@ int is_readable(int fd);
 int is_writable(int fd);
 
 long long get_ms();
+
+long long get_us();
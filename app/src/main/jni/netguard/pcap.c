@@ -23,6 +23,9 @@ FILE *pcap_file = NULL;
 size_t pcap_record_size = 64;
 long pcap_file_size = 2 * 1024 * 1024;
 
+// Records of different workers should not interleave
+static pthread_mutex_t pcap_lock = PTHREAD_MUTEX_INITIALIZER;
+
 void write_pcap_hdr() {
     struct pcap_hdr_s pcap_hdr;
     pcap_hdr.magic_number = 0xa1b2c3d4;
@@ -48,8 +51,14 @@ void write_pcap_rec(const uint8_t *buffer, size_t length) {
     pcap_rec.incl_len = (guint32_t) plen;
     pcap_rec.orig_len = (guint32_t) length;
 
+    if (pthread_mutex_lock(&pcap_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
     write_pcap(&pcap_rec, sizeof(struct pcaprec_hdr_s));
     write_pcap(buffer, plen);
+
+    if (pthread_mutex_unlock(&pcap_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 }
 
 void write_pcap(const void *ptr, size_t len) {
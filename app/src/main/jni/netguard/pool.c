@@ -0,0 +1,119 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Per worker pools of sessions and packet buffers
+// Freed objects are kept for reuse up to a limit, the remainder is returned to the system
+// Only the tunnel thread allocates, jni_get_stats reads the counters
+
+static const size_t pool_size[POOL_COUNT] = {
+        sizeof(struct ng_session),
+        POOL_SMALL_SIZE,
+        POOL_MEDIUM_SIZE,
+        POOL_LARGE_SIZE,
+        POOL_HUGE_SIZE
+};
+
+static const int pool_keep[POOL_COUNT] = {
+        128, // sessions
+        64, // small buffers
+        32, // medium buffers
+        16, // large buffers
+        2 // huge buffers
+};
+
+void *pool_alloc(struct worker *worker, int pool) {
+    struct pool *p = &worker->pool[pool];
+    void *item;
+    if (p->free != NULL) {
+        item = p->free;
+        p->free = p->free->next;
+        p->idle--;
+    } else {
+        item = malloc(pool_size[pool]);
+        if (item == NULL) {
+            log_android(ANDROID_LOG_ERROR, "Pool %d malloc %d failed", pool, pool_size[pool]);
+            return NULL;
+        }
+    }
+    p->used++;
+    return item;
+}
+
+void pool_free(struct worker *worker, int pool, void *item) {
+    if (item == NULL)
+        return;
+    struct pool *p = &worker->pool[pool];
+    p->used--;
+    if (p->idle < pool_keep[pool]) {
+        struct pool_item *i = (struct pool_item *) item;
+        i->next = p->free;
+        p->free = i;
+        p->idle++;
+    } else
+        free(item);
+}
+
+static int get_buffer_pool(size_t size) {
+    if (size <= POOL_SMALL_SIZE)
+        return POOL_SMALL;
+    else if (size <= POOL_MEDIUM_SIZE)
+        return POOL_MEDIUM;
+    else if (size <= POOL_LARGE_SIZE)
+        return POOL_LARGE;
+    else if (size <= POOL_HUGE_SIZE)
+        return POOL_HUGE;
+    else
+        return -1;
+}
+
+void *alloc_buffer(struct worker *worker, size_t size) {
+    int pool = get_buffer_pool(size);
+    if (pool < 0) {
+        worker->pool_oversize++;
+        return malloc(size);
+    }
+    return pool_alloc(worker, pool);
+}
+
+void free_buffer(struct worker *worker, void *buffer, size_t size) {
+    if (buffer == NULL)
+        return;
+    int pool = get_buffer_pool(size);
+    if (pool < 0) {
+        worker->pool_oversize--;
+        free(buffer);
+    } else
+        pool_free(worker, pool, buffer);
+}
+
+void free_pools(struct worker *worker) {
+    for (int i = 0; i < POOL_COUNT; i++) {
+        struct pool *p = &worker->pool[i];
+        if (p->used)
+            log_android(ANDROID_LOG_WARN, "Pool %d in use %d", i, p->used);
+        while (p->free != NULL) {
+            struct pool_item *item = p->free;
+            p->free = item->next;
+            free(item);
+        }
+        p->idle = 0;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+
+#include "netguard.h"
+
+// DNS queries are forwarded over a few long lived sockets per resolver instead of a session each
+// Query IDs are replaced by random IDs, which index the pending queries to route replies back
+// Sockets are opened when needed and closed when the event loop stops
+
+static void get_flow(const struct resolver_query *q, struct udp_session *u) {
+    memset(u, 0, sizeof(struct udp_session));
+    u->time = time(NULL);
+    u->uid = q->uid;
+    u->version = q->version;
+    u->mss = (uint16_t) (q->version == 4 ? UDP4_MAXMSG : UDP6_MAXMSG);
+    memcpy(&u->saddr, &q->saddr, sizeof(u->saddr));
+    u->source = q->source;
+    memcpy(&u->daddr, &q->daddr, sizeof(u->daddr));
+    u->dest = htons(53);
+    u->state = UDP_ACTIVE;
+}
+
+static void close_resolver(struct worker *worker, int i) {
+    struct resolver_socket *r = &worker->resolver[i];
+    if (r->socket < 0)
+        return;
+
+    log_android(ANDROID_LOG_INFO, "DNS close resolver socket %d", r->socket);
+    if (close(r->socket))
+        log_android(ANDROID_LOG_ERROR, "DNS close %d error %d: %s",
+                    r->socket, errno, strerror(errno));
+    r->socket = -1;
+
+    // The apps will retry
+    for (int q = 0; q < RESOLVER_PENDING; q++)
+        if (worker->resolver_query[q].resolver == i)
+            worker->resolver_query[q].used = 0;
+}
+
+static int open_resolver(const struct arguments *args, int epoll_fd, int i,
+                         int version, const void *daddr) {
+    struct resolver_socket *r = &args->worker->resolver[i];
+
+    int sock = socket(version == 4 ? PF_INET : PF_INET6, SOCK_DGRAM, IPPROTO_UDP);
+    if (sock < 0) {
+        log_android(ANDROID_LOG_ERROR, "DNS socket error %d: %s", errno, strerror(errno));
+        return -1;
+    }
+
+    if (protect_socket(args, sock) < 0) {
+        close(sock);
+        return -1;
+    }
+
+    // Only replies from the resolver are received
+    int err;
+    if (version == 4) {
+        struct sockaddr_in addr4;
+        memset(&addr4, 0, sizeof(addr4));
+        addr4.sin_family = AF_INET;
+        addr4.sin_addr.s_addr = *((__be32 *) daddr);
+        addr4.sin_port = htons(53);
+        err = connect(sock, (const struct sockaddr *) &addr4, sizeof(addr4));
+    } else {
+        struct sockaddr_in6 addr6;
+        memset(&addr6, 0, sizeof(addr6));
+        addr6.sin6_family = AF_INET6;
+        memcpy(&addr6.sin6_addr, daddr, 16);
+        addr6.sin6_port = htons(53);
+        err = connect(sock, (const struct sockaddr *) &addr6, sizeof(addr6));
+    }
+    if (err < 0) {
+        log_android(ANDROID_LOG_ERROR, "DNS connect error %d: %s", errno, strerror(errno));
+        close(sock);
+        return -1;
+    }
+
+    memset(&r->ev, 0, sizeof(struct epoll_event));
+    r->ev.events = EPOLLIN | EPOLLERR;
+    r->ev.data.ptr = r;
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, sock, &r->ev)) {
+        log_android(ANDROID_LOG_ERROR, "epoll add resolver error %d: %s", errno, strerror(errno));
+        close(sock);
+        return -1;
+    }
+
+    r->socket = sock;
+    r->version = version;
+    memset(&r->addr, 0, sizeof(r->addr));
+    memcpy(&r->addr, daddr, version == 4 ? 4 : 16);
+    r->used = args->worker->batch;
+
+    log_android(ANDROID_LOG_INFO, "DNS resolver socket %d", sock);
+    return 0;
+}
+
+static int get_resolver(const struct arguments *args, int epoll_fd,
+                        int version, const void *daddr) {
+    struct worker *worker = args->worker;
+    size_t alen = (version == 4 ? 4 : 16);
+
+    // Least recently used socket of the resolver, a closed slot and the least recently used socket
+    int count = 0;
+    int best = -1;
+    int closed = -1;
+    int lru = -1;
+    for (int i = 0; i < RESOLVER_SOCKETS; i++) {
+        struct resolver_socket *r = &worker->resolver[i];
+        if (r->socket < 0) {
+            if (closed < 0)
+                closed = i;
+            continue;
+        }
+        if (r->version == version && memcmp(&r->addr, daddr, alen) == 0) {
+            count++;
+            if (best < 0 || r->used < worker->resolver[best].used)
+                best = i;
+        }
+        if (lru < 0 || r->used < worker->resolver[lru].used)
+            lru = i;
+    }
+
+    if (count >= RESOLVER_POOL)
+        return best;
+
+    if (closed < 0) {
+        if (best >= 0)
+            return best;
+        close_resolver(worker, lru);
+        closed = lru;
+    }
+
+    if (open_resolver(args, epoll_fd, closed, version, daddr) < 0)
+        return best;
+    return closed;
+}
+
+int forward_dns(const struct arguments *args,
+                const uint8_t *pkt, const uint8_t *payload,
+                const uint8_t *data, size_t datalen,
+                jint uid, int epoll_fd) {
+    struct worker *worker = args->worker;
+    const uint8_t version = (*pkt) >> 4;
+    const struct iphdr *ip4 = (struct iphdr *) pkt;
+    const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
+    const struct udphdr *udphdr = (struct udphdr *) payload;
+    const void *daddr = (version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst);
+
+    // Broadcasts and multicasts need a socket of their own
+    if (version == 4) {
+        if (ip4->daddr == INADDR_BROADCAST)
+            return -1;
+    } else if (*((uint8_t *) daddr) == 0xFF)
+        return -1;
+
+    if (datalen < sizeof(struct dns_header))
+        return -1;
+
+    int i = get_resolver(args, epoll_fd, version, daddr);
+    if (i < 0)
+        return -1;
+    struct resolver_socket *r = &worker->resolver[i];
+
+    // Get an unused random ID, expired queries were not answered
+    long long now = worker->batch;
+    struct resolver_query *q = NULL;
+    uint16_t id = 0;
+    for (int tries = 0; tries < 4 && q == NULL; tries++) {
+        id = (uint16_t) arc4random();
+        q = &worker->resolver_query[id & (RESOLVER_PENDING - 1)];
+        if (q->used && now - q->time > RESOLVER_TIMEOUT) {
+            account_usage(args, q->version, IPPROTO_UDP,
+                          &q->daddr, 53, q->uid, q->sent, 0);
+            q->used = 0;
+        }
+        if (q->used)
+            q = NULL;
+    }
+    if (q == NULL) {
+        log_android(ANDROID_LOG_WARN, "DNS pending queries full");
+        return -1;
+    }
+
+    const struct dns_header *dns = (const struct dns_header *) data;
+    uint8_t *query = alloc_buffer(worker, datalen);
+    memcpy(query, data, datalen);
+    ((struct dns_header *) query)->id = htons(id);
+
+    ssize_t sent = send(r->socket, query, datalen, MSG_NOSIGNAL | MSG_DONTWAIT);
+    free_buffer(worker, query, datalen);
+    if (sent != datalen) {
+        log_android(ANDROID_LOG_ERROR, "DNS send error %d: %s", errno, strerror(errno));
+        if (errno != EINTR && errno != EAGAIN)
+            close_resolver(worker, i);
+        return -1;
+    }
+
+    q->used = 1;
+    q->version = version;
+    q->id = id;
+    q->qid = dns->id;
+    q->resolver = i;
+    q->time = now;
+    q->sent = datalen;
+    q->uid = uid;
+    memset(&q->saddr, 0, sizeof(q->saddr));
+    memset(&q->daddr, 0, sizeof(q->daddr));
+    if (version == 4) {
+        q->saddr.ip4 = (__be32) ip4->saddr;
+        q->daddr.ip4 = (__be32) ip4->daddr;
+    } else {
+        memcpy(&q->saddr.ip6, &ip6->ip6_src, 16);
+        memcpy(&q->daddr.ip6, &ip6->ip6_dst, 16);
+    }
+    q->source = udphdr->source;
+    r->used = now;
+
+    log_android(ANDROID_LOG_INFO, "DNS forward socket %d id %x > %x length %d",
+                r->socket, ntohs(dns->id), id, datalen);
+    return 0;
+}
+
+int is_resolver_socket(const struct worker *worker, const void *ptr) {
+    return (ptr >= (const void *) worker->resolver &&
+            ptr < (const void *) (worker->resolver + RESOLVER_SOCKETS));
+}
+
+void check_resolver_socket(const struct arguments *args, const struct epoll_event *ev) {
+    struct worker *worker = args->worker;
+    struct resolver_socket *r = (struct resolver_socket *) ev->data.ptr;
+    int i = (int) (r - worker->resolver);
+
+    // Check socket error
+    if (ev->events & EPOLLERR) {
+        int serr = 0;
+        socklen_t optlen = sizeof(int);
+        if (getsockopt(r->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen) < 0)
+            log_android(ANDROID_LOG_ERROR, "DNS getsockopt error %d: %s",
+                        errno, strerror(errno));
+        else if (serr)
+            log_android(ANDROID_LOG_ERROR, "DNS SO_ERROR %d: %s", serr, strerror(serr));
+
+        close_resolver(worker, i);
+        return;
+    }
+
+    if (!(ev->events & EPOLLIN))
+        return;
+
+    // Receive until drained
+    struct mmsghdr msgs[UDP_BATCH];
+    int count;
+    do {
+        count = recv_udp(worker, r->socket,
+                         r->version == 4 ? UDP4_MAXMSG : UDP6_MAXMSG, msgs);
+        if (count < 0) {
+            if (errno != EAGAIN && errno != EWOULDBLOCK && errno != EINTR) {
+                log_android(ANDROID_LOG_WARN, "DNS recv error %d: %s", errno, strerror(errno));
+                close_resolver(worker, i);
+            }
+            break;
+        }
+
+        for (int m = 0; m < count; m++) {
+            uint8_t *buffer = worker->udp_recv[m];
+            size_t bytes = msgs[m].msg_len;
+            if (bytes < sizeof(struct dns_header)) {
+                log_android(ANDROID_LOG_WARN, "DNS reply length %d", bytes);
+                continue;
+            }
+
+            struct dns_header *dns = (struct dns_header *) buffer;
+            uint16_t id = ntohs(dns->id);
+            struct resolver_query *q = &worker->resolver_query[id & (RESOLVER_PENDING - 1)];
+            if (!q->used || q->id != id || q->resolver != i) {
+                log_android(ANDROID_LOG_WARN, "DNS reply unknown id %x", id);
+                continue;
+            }
+            q->used = 0;
+            dns->id = q->qid;
+
+            log_android(ANDROID_LOG_INFO, "DNS reply socket %d id %x > %x length %d",
+                        r->socket, id, ntohs(q->qid), bytes);
+
+            account_usage(args, q->version, IPPROTO_UDP,
+                          &q->daddr, 53, q->uid, q->sent, bytes);
+
+            struct udp_session flow;
+            get_flow(q, &flow);
+            parse_dns_response(args, &flow, buffer, &bytes);
+            if (write_udp(args, &flow, buffer, bytes) < 0)
+                log_android(ANDROID_LOG_WARN, "DNS reply not forwarded id %x", id);
+        }
+    } while (count == UDP_BATCH && r->socket >= 0);
+
+    r->used = worker->batch;
+}
+
+void clear_resolvers(struct worker *worker) {
+    for (int i = 0; i < RESOLVER_SOCKETS; i++)
+        close_resolver(worker, i);
+    memset(worker->resolver_query, 0, sizeof(worker->resolver_query));
+}
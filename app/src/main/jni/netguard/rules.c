@@ -0,0 +1,400 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Native copy of the rule maps of ServiceSinkhole, layout should match ServiceSinkhole.publishRules
+// IP filters of resolved names are added by ServiceSinkhole.prepareUidIPFilters without a full copy
+// Decisions mirror ServiceSinkhole.isAddressAllowed
+
+static uint32_t hash_uid(jint uid) {
+    uint32_t h = (uint32_t) uid;
+    h ^= h >> 16;
+    h *= 0x7feb352d;
+    h ^= h >> 15;
+    return h;
+}
+
+static uint32_t hash_ip_rule(int version, int protocol, uint16_t dport, jint uid,
+                             const uint8_t *daddr) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    size_t alen = (version == 4 ? 4 : 16);
+    for (size_t i = 0; i < alen; i++)
+        h = (h ^ daddr[i]) * 16777619u;
+    h = (h ^ (uint8_t) version) * 16777619u;
+    h = (h ^ (uint8_t) protocol) * 16777619u;
+    h = (h ^ dport) * 16777619u;
+    return h ^ hash_uid(uid);
+}
+
+static size_t table_size(int32_t count) {
+    size_t size = 16;
+    while (size < (size_t) count * 2)
+        size <<= 1;
+    return size;
+}
+
+static long long get_wall_ms() {
+    struct timespec ts;
+    clock_gettime(CLOCK_REALTIME, &ts);
+    return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+static struct uid_rule *find_uid_rule(const struct rules *rules, jint uid, int add) {
+    size_t i = hash_uid(uid) & (rules->uid_size - 1);
+    while (rules->uid[i].used) {
+        if (rules->uid[i].uid == uid)
+            return &rules->uid[i];
+        i = (i + 1) & (rules->uid_size - 1);
+    }
+    if (!add)
+        return NULL;
+    rules->uid[i].used = 1;
+    rules->uid[i].uid = uid;
+    return &rules->uid[i];
+}
+
+static struct ip_rule *find_ip_rule(const struct rules *rules,
+                                    int version, int protocol, uint16_t dport, jint uid,
+                                    const uint8_t *daddr, int add) {
+    size_t alen = (version == 4 ? 4 : 16);
+    size_t i = hash_ip_rule(version, protocol, dport, uid, daddr) & (rules->ip_size - 1);
+    while (rules->ip[i].used) {
+        struct ip_rule *r = &rules->ip[i];
+        if (r->version == version && r->protocol == protocol &&
+            r->dport == dport && r->uid == uid &&
+            memcmp(r->daddr, daddr, alen) == 0)
+            return r;
+        i = (i + 1) & (rules->ip_size - 1);
+    }
+    if (!add)
+        return NULL;
+    struct ip_rule *r = &rules->ip[i];
+    r->used = 1;
+    r->version = (uint8_t) version;
+    r->protocol = (uint8_t) protocol;
+    r->dport = dport;
+    r->uid = uid;
+    memcpy(r->daddr, daddr, alen);
+    return r;
+}
+
+static void put_ip_rule(struct rules *rules, const struct ip_rule *rule) {
+    struct ip_rule *r = find_ip_rule(rules, rule->version, rule->protocol, rule->dport, rule->uid,
+                                     rule->daddr, 0);
+    if (r == NULL) {
+        r = find_ip_rule(rules, rule->version, rule->protocol, rule->dport, rule->uid,
+                         rule->daddr, 1);
+        rules->ip_count++;
+    }
+    r->block = rule->block;
+    r->expires = rule->expires;
+}
+
+static int grow_ip_rules(struct rules *rules, size_t count) {
+    // Expired filters are dropped
+    long long now = get_wall_ms();
+    size_t live = count;
+    for (size_t i = 0; i < rules->ip_size; i++)
+        if (rules->ip[i].used && now <= rules->ip[i].expires)
+            live++;
+
+    size_t size = table_size((int32_t) live);
+    struct ip_rule *ip = calloc(size, sizeof(struct ip_rule));
+    if (ip == NULL)
+        return -1;
+
+    struct ip_rule *old = rules->ip;
+    size_t old_size = rules->ip_size;
+    rules->ip = ip;
+    rules->ip_size = size;
+    rules->ip_count = 0;
+    for (size_t i = 0; i < old_size; i++)
+        if (old[i].used && now <= old[i].expires)
+            put_ip_rule(rules, &old[i]);
+    free(old);
+
+    log_android(ANDROID_LOG_WARN, "Rules filters %d table %d", rules->ip_count, size);
+    return 0;
+}
+
+static int read_int(const uint8_t **p, const uint8_t *end, int32_t *value) {
+    if (*p + sizeof(int32_t) > end)
+        return -1;
+    memcpy(value, *p, sizeof(int32_t));
+    *p += sizeof(int32_t);
+    return 0;
+}
+
+static int read_long(const uint8_t **p, const uint8_t *end, int64_t *value) {
+    if (*p + sizeof(int64_t) > end)
+        return -1;
+    memcpy(value, *p, sizeof(int64_t));
+    *p += sizeof(int64_t);
+    return 0;
+}
+
+static int read_bytes(const uint8_t **p, const uint8_t *end, void *value, size_t len) {
+    if (*p + len > end)
+        return -1;
+    memcpy(value, *p, len);
+    *p += len;
+    return 0;
+}
+
+static int read_ip_rule(const uint8_t **p, const uint8_t *end, struct ip_rule *rule) {
+    int32_t version, protocol, dport, uid, block;
+    int64_t expires;
+    if (read_int(p, end, &version) ||
+        read_int(p, end, &protocol) ||
+        read_int(p, end, &dport) ||
+        read_int(p, end, &uid) ||
+        read_bytes(p, end, rule->daddr, sizeof(rule->daddr)) ||
+        read_int(p, end, &block) ||
+        read_long(p, end, &expires))
+        return -1;
+    rule->version = (uint8_t) version;
+    rule->protocol = (uint8_t) protocol;
+    rule->dport = (uint16_t) dport;
+    rule->uid = uid;
+    rule->block = (uint8_t) (block != 0);
+    rule->expires = expires;
+    return 0;
+}
+
+void free_rules(struct rules *rules) {
+    if (rules == NULL)
+        return;
+    free(rules->uid);
+    free(rules->ip);
+    free(rules->forward);
+    free(rules);
+}
+
+static struct rules *parse_rules(const uint8_t *buffer, size_t length) {
+    const uint8_t *p = buffer;
+    const uint8_t *end = buffer + length;
+
+    int32_t filter, connected, self, log;
+    if (read_int(&p, end, &filter) ||
+        read_int(&p, end, &connected) ||
+        read_int(&p, end, &self) ||
+        read_int(&p, end, &log))
+        return NULL;
+
+    struct rules *rules = calloc(1, sizeof(struct rules));
+    rules->filter = filter;
+    rules->connected = connected;
+    rules->self = self;
+    rules->log = log;
+
+    // Allowed uids
+    int32_t nallowed;
+    if (read_int(&p, end, &nallowed) || nallowed < 0)
+        goto error;
+    if (nallowed > (end - p) / (2 * sizeof(int32_t)))
+        goto error;
+    const uint8_t *pallowed = p;
+    p += nallowed * 2 * sizeof(int32_t);
+
+    // Known uids
+    int32_t nknown;
+    if (read_int(&p, end, &nknown) || nknown < 0 ||
+        nknown > (end - p) / sizeof(int32_t))
+        goto error;
+
+    rules->uid_size = table_size(nallowed + nknown);
+    rules->uid = calloc(rules->uid_size, sizeof(struct uid_rule));
+
+    for (int i = 0; i < nknown; i++) {
+        int32_t uid;
+        if (read_int(&p, end, &uid))
+            goto error;
+        find_uid_rule(rules, uid, 1)->known = 1;
+    }
+
+    for (int i = 0; i < nallowed; i++) {
+        int32_t uid, allowed;
+        if (read_int(&pallowed, end, &uid) || read_int(&pallowed, end, &allowed))
+            goto error;
+        struct uid_rule *r = find_uid_rule(rules, uid, 1);
+        r->has_allowed = 1;
+        r->allowed = (uint8_t) (allowed != 0);
+    }
+
+    // IP filters
+    int32_t nip;
+    if (read_int(&p, end, &nip) || nip < 0 || nip > (end - p) / RULES_IP_LEN)
+        goto error;
+    rules->ip_size = table_size(nip);
+    rules->ip = calloc(rules->ip_size, sizeof(struct ip_rule));
+    for (int i = 0; i < nip; i++) {
+        struct ip_rule rule;
+        if (read_ip_rule(&p, end, &rule))
+            goto error;
+        put_ip_rule(rules, &rule);
+    }
+
+    // Port forwards
+    int32_t nforward;
+    if (read_int(&p, end, &nforward) || nforward < 0 ||
+        nforward > (end - p) / RULES_FORWARD_LEN)
+        goto error;
+    rules->forward_count = (size_t) nforward;
+    rules->forward = calloc((size_t) nforward + 1, sizeof(struct forward_rule));
+    for (int i = 0; i < nforward; i++) {
+        int32_t dport, ruid, rport;
+        struct forward_rule *f = &rules->forward[i];
+        if (read_int(&p, end, &dport) ||
+            read_int(&p, end, &ruid) ||
+            read_int(&p, end, &rport) ||
+            read_bytes(&p, end, f->redirect.raddr, RULES_RADDR_LEN))
+            goto error;
+        f->dport = (uint16_t) dport;
+        f->ruid = ruid;
+        f->redirect.raddr[RULES_RADDR_LEN - 1] = 0;
+        f->redirect.rport = (uint16_t) rport;
+    }
+
+    log_android(ANDROID_LOG_WARN,
+                "Rules filter %d connected %d self %d log %d uids %d/%d filters %d forwards %d",
+                filter, connected, self, log, nallowed, nknown, nip, nforward);
+
+    return rules;
+
+    error:
+    log_android(ANDROID_LOG_ERROR, "Invalid rules length %d", length);
+    free_rules(rules);
+    return NULL;
+}
+
+void set_rules(struct context *ctx, const uint8_t *buffer, size_t length) {
+    struct rules *rules = (buffer == NULL ? NULL : parse_rules(buffer, length));
+
+    if (pthread_mutex_lock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct rules *old = ctx->rules;
+    ctx->rules = rules;
+    if (rules != NULL)
+        ctx->log = rules->log;
+    invalidate_verdicts(ctx);
+
+    if (pthread_mutex_unlock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    free_rules(old);
+}
+
+void add_ip_rules(struct context *ctx, const uint8_t *buffer, size_t length) {
+    const uint8_t *p = buffer;
+    const uint8_t *end = buffer + length;
+
+    // Parse outside of the lock
+    int32_t count;
+    if (read_int(&p, end, &count) || count < 0 || count > (end - p) / RULES_IP_LEN) {
+        log_android(ANDROID_LOG_ERROR, "Invalid filters length %d", length);
+        return;
+    }
+    if (count == 0)
+        return;
+    struct ip_rule *add = malloc(count * sizeof(struct ip_rule));
+    if (add == NULL)
+        return;
+    for (int i = 0; i < count; i++)
+        read_ip_rule(&p, end, &add[i]);
+
+    if (pthread_mutex_lock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    // Filters not published yet will be part of the next full copy
+    struct rules *rules = ctx->rules;
+    if (rules != NULL &&
+        ((rules->ip_count + count) * 2 <= rules->ip_size ||
+         grow_ip_rules(rules, (size_t) count) == 0)) {
+        for (int i = 0; i < count; i++)
+            put_ip_rule(rules, &add[i]);
+        invalidate_verdicts(ctx);
+    }
+
+    if (pthread_mutex_unlock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    free(add);
+    log_android(ANDROID_LOG_DEBUG, "Rules filters added %d", count);
+}
+
+static int is_supported(int protocol) {
+    // Same as ServiceSinkhole.isSupported
+    return (protocol == 1 || protocol == 59 || protocol == 6 || protocol == 17);
+}
+
+int check_rules(struct context *ctx,
+                int version, int protocol,
+                const void *daddr, uint16_t dport, jint uid,
+                struct allowed *redirect) {
+    if (pthread_mutex_lock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct rules *rules = ctx->rules;
+    if (rules == NULL) {
+        if (pthread_mutex_unlock(&ctx->rules_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        return -1;
+    }
+
+    int allowed = 0;
+    if (rules->filter) {
+        struct uid_rule *ur = find_uid_rule(rules, uid, 0);
+        if (uid < 2000 && !rules->connected && is_supported(protocol))
+            allowed = 1; // Allow system applications in disconnected state
+        else if (uid < 2000 && (ur == NULL || !ur->known) && is_supported(protocol))
+            allowed = 1; // Allow unknown system traffic
+        else if (uid == rules->self)
+            allowed = 1; // Allow self
+        else {
+            int filtered = 0;
+            // Only TCP and UDP have port numbers
+            uint16_t kport = (protocol == IPPROTO_TCP || protocol == IPPROTO_UDP ? dport : 0);
+            struct ip_rule *ir = find_ip_rule(rules, version, protocol, kport, uid, daddr, 0);
+            if (ir != NULL && get_wall_ms() <= ir->expires) {
+                filtered = 1;
+                allowed = !ir->block;
+            }
+
+            if (!filtered && ur != NULL && ur->has_allowed)
+                allowed = ur->allowed;
+        }
+    }
+
+    memset(redirect, 0, sizeof(struct allowed));
+    if (allowed)
+        for (size_t i = 0; i < rules->forward_count; i++)
+            if (rules->forward[i].dport == dport) {
+                if (rules->forward[i].ruid != uid)
+                    memcpy(redirect, &rules->forward[i].redirect, sizeof(struct allowed));
+                break;
+            }
+
+    if (pthread_mutex_unlock(&ctx->rules_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return allowed;
+}
@@ -19,8 +19,17 @@
 
 #include "netguard.h"
 
-void clear(struct context *ctx) {
-    struct ng_session *s = ctx->ng_session;
+static void clear_worker(struct worker *worker) {
+    // Evicted sessions are on the dirty list only
+    struct ng_session *d = worker->dirty;
+    while (d != NULL) {
+        struct ng_session *p = d;
+        d = d->dnext;
+        if (p->evicted)
+            pool_free(worker, POOL_SESSION, p);
+    }
+
+    struct ng_session *s = worker->ng_session;
     while (s != NULL) {
         if (s->socket >= 0 && close(s->socket))
             log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
@@ -29,14 +38,145 @@ void clear(struct context *ctx) {
             clear_tcp_data(&s->tcp);
         struct ng_session *p = s;
         s = s->next;
-        free(p);
+        pool_free(worker, POOL_SESSION, p);
+    }
+    worker->ng_session = NULL;
+    memset(worker->session_hash, 0, sizeof(worker->session_hash));
+    clear_tun(worker);
+    clear_udp(worker);
+    clear_resolvers(worker);
+    memset(worker->timer, 0, sizeof(worker->timer));
+    memset(worker->timer_far, 0, sizeof(worker->timer_far));
+    worker->timer_time = 0;
+    worker->timer_sessions = 0;
+    worker->dirty = NULL;
+    worker->isessions = 0;
+    worker->usessions = 0;
+    worker->tsessions = 0;
+    worker->idle_first = NULL;
+    worker->idle_last = NULL;
+    memset(worker->uid_sessions, 0, sizeof(worker->uid_sessions));
+    worker->inbound_head = 0;
+    worker->inbound_tail = 0;
+}
+
+void clear(struct context *ctx) {
+    for (int i = 0; i < WORKER_MAX; i++)
+        clear_worker(&ctx->worker[i]);
+    clear_dns_cache(ctx);
+}
+
+static time_t get_deadline(const struct ng_session *s, int sessions, int maxsessions) {
+    // Sessions expire when idle for longer than their timeout, see check_*_session
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return s->icmp.time + get_icmp_timeout(&s->icmp, sessions, maxsessions) + 1;
+    else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state == UDP_ACTIVE)
+            return s->udp.time + get_udp_timeout(&s->udp, sessions, maxsessions) + 1;
+        else
+            return s->udp.time + UDP_KEEP_TIMEOUT + 1;
+    } else {
+        if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
+            return s->tcp.time + get_tcp_timeout(&s->tcp, sessions, maxsessions) + 1;
+        else
+            return s->tcp.time + TCP_KEEP_TIMEOUT + 1;
+    }
+}
+
+static unsigned int get_tun_events(const struct arguments *args) {
+    // Only the first worker reads the tun, the others only write to it
+    return (args->worker->id == 0 ? EPOLLIN | EPOLLERR : EPOLLERR);
+}
+
+static void update_tun(const struct arguments *args, int epoll_fd, struct epoll_event *ev_tun) {
+    // Wait for the tun to become writable if packets are left
+    unsigned int events = get_tun_events(args);
+    if (flush_tun(args) > 0)
+        events |= EPOLLOUT;
+
+    if (events != ev_tun->events) {
+        ev_tun->events = events;
+        if (epoll_ctl(epoll_fd, EPOLL_CTL_MOD, args->tun, ev_tun))
+            log_android(ANDROID_LOG_ERROR, "epoll mod tun error %d: %s", errno, strerror(errno));
+    }
+}
+
+static int check_sessions(const struct arguments *args, int epoll_fd, int maxsessions) {
+    struct worker *worker = args->worker;
+    int recheck = 0;
+
+    expire_sessions(worker, time(NULL));
+
+    // Timeouts shrink when the number of sessions grows
+    int sessions = worker->isessions + worker->usessions + worker->tsessions;
+    if (sessions > worker->timer_sessions + maxsessions / 10) {
+        log_android(ANDROID_LOG_WARN, "Sessions %d/%d recomputing deadlines",
+                    sessions, maxsessions);
+        for (struct ng_session *s = worker->ng_session; s != NULL; s = s->next)
+            touch_session(worker, s);
+        worker->timer_sessions = sessions;
+    } else if (sessions < worker->timer_sessions)
+        worker->timer_sessions = sessions;
+
+    int checked = 0;
+    struct ng_session *again = NULL;
+    struct ng_session *s;
+    while ((s = worker->dirty) != NULL) {
+        worker->dirty = s->dnext;
+        s->dnext = NULL;
+        s->dirty = 0;
+
+        if (s->evicted) {
+            pool_free(worker, POOL_SESSION, s);
+            continue;
+        }
+
+        checked++;
+
+        int del;
+        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+            del = check_icmp_session(args, s, sessions, maxsessions);
+        else if (s->protocol == IPPROTO_UDP)
+            del = check_udp_session(args, s, sessions, maxsessions);
+        else
+            del = check_tcp_session(args, s, sessions, maxsessions);
+
+        if (del) {
+            remove_session(worker, s);
+            if (s->protocol == IPPROTO_TCP)
+                clear_tcp_data(&s->tcp);
+            pool_free(worker, POOL_SESSION, s);
+            continue;
+        }
+
+        arm_session(worker, s, get_deadline(s, sessions, maxsessions));
+
+        // Update epoll interest, windows and queues only change when touched
+        if (s->protocol == IPPROTO_TCP && s->socket >= 0 &&
+            monitor_tcp_session(args, s, epoll_fd) && !s->dirty) {
+            // Waiting for a window or for the socket buffer to drain
+            s->dnext = again;
+            again = s;
+            recheck = 1;
+        }
+    }
+
+    while (again != NULL) {
+        s = again;
+        again = s->dnext;
+        touch_session(worker, s);
     }
-    ctx->ng_session = NULL;
+
+    if (checked)
+        log_android(ANDROID_LOG_DEBUG, "Checked sessions %d", checked);
+
+    return recheck;
 }
 
 void *handle_events(void *a) {
     struct arguments *args = (struct arguments *) a;
-    log_android(ANDROID_LOG_WARN, "Start events tun=%d", args->tun);
+    struct worker *worker = args->worker;
+    log_android(ANDROID_LOG_WARN, "Start events tun=%d worker %d", args->tun, worker->id);
 
     // Get max number of sessions
     int maxsessions = SESSION_MAX;
@@ -51,6 +191,9 @@ void *handle_events(void *a) {
                     rlim.rlim_cur, rlim.rlim_max, maxsessions);
     }
 
+    // Workers share the file descriptors
+    maxsessions /= args->ctx->workers;
+
     // Terminate existing sessions not allowed anymore
     check_allowed(args);
 
@@ -62,12 +205,13 @@ void *handle_events(void *a) {
         args->ctx->stopping = 1;
     }
 
-    // Monitor stop events
+    // Monitor stop events, other workers are woken up through their eventfd
     struct epoll_event ev_pipe;
     memset(&ev_pipe, 0, sizeof(struct epoll_event));
     ev_pipe.events = EPOLLIN | EPOLLERR;
     ev_pipe.data.ptr = &ev_pipe;
-    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->ctx->pipefds[0], &ev_pipe)) {
+    int stopfd = (worker->id == 0 ? args->ctx->pipefds[0] : worker->wakefd);
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, stopfd, &ev_pipe)) {
         log_android(ANDROID_LOG_ERROR, "epoll add pipe error %d: %s", errno, strerror(errno));
         report_exit(args, "epoll add pipe error %d: %s", errno, strerror(errno));
         args->ctx->stopping = 1;
@@ -76,7 +220,7 @@ void *handle_events(void *a) {
     // Monitor tun events
     struct epoll_event ev_tun;
     memset(&ev_tun, 0, sizeof(struct epoll_event));
-    ev_tun.events = EPOLLIN | EPOLLERR;
+    ev_tun.events = get_tun_events(args);
     ev_tun.data.ptr = NULL;
     if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->tun, &ev_tun)) {
         log_android(ANDROID_LOG_ERROR, "epoll add tun error %d: %s", errno, strerror(errno));
@@ -85,91 +229,22 @@ void *handle_events(void *a) {
     }
 
     // Loop
-    long long last_check = 0;
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
-        int recheck = 0;
-        int timeout = EPOLL_TIMEOUT;
-
-        // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
-        while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
-            }
-            s = s->next;
-        }
+        // Check touched and expired sessions
+        int recheck = check_sessions(args, epoll_fd, maxsessions);
+        int isessions = worker->isessions;
+        int usessions = worker->usessions;
+        int tsessions = worker->tsessions;
         int sessions = isessions + usessions + tsessions;
 
-        // Check sessions
-        long long ms = get_ms();
-        if (ms - last_check > EPOLL_MIN_CHECK) {
-            last_check = ms;
-
-            time_t now = time(NULL);
-            struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
-            while (s != NULL) {
-                int del = 0;
-                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                    del = check_icmp_session(args, s, sessions, maxsessions);
-                    if (!s->icmp.stop && !del) {
-                        int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_UDP) {
-                    del = check_udp_session(args, s, sessions, maxsessions);
-                    if (s->udp.state == UDP_ACTIVE && !del) {
-                        int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_TCP) {
-                    del = check_tcp_session(args, s, sessions, maxsessions);
-                    if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
-                        int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                }
+        // Pass aggregated usage to Java
+        check_usage(args);
+        int timeout = get_usage_timeout(worker, get_timer_timeout(worker));
 
-                if (del) {
-                    if (sl == NULL)
-                        args->ctx->ng_session = s->next;
-                    else
-                        sl->next = s->next;
-
-                    struct ng_session *c = s;
-                    s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
-                        clear_tcp_data(&c->tcp);
-                    free(c);
-                } else {
-                    sl = s;
-                    s = s->next;
-                }
-            }
-        } else {
-            recheck = 1;
-            log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
-        }
+        // Write packets of session checks
+        update_tun(args, epoll_fd, &ev_tun);
 
         log_android(ANDROID_LOG_DEBUG,
                     "sessions ICMP %d UDP %d TCP %d max %d/%d timeout %d recheck %d",
@@ -179,6 +254,7 @@ void *handle_events(void *a) {
         struct epoll_event ev[EPOLL_EVENTS];
         int ready = epoll_wait(epoll_fd, ev, EPOLL_EVENTS,
                                recheck ? EPOLL_MIN_CHECK : timeout * 1000);
+        worker->batch = get_ms();
 
         if (ready < 0) {
             if (errno == EINTR) {
@@ -198,20 +274,31 @@ void *handle_events(void *a) {
             log_android(ANDROID_LOG_DEBUG, "epoll timeout");
         else {
 
-            if (pthread_mutex_lock(&args->ctx->lock))
+            if (pthread_mutex_lock(&worker->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
             int error = 0;
 
             for (int i = 0; i < ready; i++) {
                 if (ev[i].data.ptr == &ev_pipe) {
-                    // Check pipe
-                    uint8_t buffer[1];
-                    if (read(args->ctx->pipefds[0], buffer, 1) < 0)
-                        log_android(ANDROID_LOG_WARN, "Read pipe error %d: %s",
-                                    errno, strerror(errno));
-                    else
-                        log_android(ANDROID_LOG_WARN, "Read pipe");
+                    if (worker->id == 0) {
+                        // Check pipe
+                        uint8_t buffer[1];
+                        if (read(stopfd, buffer, 1) < 0)
+                            log_android(ANDROID_LOG_WARN, "Read pipe error %d: %s",
+                                        errno, strerror(errno));
+                        else
+                            log_android(ANDROID_LOG_WARN, "Read pipe");
+                    } else {
+                        // Check packets from the tun reader
+                        uint64_t count;
+                        if (read(stopfd, &count, sizeof(count)) < 0 && errno != EAGAIN)
+                            log_android(ANDROID_LOG_WARN, "Read eventfd error %d: %s",
+                                        errno, strerror(errno));
+
+                        flush_dns_resolved(args);
+                        check_inbound(args, epoll_fd, maxsessions);
+                    }
 
                 } else if (ev[i].data.ptr == NULL) {
                     // Check upstream
@@ -222,9 +309,19 @@ void *handle_events(void *a) {
                                 (ev[i].events & EPOLLERR) != 0,
                                 (ev[i].events & EPOLLHUP) != 0);
 
-                    while (!error && is_readable(args->tun))
-                        if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
-                            error = 1;
+                    // Filters for resolved names should be in place before new connections
+                    flush_dns_resolved(args);
+
+                    if (check_tun(args, &ev[i], epoll_fd, maxsessions) < 0)
+                        error = 1;
+
+                } else if (is_resolver_socket(worker, ev[i].data.ptr)) {
+                    // Check forwarded DNS replies
+                    check_resolver_socket(args, &ev[i]);
+
+                } else if (((struct ng_session *) ev[i].data.ptr)->evicted) {
+                    // Closed by evict_session earlier in this batch
+                    log_android(ANDROID_LOG_DEBUG, "epoll ready %d/%d evicted", i, ready);
 
                 } else {
                     // Check downstream
@@ -239,12 +336,12 @@ void *handle_events(void *a) {
                                 ((struct ng_session *) ev[i].data.ptr)->socket);
 
                     struct ng_session *session = (struct ng_session *) ev[i].data.ptr;
+                    touch_session(worker, session);
                     if (session->protocol == IPPROTO_ICMP ||
                         session->protocol == IPPROTO_ICMPV6)
                         check_icmp_socket(args, &ev[i]);
                     else if (session->protocol == IPPROTO_UDP) {
-                        while (!(ev[i].events & EPOLLERR) && (ev[i].events & EPOLLIN) &&
-                               is_readable(session->socket))
+                        if (!(ev[i].events & EPOLLERR) && (ev[i].events & EPOLLIN))
                             check_udp_socket(args, &ev[i]);
                     } else if (session->protocol == IPPROTO_TCP)
                         check_tcp_socket(args, &ev[i], epoll_fd);
@@ -254,7 +351,16 @@ void *handle_events(void *a) {
                     break;
             }
 
-            if (pthread_mutex_unlock(&args->ctx->lock))
+            // Send datagrams of this batch
+            flush_udp(args);
+
+            // Pass resolved names of this batch to Java
+            flush_dns_resolved(args);
+
+            // Write packets of this batch
+            update_tun(args, epoll_fd, &ev_tun);
+
+            if (pthread_mutex_unlock(&worker->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
             if (error)
@@ -262,39 +368,37 @@ void *handle_events(void *a) {
         }
     }
 
+    // Pass remaining usage and resolved names
+    flush_usage(args);
+    flush_dns_resolved(args);
+    flush_tun(args);
+
+    // Resolver sockets are registered with this epoll file only
+    clear_resolvers(worker);
+
     // Close epoll file
     if (epoll_fd >= 0 && close(epoll_fd))
         log_android(ANDROID_LOG_ERROR,
                     "epoll close error %d: %s", errno, strerror(errno));
 
+    log_android(ANDROID_LOG_WARN, "Stopped events tun=%d worker %d", args->tun, worker->id);
+
     // Cleanup
     free(args);
-
-    log_android(ANDROID_LOG_WARN, "Stopped events tun=%d", args->tun);
     return NULL;
 }
 
 void check_allowed(const struct arguments *args) {
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
+    struct allowed redirect;
 
-    struct ng_session *l = NULL;
-    struct ng_session *s = args->ctx->ng_session;
+    struct ng_session *s = args->worker->ng_session;
     while (s != NULL) {
+        touch_session(args->worker, s);
         if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
             if (!s->icmp.stop) {
-                if (s->icmp.version == 4) {
-                    inet_ntop(AF_INET, &s->icmp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->icmp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->icmp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
-                }
-
-                jobject objPacket = create_packet(
-                        args, s->icmp.version, IPPROTO_ICMP, "",
-                        source, 0, dest, 0, "", s->icmp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (get_allowed(args, s->icmp.version, IPPROTO_ICMP, "",
+                                &s->icmp.saddr, 0, &s->icmp.daddr, 0,
+                                s->icmp.uid, &redirect) == NULL) {
                     s->icmp.stop = 1;
                     log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
                                 s->socket, s->icmp.uid);
@@ -303,18 +407,10 @@ void check_allowed(const struct arguments *args) {
 
         } else if (s->protocol == IPPROTO_UDP) {
             if (s->udp.state == UDP_ACTIVE) {
-                if (s->udp.version == 4) {
-                    inet_ntop(AF_INET, &s->udp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->udp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
-                }
-
-                jobject objPacket = create_packet(
-                        args, s->udp.version, IPPROTO_UDP, "",
-                        source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (get_allowed(args, s->udp.version, IPPROTO_UDP, "",
+                                &s->udp.saddr, ntohs(s->udp.source),
+                                &s->udp.daddr, ntohs(s->udp.dest),
+                                s->udp.uid, &redirect) == NULL) {
                     s->udp.state = UDP_FINISHING;
                     log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
                                 s->socket, s->udp.uid);
@@ -322,31 +418,16 @@ void check_allowed(const struct arguments *args) {
             } else if (s->udp.state == UDP_BLOCKED) {
                 log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
 
-                if (l == NULL)
-                    args->ctx->ng_session = s->next;
-                else
-                    l->next = s->next;
-
-                struct ng_session *c = s;
-                s = s->next;
-                free(c);
-                continue;
+                // Expire to remove on the next check
+                s->udp.time = 0;
             }
 
         } else if (s->protocol == IPPROTO_TCP) {
             if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE) {
-                if (s->tcp.version == 4) {
-                    inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
-                }
-
-                jobject objPacket = create_packet(
-                        args, s->tcp.version, IPPROTO_TCP, "",
-                        source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "", s->tcp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (get_allowed(args, s->tcp.version, IPPROTO_TCP, "",
+                                &s->tcp.saddr, ntohs(s->tcp.source),
+                                &s->tcp.daddr, ntohs(s->tcp.dest),
+                                s->tcp.uid, &redirect) == NULL) {
                     write_rst(args, &s->tcp);
                     log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
                                 s->socket, s->tcp.uid);
@@ -355,8 +436,39 @@ void check_allowed(const struct arguments *args) {
 
         }
 
-        l = s;
         s = s->next;
     }
 }
 
+
+int evict_session(const struct arguments *args, jint uid) {
+    // Close the least recently active session, of any uid if uid < 0
+    struct worker *worker = args->worker;
+    struct ng_session *victim = get_idle_session(worker, uid);
+    time_t now = time(NULL);
+    if (victim == NULL || now - victim->ltime < SESSION_EVICT_IDLE)
+        return -1;
+
+    log_android(ANDROID_LOG_WARN, "Evicting protocol %d socket %d uid %d idle %d sec",
+                victim->protocol, victim->socket, get_session_uid(victim), now - victim->ltime);
+
+    if (victim->protocol == IPPROTO_TCP)
+        write_rst(args, &victim->tcp);
+    else if (victim->protocol == IPPROTO_UDP)
+        drop_udp(worker, victim);
+
+    if (victim->socket >= 0 && close(victim->socket))
+        log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
+                    victim->socket, errno, strerror(errno));
+    victim->socket = -1;
+
+    remove_session(worker, victim);
+    if (victim->protocol == IPPROTO_TCP)
+        clear_tcp_data(&victim->tcp);
+
+    // Events of this batch can still refer to the session
+    victim->evicted = 1;
+    touch_session(worker, victim);
+
+    return 0;
+}
@@ -26,14 +26,134 @@ extern char socks5_password[127 + 1];
 
 extern FILE *pcap_file;
 
+// Data to forward is kept in a ring per session, the byte with sequence number seq at seq & (size - 1)
+// All ranges lie within remote_seq..remote_seq + size, the gaps between the ranges are holes
+// Rings together should stay within TCP_RING_BUDGET, above it windows are limited to the current ring
+
+static size_t ring_memory = 0; // bytes, all workers
+
+// Socket buffers are sized to the measured bandwidth-delay product, within TCP_BUF_BUDGET together
+
+static size_t buffer_memory = 0; // bytes, all workers
+
+static void free_ring(struct tcp_ring *ring) {
+    if (ring->data != NULL) {
+        free(ring->data);
+        __atomic_sub_fetch(&ring_memory, ring->size, __ATOMIC_RELAXED);
+    }
+    ring->data = NULL;
+    ring->size = 0;
+    ring->queued = 0;
+    ring->ranges = 0;
+}
+
 void clear_tcp_data(struct tcp_session *cur) {
-    struct segment *s = cur->forward;
-    while (s != NULL) {
-        struct segment *p = s;
-        s = s->next;
-        free(p->data);
-        free(p);
+    free_ring(&cur->forward);
+
+    __atomic_sub_fetch(&buffer_memory,
+                       (size_t) (cur->sndbuf_tuned + cur->rcvbuf_tuned), __ATOMIC_RELAXED);
+    cur->sndbuf_tuned = 0;
+    cur->rcvbuf_tuned = 0;
+}
+
+static void write_ring(uint8_t *ring, uint32_t size,
+                       uint32_t seq, const uint8_t *data, uint32_t len) {
+    uint32_t off = seq & (size - 1);
+    uint32_t first = (len < size - off ? len : size - off);
+    memcpy(ring + off, data, first);
+    memcpy(ring, data + first, len - first);
+}
+
+static int grow_ring(struct tcp_ring *ring, uint32_t span) {
+    uint32_t size = (ring->size ? ring->size : TCP_RING_INITIAL);
+    while (size < span)
+        size <<= 1;
+    if (size == ring->size)
+        return 0;
+
+    uint8_t *data = malloc(size);
+    if (data == NULL) {
+        log_android(ANDROID_LOG_ERROR, "Ring malloc %u failed", size);
+        return -1;
+    }
+
+    // Copy ranges to their new offsets
+    for (int i = 0; i < ring->ranges; i++) {
+        uint32_t seq = ring->range[i].start;
+        while (seq != ring->range[i].end) {
+            uint32_t off = seq & (ring->size - 1);
+            uint32_t len = ring->range[i].end - seq;
+            if (len > ring->size - off)
+                len = ring->size - off;
+            write_ring(data, size, seq, ring->data + off, len);
+            seq += len;
+        }
     }
+
+    free(ring->data);
+    __atomic_add_fetch(&ring_memory, size - ring->size, __ATOMIC_RELAXED);
+    ring->data = data;
+    ring->size = size;
+    return 0;
+}
+
+static int add_range(struct tcp_ring *ring, uint32_t start, uint32_t end, int psh) {
+    // First range ending at or after start
+    int i = 0;
+    while (i < ring->ranges && compare_u32(ring->range[i].end, start) < 0)
+        i++;
+
+    // First range starting after end
+    int j = i;
+    while (j < ring->ranges && compare_u32(ring->range[j].start, end) <= 0)
+        j++;
+
+    if (i == j) {
+        if (ring->ranges == TCP_RING_RANGES)
+            return -1;
+        memmove(&ring->range[i + 1], &ring->range[i],
+                (ring->ranges - i) * sizeof(struct tcp_range));
+        ring->ranges++;
+        ring->range[i].start = start;
+        ring->range[i].end = end;
+        ring->range[i].psh = psh;
+        ring->queued += end - start;
+        return 0;
+    }
+
+    // Merge overlapping and adjacent ranges
+    for (int k = i; k < j; k++)
+        ring->queued -= ring->range[k].end - ring->range[k].start;
+
+    struct tcp_range *last = &ring->range[j - 1];
+    if (compare_u32(last->end, end) > 0) {
+        end = last->end;
+        psh = last->psh;
+    } else if (last->end == end)
+        psh = psh || last->psh;
+    if (compare_u32(start, ring->range[i].start) > 0)
+        start = ring->range[i].start;
+
+    ring->range[i].start = start;
+    ring->range[i].end = end;
+    ring->range[i].psh = psh;
+    ring->queued += end - start;
+
+    memmove(&ring->range[i + 1], &ring->range[j],
+            (ring->ranges - j) * sizeof(struct tcp_range));
+    ring->ranges -= j - i - 1;
+    return 0;
+}
+
+static int put_ring(struct tcp_session *cur, uint32_t seq, const uint8_t *data, uint32_t len,
+                    int psh) {
+    uint32_t span = seq + len - cur->remote_seq;
+    if (span > TCP_RING_MAX || grow_ring(&cur->forward, span))
+        return -1;
+    if (add_range(&cur->forward, seq, seq + len, psh))
+        return -1;
+    write_ring(cur->forward.data, cur->forward.size, seq, data, len);
+    return 0;
 }
 
 int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions) {
@@ -102,7 +222,8 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
     if ((s->tcp.state == TCP_CLOSING || s->tcp.state == TCP_CLOSE) &&
         (s->tcp.sent || s->tcp.received)) {
         account_usage(args, s->tcp.version, IPPROTO_TCP,
-                      dest, ntohs(s->tcp.dest), s->tcp.uid, s->tcp.sent, s->tcp.received);
+                      &s->tcp.daddr, ntohs(s->tcp.dest), s->tcp.uid,
+                      s->tcp.sent, s->tcp.received);
         s->tcp.sent = 0;
         s->tcp.received = 0;
     }
@@ -143,10 +264,9 @@ int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int
         }
 
         // Check for outgoing data
-        if (s->tcp.forward != NULL) {
-            uint32_t buffer_size = (uint32_t) get_receive_buffer(s);
-            if (s->tcp.forward->seq + s->tcp.forward->sent == s->tcp.remote_seq &&
-                s->tcp.forward->len - s->tcp.forward->sent < buffer_size)
+        if (s->tcp.forward.ranges) {
+            if (s->tcp.forward.range[0].start == s->tcp.remote_seq &&
+                get_receive_buffer(s) > 0)
                 events = events | EPOLLOUT;
             else
                 recheck = 1;
@@ -157,6 +277,7 @@ int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int
         s->ev.events = events;
         if (epoll_ctl(epoll_fd, EPOLL_CTL_MOD, s->socket, &s->ev)) {
             s->tcp.state = TCP_CLOSING;
+            touch_session(args->worker, s);
             log_android(ANDROID_LOG_ERROR, "epoll mod tcp error %d: %s", errno, strerror(errno));
         } else
             log_android(ANDROID_LOG_DEBUG, "epoll mod tcp socket %d in %d out %d",
@@ -178,43 +299,141 @@ uint32_t get_send_window(const struct tcp_session *cur) {
     return window;
 }
 
-int get_receive_buffer(const struct ng_session *cur) {
-    if (cur->socket < 0)
-        return 0;
-
+static int get_send_buffer(int socket) {
     // Get send buffer size
     // /proc/sys/net/core/wmem_default
     int sendbuf = 0;
     int sendbufsize = sizeof(sendbuf);
-    if (getsockopt(cur->socket, SOL_SOCKET, SO_SNDBUF, &sendbuf, (socklen_t *) &sendbufsize) < 0)
-        log_android(ANDROID_LOG_WARN, "getsockopt SO_RCVBUF %d: %s", errno, strerror(errno));
+    if (getsockopt(socket, SOL_SOCKET, SO_SNDBUF, &sendbuf, (socklen_t *) &sendbufsize) < 0)
+        log_android(ANDROID_LOG_WARN, "getsockopt SO_SNDBUF %d: %s", errno, strerror(errno));
 
     if (sendbuf == 0)
         sendbuf = SEND_BUF_DEFAULT;
 
+    return sendbuf;
+}
+
+int get_receive_buffer(struct ng_session *cur) {
+    if (cur->socket < 0)
+        return 0;
+
+    if (cur->sndbuf == 0)
+        cur->sndbuf = get_send_buffer(cur->socket);
+
     // Get unsent data size
     int unsent = 0;
     if (ioctl(cur->socket, SIOCOUTQ, &unsent))
         log_android(ANDROID_LOG_WARN, "ioctl SIOCOUTQ %d: %s", errno, strerror(errno));
 
-    return (unsent < sendbuf ? sendbuf - unsent : 0);
+    // The kernel grows the send buffer of busy sockets
+    if (unsent >= cur->sndbuf)
+        cur->sndbuf = get_send_buffer(cur->socket);
+
+    return (unsent < cur->sndbuf ? cur->sndbuf - unsent : 0);
+}
+
+static int tune_buffer(const char *session, int socket, int option,
+                       int tuned, uint32_t rate, uint32_t rtt) {
+    // Twice the bandwidth-delay product
+    uint64_t target = (uint64_t) rate * rtt / 1000000 * 2;
+    if (target > TCP_BUF_MAX)
+        target = TCP_BUF_MAX;
+
+    int size;
+    if (tuned == 0) {
+        // Leave buffers the kernel sized large enough alone
+        int current = 0;
+        socklen_t len = sizeof(current);
+        if (getsockopt(socket, SOL_SOCKET, option, &current, &len) < 0 ||
+            target <= (uint64_t) current)
+            return tuned;
+        size = (int) target;
+    } else if (target > (uint64_t) tuned)
+        size = (int) target;
+    else if (target < (uint64_t) tuned / 2)
+        size = (target > SEND_BUF_DEFAULT ? (int) target : SEND_BUF_DEFAULT);
+    else
+        return tuned;
+    if (size == tuned)
+        return tuned;
+
+    int grow = size - tuned;
+    if (grow > 0 &&
+        __atomic_add_fetch(&buffer_memory, (size_t) grow, __ATOMIC_RELAXED) > TCP_BUF_BUDGET) {
+        __atomic_sub_fetch(&buffer_memory, (size_t) grow, __ATOMIC_RELAXED);
+        log_android(ANDROID_LOG_DEBUG, "%s buffer budget exceeded", session);
+        return tuned;
+    }
+
+    // The kernel doubles the value for bookkeeping overhead
+    int value = size / 2;
+    if (setsockopt(socket, SOL_SOCKET, option, &value, sizeof(value)) < 0) {
+        log_android(ANDROID_LOG_WARN, "%s setsockopt %s %d error %d: %s",
+                    session, option == SO_SNDBUF ? "SO_SNDBUF" : "SO_RCVBUF", size,
+                    errno, strerror(errno));
+        if (grow > 0)
+            __atomic_sub_fetch(&buffer_memory, (size_t) grow, __ATOMIC_RELAXED);
+        return tuned;
+    }
+    if (grow < 0)
+        __atomic_sub_fetch(&buffer_memory, (size_t) -grow, __ATOMIC_RELAXED);
+
+    log_android(ANDROID_LOG_INFO, "%s %s %d > %d rate %u rtt %u",
+                session, option == SO_SNDBUF ? "SO_SNDBUF" : "SO_RCVBUF", tuned, size, rate, rtt);
+    return size;
 }
 
-uint32_t get_receive_window(const struct ng_session *cur) {
-    // Get data to forward size
-    uint32_t toforward = 0;
-    struct segment *q = cur->tcp.forward;
-    while (q != NULL) {
-        toforward += (q->len - q->sent);
-        q = q->next;
+void tune_tcp_buffers(const struct arguments *args, const char *session, struct ng_session *s) {
+    long long now = args->worker->batch;
+    long long elapsed = now - s->tcp.tune_time;
+    if (s->socket < 0 || elapsed < TCP_TUNE_INTERVAL)
+        return;
+
+    // Average throughput in both directions
+    uint64_t send_rate = (s->tcp.sent - s->tcp.tune_sent) * 1000 / elapsed;
+    uint64_t recv_rate = (s->tcp.received - s->tcp.tune_received) * 1000 / elapsed;
+    s->tcp.send_rate = (uint32_t) (((uint64_t) s->tcp.send_rate * 3 + send_rate) / 4);
+    s->tcp.recv_rate = (uint32_t) (((uint64_t) s->tcp.recv_rate * 3 + recv_rate) / 4);
+    s->tcp.tune_time = now;
+    s->tcp.tune_sent = s->tcp.sent;
+    s->tcp.tune_received = s->tcp.received;
+
+    // Round trip time as measured by the kernel from ACK timing
+    struct tcp_info info;
+    socklen_t len = sizeof(info);
+    if (getsockopt(s->socket, IPPROTO_TCP, TCP_INFO, &info, &len) < 0) {
+        log_android(ANDROID_LOG_WARN, "%s getsockopt TCP_INFO error %d: %s",
+                    session, errno, strerror(errno));
+        return;
     }
+    if (info.tcpi_rtt == 0)
+        return;
 
+    int tuned = s->tcp.sndbuf_tuned;
+    s->tcp.sndbuf_tuned = tune_buffer(session, s->socket, SO_SNDBUF,
+                                      tuned, s->tcp.send_rate, info.tcpi_rtt);
+    if (s->tcp.sndbuf_tuned != tuned)
+        s->sndbuf = 0; // get_receive_buffer will reread it
+
+    s->tcp.rcvbuf_tuned = tune_buffer(session, s->socket, SO_RCVBUF,
+                                      s->tcp.rcvbuf_tuned, s->tcp.recv_rate, info.tcpi_rtt);
+}
+
+uint32_t get_receive_window(struct ng_session *cur) {
     uint32_t window = (uint32_t) get_receive_buffer(cur);
 
     uint32_t max = ((uint32_t) 0xFFFF) << cur->tcp.recv_scale;
     if (window > max)
         window = max;
 
+    // Do not grow rings beyond the budget
+    uint32_t ring = TCP_RING_MAX;
+    if (__atomic_load_n(&ring_memory, __ATOMIC_RELAXED) > TCP_RING_BUDGET)
+        ring = (cur->tcp.forward.size ? cur->tcp.forward.size : TCP_RING_INITIAL);
+    if (window > ring)
+        window = ring;
+
+    uint32_t toforward = cur->tcp.forward.queued;
     window = (toforward < window ? window - toforward : 0);
     if ((window >> cur->tcp.recv_scale) == 0)
         window = 0;
@@ -457,22 +676,28 @@ void check_tcp_socket(const struct arguments *args,
             int fwd = 0;
             if (ev->events & EPOLLOUT) {
                 // Forward data
+                struct tcp_ring *ring = &s->tcp.forward;
                 uint32_t buffer_size = (uint32_t) get_receive_buffer(s);
-                while (s->tcp.forward != NULL &&
-                       s->tcp.forward->seq + s->tcp.forward->sent == s->tcp.remote_seq &&
-                       s->tcp.forward->len - s->tcp.forward->sent < buffer_size) {
-                    log_android(ANDROID_LOG_DEBUG, "%s fwd %u...%u sent %u",
+                while (ring->ranges &&
+                       ring->range[0].start == s->tcp.remote_seq &&
+                       buffer_size > 0) {
+                    // Send up to the end of the ring or the first hole
+                    uint32_t off = s->tcp.remote_seq & (ring->size - 1);
+                    uint32_t len = ring->range[0].end - s->tcp.remote_seq;
+                    if (len > ring->size - off)
+                        len = ring->size - off;
+                    if (len > buffer_size)
+                        len = buffer_size;
+                    int more = (!ring->range[0].psh ||
+                                s->tcp.remote_seq + len != ring->range[0].end);
+
+                    log_android(ANDROID_LOG_DEBUG, "%s fwd %u...%u",
                                 session,
-                                s->tcp.forward->seq - s->tcp.remote_start,
-                                s->tcp.forward->seq + s->tcp.forward->len - s->tcp.remote_start,
-                                s->tcp.forward->sent);
-
-                    ssize_t sent = send(s->socket,
-                                        s->tcp.forward->data + s->tcp.forward->sent,
-                                        s->tcp.forward->len - s->tcp.forward->sent,
-                                        (unsigned int) (MSG_NOSIGNAL | (s->tcp.forward->psh
-                                                                        ? 0
-                                                                        : MSG_MORE)));
+                                s->tcp.remote_seq - s->tcp.remote_start,
+                                s->tcp.remote_seq + len - s->tcp.remote_start);
+
+                    ssize_t sent = send(s->socket, ring->data + off, len,
+                                        (unsigned int) (MSG_NOSIGNAL | (more ? MSG_MORE : 0)));
                     if (sent < 0) {
                         log_android(ANDROID_LOG_ERROR, "%s send error %d: %s",
                                     session, errno, strerror(errno));
@@ -487,35 +712,40 @@ void check_tcp_socket(const struct arguments *args,
                         fwd = 1;
                         buffer_size -= sent;
                         s->tcp.sent += sent;
-                        s->tcp.forward->sent += sent;
-                        s->tcp.remote_seq = s->tcp.forward->seq + s->tcp.forward->sent;
-
-                        if (s->tcp.forward->len == s->tcp.forward->sent) {
-                            struct segment *p = s->tcp.forward;
-                            s->tcp.forward = s->tcp.forward->next;
-                            free(p->data);
-                            free(p);
-                        } else {
+                        s->tcp.remote_seq += sent;
+                        ring->queued -= sent;
+                        ring->range[0].start = s->tcp.remote_seq;
+
+                        if (ring->range[0].start == ring->range[0].end) {
+                            ring->ranges--;
+                            memmove(&ring->range[0], &ring->range[1],
+                                    ring->ranges * sizeof(struct tcp_range));
+                        }
+
+                        if ((uint32_t) sent < len) {
                             log_android(ANDROID_LOG_WARN,
                                         "%s partial send %u/%u",
-                                        session, s->tcp.forward->sent, s->tcp.forward->len);
+                                        session, (uint32_t) sent, len);
                             break;
                         }
                     }
                 }
 
+                // Return drained rings when over budget
+                if (ring->ranges == 0 &&
+                    __atomic_load_n(&ring_memory, __ATOMIC_RELAXED) > TCP_RING_BUDGET)
+                    free_ring(ring);
+
                 // Log data buffered
-                struct segment *seg = s->tcp.forward;
-                while (seg != NULL) {
-                    log_android(ANDROID_LOG_WARN, "%s queued %u...%u sent %u",
+                for (int i = 0; i < ring->ranges; i++)
+                    log_android(ANDROID_LOG_WARN, "%s queued %u...%u",
                                 session,
-                                seg->seq - s->tcp.remote_start,
-                                seg->seq + seg->len - s->tcp.remote_start,
-                                seg->sent);
-                    seg = seg->next;
-                }
+                                ring->range[i].start - s->tcp.remote_start,
+                                ring->range[i].end - s->tcp.remote_start);
             }
 
+            tune_tcp_buffers(args, session, s);
+
             // Get receive window
             uint32_t window = get_receive_window(s);
             uint32_t prev = s->tcp.recv_window;
@@ -526,7 +756,7 @@ void check_tcp_socket(const struct arguments *args,
 
             // Acknowledge forwarded data
             if (fwd || (prev == 0 && window > 0)) {
-                if (fwd && s->tcp.forward == NULL && s->tcp.state == TCP_CLOSE_WAIT) {
+                if (fwd && s->tcp.forward.ranges == 0 && s->tcp.state == TCP_CLOSE_WAIT) {
                     log_android(ANDROID_LOG_WARN, "%s confirm FIN", session);
                     s->tcp.remote_seq++; // remote FIN
                 }
@@ -544,7 +774,7 @@ void check_tcp_socket(const struct arguments *args,
 
                     uint32_t buffer_size = (send_window > s->tcp.mss
                                             ? s->tcp.mss : send_window);
-                    uint8_t *buffer = malloc(buffer_size);
+                    uint8_t *buffer = alloc_buffer(args->worker, buffer_size);
                     ssize_t bytes = recv(s->socket, buffer, (size_t) buffer_size, 0);
                     if (bytes < 0) {
                         // Socket error
@@ -556,7 +786,7 @@ void check_tcp_socket(const struct arguments *args,
                     } else if (bytes == 0) {
                         log_android(ANDROID_LOG_WARN, "%s recv eof", session);
 
-                        if (s->tcp.forward == NULL) {
+                        if (s->tcp.forward.ranges == 0) {
                             if (write_fin_ack(args, &s->tcp) >= 0) {
                                 log_android(ANDROID_LOG_WARN, "%s FIN sent", session);
                                 s->tcp.local_seq++; // local FIN
@@ -590,7 +820,7 @@ void check_tcp_socket(const struct arguments *args,
                             s->tcp.unconfirmed++;
                         }
                     }
-                    free(buffer);
+                    free_buffer(args->worker, buffer, buffer_size);
                 }
             }
         }
@@ -617,16 +847,14 @@ jboolean handle_tcp(const struct arguments *args,
     const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_TCP &&
-             cur->tcp.version == version &&
-             cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-             (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                             cur->tcp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->worker, IPPROTO_TCP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            tcphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            tcphdr->dest);
+    if (cur != NULL)
+        touch_session(args->worker, cur);
 
     // Prepare logging
     char source[INET6_ADDRSTRLEN + 1];
@@ -704,7 +932,7 @@ jboolean handle_tcp(const struct arguments *args,
                         packet, mss, ws, ntohs(tcphdr->window) << ws);
 
             // Register session
-            struct ng_session *s = malloc(sizeof(struct ng_session));
+            struct ng_session *s = pool_alloc(args->worker, POOL_SESSION);
             s->protocol = IPPROTO_TCP;
 
             s->tcp.time = time(NULL);
@@ -723,6 +951,13 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.last_keep_alive = 0;
             s->tcp.sent = 0;
             s->tcp.received = 0;
+            s->tcp.tune_time = args->worker->batch;
+            s->tcp.tune_sent = 0;
+            s->tcp.tune_received = 0;
+            s->tcp.send_rate = 0;
+            s->tcp.recv_rate = 0;
+            s->tcp.sndbuf_tuned = 0;
+            s->tcp.rcvbuf_tuned = 0;
 
             if (version == 4) {
                 s->tcp.saddr.ip4 = (__be32) ip4->saddr;
@@ -736,26 +971,25 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.dest = tcphdr->dest;
             s->tcp.state = TCP_LISTEN;
             s->tcp.socks5 = SOCKS5_NONE;
-            s->tcp.forward = NULL;
+            s->tcp.forward.data = NULL;
+            s->tcp.forward.size = 0;
+            s->tcp.forward.queued = 0;
+            s->tcp.forward.ranges = 0;
             s->next = NULL;
 
             if (datalen) {
                 log_android(ANDROID_LOG_WARN, "%s SYN data", packet);
-                s->tcp.forward = malloc(sizeof(struct segment));
-                s->tcp.forward->seq = s->tcp.remote_seq;
-                s->tcp.forward->len = datalen;
-                s->tcp.forward->sent = 0;
-                s->tcp.forward->psh = tcphdr->psh;
-                s->tcp.forward->data = malloc(datalen);
-                memcpy(s->tcp.forward->data, data, datalen);
-                s->tcp.forward->next = NULL;
+                // SYN data follows the remote SYN
+                if (put_ring(&s->tcp, s->tcp.remote_seq + 1, data, datalen, tcphdr->psh))
+                    log_android(ANDROID_LOG_ERROR, "%s SYN data not queued", packet);
             }
 
             // Open socket
             s->socket = open_tcp_socket(args, &s->tcp, redirect);
             if (s->socket < 0) {
                 // Remote might retry
-                free(s);
+                clear_tcp_data(&s->tcp);
+                pool_free(args->worker, POOL_SESSION, s);
                 return 0;
             }
 
@@ -772,8 +1006,7 @@ jboolean handle_tcp(const struct arguments *args,
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
                             errno, strerror(errno));
 
-            s->next = args->ctx->ng_session;
-            args->ctx->ng_session = s;
+            add_session(args->worker, s);
 
             if (!allowed) {
                 log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
@@ -861,7 +1094,7 @@ jboolean handle_tcp(const struct arguments *args,
                     } else if (tcphdr->fin /* +ACK */) {
                         if (cur->tcp.state == TCP_ESTABLISHED) {
                             log_android(ANDROID_LOG_WARN, "%s FIN received", session);
-                            if (cur->tcp.forward == NULL) {
+                            if (cur->tcp.forward.ranges == 0) {
                                 cur->tcp.remote_seq++; // remote FIN
                                 if (write_ack(args, &cur->tcp) >= 0)
                                     cur->tcp.state = TCP_CLOSE_WAIT;
@@ -960,53 +1193,31 @@ void queue_tcp(const struct arguments *args,
                const char *session, struct tcp_session *cur,
                const uint8_t *data, uint16_t datalen) {
     uint32_t seq = ntohl(tcphdr->seq);
-    if (compare_u32(seq, cur->remote_seq) < 0)
+    if (compare_u32(seq + datalen, cur->remote_seq) <= 0)
         log_android(ANDROID_LOG_WARN, "%s already forwarded %u..%u",
                     session,
                     seq - cur->remote_start, seq + datalen - cur->remote_start);
     else {
-        struct segment *p = NULL;
-        struct segment *s = cur->forward;
-        while (s != NULL && compare_u32(s->seq, seq) < 0) {
-            p = s;
-            s = s->next;
-        }
-
-        if (s == NULL || compare_u32(s->seq, seq) > 0) {
-            log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
+        // Skip data already forwarded
+        if (compare_u32(seq, cur->remote_seq) < 0) {
+            uint32_t skip = cur->remote_seq - seq;
+            log_android(ANDROID_LOG_WARN, "%s partly forwarded %u..%u",
                         session,
                         seq - cur->remote_start, seq + datalen - cur->remote_start);
-            struct segment *n = malloc(sizeof(struct segment));
-            n->seq = seq;
-            n->len = datalen;
-            n->sent = 0;
-            n->psh = tcphdr->psh;
-            n->data = malloc(datalen);
-            memcpy(n->data, data, datalen);
-            n->next = s;
-            if (p == NULL)
-                cur->forward = n;
-            else
-                p->next = n;
-        } else if (s != NULL && s->seq == seq) {
-            if (s->len == datalen)
-                log_android(ANDROID_LOG_WARN, "%s segment already queued %u..%u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start);
-            else if (s->len < datalen) {
-                log_android(ANDROID_LOG_WARN, "%s segment smaller %u..%u > %u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
-                            s->seq + datalen - cur->remote_start);
-                free(s->data);
-                s->data = malloc(datalen);
-                memcpy(s->data, data, datalen);
-            } else
-                log_android(ANDROID_LOG_ERROR, "%s segment larger %u..%u < %u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
-                            s->seq + datalen - cur->remote_start);
+            seq += skip;
+            data += skip;
+            datalen -= skip;
         }
+
+        log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
+                    session,
+                    seq - cur->remote_start, seq + datalen - cur->remote_start);
+        if (put_ring(cur, seq, data, datalen, tcphdr->psh))
+            // The remote will retransmit
+            log_android(ANDROID_LOG_WARN, "%s not queued %u..%u ranges %d",
+                        session,
+                        seq - cur->remote_start, seq + datalen - cur->remote_start,
+                        cur->forward.ranges);
     }
 }
 
@@ -1163,7 +1374,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     uint8_t *options;
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = malloc(len);
+        buffer = alloc_buffer(args->worker, len);
         struct iphdr *ip4 = (struct iphdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct iphdr));
         options = buffer + sizeof(struct iphdr) + sizeof(struct tcphdr);
@@ -1194,7 +1405,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = malloc(len);
+        buffer = alloc_buffer(args->worker, len);
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct ip6_hdr));
         options = buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr);
@@ -1276,7 +1487,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                 ntohl(tcp->ack_seq) - cur->remote_start,
                 datalen);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = write_tun(args, buffer, len);
 
     // Write pcap record
     if (res >= 0) {
@@ -1291,7 +1502,8 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                     datalen,
                     errno, strerror((errno)));
 
-    free(buffer);
+    if (res < 0)
+        free_buffer(args->worker, buffer, len);
 
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "TCP write %d/%d", res, len);
@@ -0,0 +1,312 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Sessions are checked when touched by a packet or a socket event and when their deadline passes
+// Deadlines are kept in a hierarchical timer wheel with a level 0 slot per second
+// and a level 1 slot per TIMER_SLOTS seconds, which is cascaded into level 0 when reached
+
+static int is_active(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return !s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return (s->udp.state == UDP_ACTIVE);
+    else
+        return (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE);
+}
+
+static int *get_counter(struct worker *worker, const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return &worker->isessions;
+    else if (s->protocol == IPPROTO_UDP)
+        return &worker->usessions;
+    else
+        return &worker->tsessions;
+}
+
+jint get_session_uid(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return s->icmp.uid;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.uid;
+    else
+        return s->tcp.uid;
+}
+
+static time_t get_session_time(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return s->icmp.time;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.time;
+    else
+        return s->tcp.time;
+}
+
+static int find_uid_slot(const struct worker *worker, jint uid) {
+    // Linear probing, the free entry the uid would go to if not found
+    uint32_t i = (uint32_t) uid & (SESSION_UID_SIZE - 1);
+    for (int n = 0; n < SESSION_UID_SIZE; n++) {
+        const struct uid_sessions *u = &worker->uid_sessions[i];
+        if (u->count == 0 || u->uid == uid)
+            return (int) i;
+        i = (i + 1) & (SESSION_UID_SIZE - 1);
+    }
+    return -1;
+}
+
+static void free_uid_slot(struct worker *worker, uint32_t i) {
+    // Shift following entries back, so that lookups do not stop early
+    uint32_t j = i;
+    for (;;) {
+        j = (j + 1) & (SESSION_UID_SIZE - 1);
+        struct uid_sessions *u = &worker->uid_sessions[j];
+        if (u->count == 0)
+            break;
+        uint32_t home = (uint32_t) u->uid & (SESSION_UID_SIZE - 1);
+        if (((j - home) & (SESSION_UID_SIZE - 1)) >= ((j - i) & (SESSION_UID_SIZE - 1))) {
+            worker->uid_sessions[i] = *u;
+            i = j;
+        }
+    }
+    memset(&worker->uid_sessions[i], 0, sizeof(struct uid_sessions));
+}
+
+static void link_idle(struct worker *worker, struct ng_session *s) {
+    // Active sessions are kept in order of activity, for the worker and per uid
+    s->ltime = get_session_time(s);
+
+    s->lnext = NULL;
+    s->lprev = worker->idle_last;
+    if (worker->idle_last == NULL)
+        worker->idle_first = s;
+    else
+        worker->idle_last->lnext = s;
+    worker->idle_last = s;
+
+    s->unext = NULL;
+    s->uprev = NULL;
+    jint uid = get_session_uid(s);
+    int i = find_uid_slot(worker, uid);
+    if (i < 0) {
+        log_android(ANDROID_LOG_ERROR, "Uid sessions full uid %d", uid);
+        return;
+    }
+
+    struct uid_sessions *u = &worker->uid_sessions[i];
+    if (u->count++ == 0) {
+        u->uid = uid;
+        u->first = s;
+    } else {
+        s->uprev = u->last;
+        u->last->unext = s;
+    }
+    u->last = s;
+}
+
+static void unlink_idle(struct worker *worker, struct ng_session *s) {
+    if (s->lprev == NULL)
+        worker->idle_first = s->lnext;
+    else
+        s->lprev->lnext = s->lnext;
+    if (s->lnext == NULL)
+        worker->idle_last = s->lprev;
+    else
+        s->lnext->lprev = s->lprev;
+    s->lnext = NULL;
+    s->lprev = NULL;
+
+    int i = find_uid_slot(worker, get_session_uid(s));
+    if (i < 0)
+        return;
+    struct uid_sessions *u = &worker->uid_sessions[i];
+    if (u->count == 0 || (s->uprev == NULL && u->first != s))
+        return; // not linked, the uid sessions were full
+
+    if (s->uprev == NULL)
+        u->first = s->unext;
+    else
+        s->uprev->unext = s->unext;
+    if (s->unext == NULL)
+        u->last = s->uprev;
+    else
+        s->unext->uprev = s->uprev;
+    s->unext = NULL;
+    s->uprev = NULL;
+
+    if (--u->count == 0)
+        free_uid_slot(worker, (uint32_t) i);
+}
+
+int get_uid_sessions(const struct worker *worker, jint uid) {
+    int i = find_uid_slot(worker, uid);
+    return (i < 0 ? 0 : worker->uid_sessions[i].count);
+}
+
+struct ng_session *get_idle_session(const struct worker *worker, jint uid) {
+    // Least recently active session, of any uid if uid < 0
+    if (uid < 0)
+        return worker->idle_first;
+    int i = find_uid_slot(worker, uid);
+    return (i < 0 ? NULL : worker->uid_sessions[i].first);
+}
+
+static void unlink_timer(struct ng_session *s) {
+    if (s->tpprev == NULL)
+        return;
+    *s->tpprev = s->tnext;
+    if (s->tnext != NULL)
+        s->tnext->tpprev = s->tpprev;
+    s->tnext = NULL;
+    s->tpprev = NULL;
+}
+
+static void link_timer(struct worker *worker, struct ng_session *s, time_t earliest) {
+    time_t deadline = (s->deadline < earliest ? earliest : s->deadline);
+
+    struct ng_session **slot;
+    if (deadline - worker->timer_time < TIMER_SLOTS)
+        slot = &worker->timer[deadline & (TIMER_SLOTS - 1)];
+    else {
+        // Deadlines beyond level 1 are put in the last slot and relinked when cascaded
+        time_t far = deadline >> TIMER_BITS;
+        time_t last = (worker->timer_time >> TIMER_BITS) + TIMER_FAR_SLOTS - 1;
+        if (far > last)
+            far = last;
+        slot = &worker->timer_far[far & (TIMER_FAR_SLOTS - 1)];
+    }
+
+    s->tnext = *slot;
+    s->tpprev = slot;
+    if (*slot != NULL)
+        (*slot)->tpprev = &s->tnext;
+    *slot = s;
+}
+
+static void expire_slot(struct worker *worker, struct ng_session **slot, time_t now) {
+    struct ng_session *s = *slot;
+    *slot = NULL;
+    while (s != NULL) {
+        struct ng_session *next = s->tnext;
+        s->tnext = NULL;
+        s->tpprev = NULL;
+        if (s->deadline <= now)
+            touch_session(worker, s);
+        else
+            link_timer(worker, s, worker->timer_time + 1);
+        s = next;
+    }
+}
+
+void touch_session(struct worker *worker, struct ng_session *s) {
+    if (s->dirty)
+        return;
+    s->dirty = 1;
+    s->dnext = worker->dirty;
+    worker->dirty = s;
+}
+
+void start_session(struct worker *worker, struct ng_session *s) {
+    // Count new sessions right away, the session limits are checked per packet
+    if (is_active(s)) {
+        (*get_counter(worker, s))++;
+        s->active = 1;
+        link_idle(worker, s);
+    }
+    touch_session(worker, s);
+}
+
+void arm_session(struct worker *worker, struct ng_session *s, time_t deadline) {
+    int active = is_active(s);
+    if (active != s->active) {
+        *get_counter(worker, s) += (active ? 1 : -1);
+        s->active = (uint8_t) active;
+        if (active)
+            link_idle(worker, s);
+        else
+            unlink_idle(worker, s);
+    } else if (active && s->ltime != get_session_time(s)) {
+        // Most recently active last
+        unlink_idle(worker, s);
+        link_idle(worker, s);
+    }
+
+    unlink_timer(s);
+    s->deadline = deadline;
+    link_timer(worker, s, worker->timer_time + 1);
+}
+
+void cancel_session(struct worker *worker, struct ng_session *s) {
+    if (s->active) {
+        (*get_counter(worker, s))--;
+        s->active = 0;
+        unlink_idle(worker, s);
+    }
+    unlink_timer(s);
+}
+
+void expire_sessions(struct worker *worker, time_t now) {
+    if (worker->timer_time == 0 || now < worker->timer_time) {
+        worker->timer_time = now;
+        return;
+    }
+
+    if (now - worker->timer_time >= TIMER_SLOTS) {
+        // Woke up late, recheck all deadlines
+        worker->timer_time = now;
+        for (int i = 0; i < TIMER_SLOTS; i++)
+            expire_slot(worker, &worker->timer[i], now);
+        for (int i = 0; i < TIMER_FAR_SLOTS; i++)
+            expire_slot(worker, &worker->timer_far[i], now);
+        return;
+    }
+
+    while (worker->timer_time < now) {
+        time_t t = ++worker->timer_time;
+
+        // Cascade level 1
+        if ((t & (TIMER_SLOTS - 1)) == 0) {
+            struct ng_session **far = &worker->timer_far[(t >> TIMER_BITS) & (TIMER_FAR_SLOTS - 1)];
+            struct ng_session *s = *far;
+            *far = NULL;
+            while (s != NULL) {
+                struct ng_session *next = s->tnext;
+                s->tnext = NULL;
+                s->tpprev = NULL;
+                link_timer(worker, s, t);
+                s = next;
+            }
+        }
+
+        expire_slot(worker, &worker->timer[t & (TIMER_SLOTS - 1)], now);
+    }
+}
+
+int get_timer_timeout(const struct worker *worker) {
+    for (int i = 1; i < TIMER_SLOTS; i++)
+        if (worker->timer[(worker->timer_time + i) & (TIMER_SLOTS - 1)] != NULL)
+            return i;
+
+    // Wake up to cascade level 1
+    for (int i = 0; i < TIMER_FAR_SLOTS; i++)
+        if (worker->timer_far[i] != NULL)
+            return (int) (TIMER_SLOTS - (worker->timer_time & (TIMER_SLOTS - 1)));
+
+    return EPOLL_TIMEOUT;
+}
@@ -69,7 +69,8 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
 
     if (s->udp.state == UDP_CLOSED && (s->udp.sent || s->udp.received)) {
         account_usage(args, s->udp.version, IPPROTO_UDP,
-                      dest, ntohs(s->udp.dest), s->udp.uid, s->udp.sent, s->udp.received);
+                      &s->udp.daddr, ntohs(s->udp.dest), s->udp.uid,
+                      s->udp.sent, s->udp.received);
         s->udp.sent = 0;
         s->udp.received = 0;
     }
@@ -84,6 +85,7 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
 
 void check_udp_socket(const struct arguments *args, const struct epoll_event *ev) {
     struct ng_session *s = (struct ng_session *) ev->data.ptr;
+    struct worker *worker = args->worker;
 
     // Check socket error
     if (ev->events & EPOLLERR) {
@@ -104,46 +106,169 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
         if (ev->events & EPOLLIN) {
             s->udp.time = time(NULL);
 
-            uint8_t *buffer = malloc(s->udp.mss);
-            ssize_t bytes = recv(s->socket, buffer, s->udp.mss, 0);
-            if (bytes < 0) {
-                // Socket error
-                log_android(ANDROID_LOG_WARN, "UDP recv error %d: %s",
-                            errno, strerror(errno));
+            // Receive until drained
+            struct mmsghdr msgs[UDP_BATCH];
+            int count;
+            do {
+                count = recv_udp(worker, s->socket, s->udp.mss, msgs);
+                if (count < 0) {
+                    if (errno != EAGAIN && errno != EWOULDBLOCK) {
+                        // Socket error
+                        log_android(ANDROID_LOG_WARN, "UDP recv error %d: %s",
+                                    errno, strerror(errno));
+
+                        if (errno != EINTR)
+                            s->udp.state = UDP_FINISHING;
+                    }
+                    break;
+                }
 
-                if (errno != EINTR && errno != EAGAIN)
-                    s->udp.state = UDP_FINISHING;
-            } else if (bytes == 0) {
-                log_android(ANDROID_LOG_WARN, "UDP recv eof");
-                s->udp.state = UDP_FINISHING;
+                for (int i = 0; i < count; i++) {
+                    uint8_t *buffer = worker->udp_recv[i];
+                    size_t bytes = msgs[i].msg_len;
+                    if (bytes == 0) {
+                        log_android(ANDROID_LOG_WARN, "UDP recv eof");
+                        s->udp.state = UDP_FINISHING;
+                        break;
+                    }
+
+                    // Socket read data
+                    char dest[INET6_ADDRSTRLEN + 1];
+                    if (s->udp.version == 4)
+                        inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
+                    else
+                        inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
+                    log_android(ANDROID_LOG_INFO, "UDP recv bytes %d from %s/%u for tun",
+                                bytes, dest, ntohs(s->udp.dest));
 
-            } else {
-                // Socket read data
-                char dest[INET6_ADDRSTRLEN + 1];
-                if (s->udp.version == 4)
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                else
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
-                log_android(ANDROID_LOG_INFO, "UDP recv bytes %d from %s/%u for tun",
-                            bytes, dest, ntohs(s->udp.dest));
-
-                s->udp.received += bytes;
-
-                // Process DNS response
-                if (ntohs(s->udp.dest) == 53)
-                    parse_dns_response(args, &s->udp, buffer, (size_t *) &bytes);
-
-                // Forward to tun
-                if (write_udp(args, &s->udp, buffer, (size_t) bytes) < 0)
-                    s->udp.state = UDP_FINISHING;
-                else {
-                    // Prevent too many open files
+                    s->udp.received += bytes;
+
+                    // Process DNS response
                     if (ntohs(s->udp.dest) == 53)
+                        parse_dns_response(args, &s->udp, buffer, &bytes);
+
+                    // Forward to tun
+                    if (write_udp(args, &s->udp, buffer, bytes) < 0)
                         s->udp.state = UDP_FINISHING;
+                    else {
+                        // Prevent too many open files
+                        if (ntohs(s->udp.dest) == 53)
+                            s->udp.state = UDP_FINISHING;
+                    }
                 }
+            } while (count == UDP_BATCH && s->udp.state == UDP_ACTIVE);
+        }
+    }
+}
+
+int recv_udp(struct worker *worker, int sock, size_t size, struct mmsghdr *msgs) {
+    // Receive up to UDP_BATCH datagrams into the receive buffers of the worker
+    struct iovec iov[UDP_BATCH];
+    memset(msgs, 0, UDP_BATCH * sizeof(struct mmsghdr));
+    for (int i = 0; i < UDP_BATCH; i++) {
+        if (worker->udp_recv[i] == NULL) {
+            worker->udp_recv[i] = malloc(UDP4_MAXMSG);
+            if (worker->udp_recv[i] == NULL) {
+                log_android(ANDROID_LOG_ERROR, "UDP malloc %d failed", UDP4_MAXMSG);
+                errno = ENOMEM;
+                return -1;
             }
-            free(buffer);
         }
+        iov[i].iov_base = worker->udp_recv[i];
+        iov[i].iov_len = size;
+        msgs[i].msg_hdr.msg_iov = &iov[i];
+        msgs[i].msg_hdr.msg_iovlen = 1;
+    }
+
+    return recvmmsg(sock, msgs, UDP_BATCH, MSG_DONTWAIT, NULL);
+}
+
+// Datagrams from the tun are queued and sent at the end of an event batch,
+// those of the same session with one system call
+
+static void queue_udp(const struct arguments *args, struct ng_session *s,
+                      const uint8_t *data, size_t datalen,
+                      const struct sockaddr *addr, socklen_t addrlen) {
+    struct worker *worker = args->worker;
+    if (worker->udp_queued == UDP_BATCH)
+        flush_udp(args);
+
+    struct udp_datagram *d = &worker->udp_send[worker->udp_queued++];
+    d->session = s;
+    d->data = alloc_buffer(worker, datalen);
+    memcpy(d->data, data, datalen);
+    d->len = datalen;
+    memcpy(&d->addr, addr, addrlen);
+    d->addrlen = addrlen;
+}
+
+void flush_udp(const struct arguments *args) {
+    struct worker *worker = args->worker;
+    struct mmsghdr msgs[UDP_BATCH];
+    struct iovec iov[UDP_BATCH];
+    struct udp_datagram *batch[UDP_BATCH];
+
+    for (int i = 0; i < worker->udp_queued; i++) {
+        struct ng_session *s = worker->udp_send[i].session;
+        if (s == NULL)
+            continue;
+
+        // Collect the datagrams of this session in order
+        int count = 0;
+        memset(msgs, 0, sizeof(msgs));
+        for (int j = i; j < worker->udp_queued; j++) {
+            struct udp_datagram *d = &worker->udp_send[j];
+            if (d->session != s)
+                continue;
+            iov[count].iov_base = d->data;
+            iov[count].iov_len = d->len;
+            msgs[count].msg_hdr.msg_name = &d->addr;
+            msgs[count].msg_hdr.msg_namelen = d->addrlen;
+            msgs[count].msg_hdr.msg_iov = &iov[count];
+            msgs[count].msg_hdr.msg_iovlen = 1;
+            batch[count++] = d;
+        }
+
+        int sent = sendmmsg(s->socket, msgs, (unsigned int) count, MSG_NOSIGNAL);
+        if (sent < 0) {
+            log_android(ANDROID_LOG_ERROR, "UDP sendmmsg error %d: %s", errno, strerror(errno));
+            if (errno != EINTR && errno != EAGAIN) {
+                s->udp.state = UDP_FINISHING;
+                touch_session(worker, s);
+            }
+            sent = 0;
+        } else if (sent < count)
+            log_android(ANDROID_LOG_WARN, "UDP sendmmsg %d/%d", sent, count);
+
+        for (int k = 0; k < count; k++) {
+            if (k < sent)
+                s->udp.sent += batch[k]->len;
+            free_buffer(worker, batch[k]->data, batch[k]->len);
+            batch[k]->session = NULL;
+        }
+    }
+
+    worker->udp_queued = 0;
+}
+
+void drop_udp(struct worker *worker, const struct ng_session *s) {
+    // Datagrams of a session closed before the end of the batch
+    for (int i = 0; i < worker->udp_queued; i++)
+        if (worker->udp_send[i].session == s) {
+            free_buffer(worker, worker->udp_send[i].data, worker->udp_send[i].len);
+            worker->udp_send[i].session = NULL;
+        }
+}
+
+void clear_udp(struct worker *worker) {
+    for (int i = 0; i < worker->udp_queued; i++)
+        if (worker->udp_send[i].session != NULL)
+            free_buffer(worker, worker->udp_send[i].data, worker->udp_send[i].len);
+    worker->udp_queued = 0;
+
+    for (int i = 0; i < UDP_BATCH; i++) {
+        free(worker->udp_recv[i]);
+        worker->udp_recv[i] = NULL;
     }
 }
 
@@ -158,16 +283,12 @@ int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint
         return 1;
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->worker, IPPROTO_UDP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            udphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            udphdr->dest);
 
     return (cur != NULL);
 }
@@ -196,7 +317,7 @@ void block_udp(const struct arguments *args,
                 source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
 
     // Register session
-    struct ng_session *s = malloc(sizeof(struct ng_session));
+    struct ng_session *s = pool_alloc(args->worker, POOL_SESSION);
     s->protocol = IPPROTO_UDP;
 
     s->udp.time = time(NULL);
@@ -216,8 +337,7 @@ void block_udp(const struct arguments *args,
     s->udp.state = UDP_BLOCKED;
     s->socket = -1;
 
-    s->next = args->ctx->ng_session;
-    args->ctx->ng_session = s;
+    add_session(args->worker, s);
 }
 
 jboolean handle_udp(const struct arguments *args,
@@ -234,16 +354,14 @@ jboolean handle_udp(const struct arguments *args,
     const size_t datalen = length - (data - pkt);
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->worker, IPPROTO_UDP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            udphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            udphdr->dest);
+    if (cur != NULL)
+        touch_session(args->worker, cur);
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
@@ -261,13 +379,23 @@ jboolean handle_udp(const struct arguments *args,
         return 0;
     }
 
+    // Answer repeated DNS queries locally
+    if (redirect == NULL && ntohs(udphdr->dest) == 53 &&
+        answer_dns(args, pkt, payload, data, datalen, uid) == 0)
+        return 1;
+
+    // Forward DNS queries without a session
+    if (cur == NULL && redirect == NULL && ntohs(udphdr->dest) == 53 &&
+        forward_dns(args, pkt, payload, data, datalen, uid, epoll_fd) == 0)
+        return 1;
+
     // Create new session if needed
     if (cur == NULL) {
         log_android(ANDROID_LOG_INFO, "UDP new session from %s/%u to %s/%u",
                     source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
 
         // Register session
-        struct ng_session *s = malloc(sizeof(struct ng_session));
+        struct ng_session *s = pool_alloc(args->worker, POOL_SESSION);
         s->protocol = IPPROTO_UDP;
 
         s->udp.time = time(NULL);
@@ -300,7 +428,7 @@ jboolean handle_udp(const struct arguments *args,
         // Open UDP socket
         s->socket = open_udp_socket(args, &s->udp, redirect);
         if (s->socket < 0) {
-            free(s);
+            pool_free(args->worker, POOL_SESSION, s);
             return 0;
         }
 
@@ -313,8 +441,7 @@ jboolean handle_udp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add udp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->worker, s);
 
         cur = s;
     }
@@ -324,21 +451,21 @@ jboolean handle_udp(const struct arguments *args,
         char qname[DNS_QNAME_MAX + 1];
         uint16_t qtype;
         uint16_t qclass;
-        if (get_dns_query(args, &cur->udp, data, datalen, &qtype, &qclass, qname) >= 0) {
+        int qlen = get_dns_query(args, &cur->udp, data, datalen, &qtype, &qclass, qname);
+        if (qlen >= 0) {
             log_android(ANDROID_LOG_DEBUG,
                         "DNS query qtype %d qclass %d name %s",
                         qtype, qclass, qname);
 
             if (0)
-                if (check_domain(args, &cur->udp, data, datalen, qclass, qtype, qname)) {
+                if (check_domain(args, &cur->udp, data, (size_t) qlen, qclass, qtype, qname)) {
                     // Log qname
                     char name[DNS_QNAME_MAX + 40 + 1];
                     sprintf(name, "qtype %d qname %s", qtype, qname);
-                    jobject objPacket = create_packet(
-                            args, version, IPPROTO_UDP, "",
-                            source, ntohs(cur->udp.source), dest, ntohs(cur->udp.dest),
-                            name, 0, 0);
-                    log_packet(args, objPacket);
+                    log_packet(args, version, IPPROTO_UDP, "",
+                               &cur->udp.saddr, ntohs(cur->udp.source),
+                               &cur->udp.daddr, ntohs(cur->udp.dest),
+                               name, 0, 0);
 
                     // Session done
                     cur->udp.state = UDP_FINISHING;
@@ -388,17 +515,10 @@ jboolean handle_udp(const struct arguments *args,
         }
     }
 
-    if (sendto(cur->socket, data, (socklen_t) datalen, MSG_NOSIGNAL,
-               (rversion == 4 ? (const struct sockaddr *) &addr4
-                              : (const struct sockaddr *) &addr6),
-               (socklen_t) (rversion == 4 ? sizeof(addr4) : sizeof(addr6))) != datalen) {
-        log_android(ANDROID_LOG_ERROR, "UDP sendto error %d: %s", errno, strerror(errno));
-        if (errno != EINTR && errno != EAGAIN) {
-            cur->udp.state = UDP_FINISHING;
-            return 0;
-        }
-    } else
-        cur->udp.sent += datalen;
+    queue_udp(args, cur, data, datalen,
+              (rversion == 4 ? (const struct sockaddr *) &addr4
+                             : (const struct sockaddr *) &addr6),
+              (socklen_t) (rversion == 4 ? sizeof(addr4) : sizeof(addr6)));
 
     return 1;
 }
@@ -475,7 +595,7 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     // Build packet
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct udphdr) + datalen;
-        buffer = malloc(len);
+        buffer = alloc_buffer(args->worker, len);
         struct iphdr *ip4 = (struct iphdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct iphdr));
         if (datalen)
@@ -505,7 +625,7 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct udphdr) + datalen;
-        buffer = malloc(len);
+        buffer = alloc_buffer(args->worker, len);
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct ip6_hdr));
         if (datalen)
@@ -557,7 +677,7 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                 "UDP sending to tun %d from %s/%u to %s/%u data %u",
                 args->tun, dest, ntohs(cur->dest), source, ntohs(cur->source), len);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = write_tun(args, buffer, len);
 
     // Write PCAP record
     if (res >= 0) {
@@ -566,7 +686,8 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     } else
         log_android(ANDROID_LOG_WARN, "UDP write error %d: %s", errno, strerror(errno));
 
-    free(buffer);
+    if (res < 0)
+        free_buffer(args->worker, buffer, len);
 
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
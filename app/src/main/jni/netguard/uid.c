@@ -0,0 +1,379 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Snapshots of the /proc/net socket tables, read at most once per event batch
+// Rows are indexed by local port, sockets bound to any address have a zero address
+// Resolved rows are kept in a set associative cache until UID_MAX_AGE
+// Callers hold the uid lock, see get_uid
+
+static struct uid_snapshot uid_snapshot[UID_SNAPSHOTS] = {
+        {.fd = -1}, {.fd = -1}, {.fd = -1}, {.fd = -1}, {.fd = -1}, {.fd = -1}
+};
+
+static const char *get_proc_name(int version, int protocol, int *snapshot) {
+    if (protocol == IPPROTO_ICMP && version == 4) {
+        *snapshot = 0;
+        return "/proc/net/icmp";
+    } else if (protocol == IPPROTO_ICMPV6 && version == 6) {
+        *snapshot = 1;
+        return "/proc/net/icmp6";
+    } else if (protocol == IPPROTO_TCP) {
+        *snapshot = (version == 4 ? 2 : 3);
+        return (version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6");
+    } else if (protocol == IPPROTO_UDP) {
+        *snapshot = (version == 4 ? 4 : 5);
+        return (version == 4 ? "/proc/net/udp" : "/proc/net/udp6");
+    } else
+        return NULL;
+}
+
+static const char *skip_space(const char *p, const char *end) {
+    while (p < end && (*p == ' ' || *p == '\t'))
+        p++;
+    return p;
+}
+
+static const char *skip_field(const char *p, const char *end) {
+    p = skip_space(p, end);
+    while (p < end && *p != ' ' && *p != '\t' && *p != '\n')
+        p++;
+    return p;
+}
+
+static const char *scan_hex(const char *p, const char *end, int digits, uint32_t *value) {
+    // Zero digits means as many as there are
+    uint32_t v = 0;
+    int n = 0;
+    while (p < end && (digits == 0 || n < digits)) {
+        uint8_t nibble = char2nible(*p);
+        if (nibble > 15)
+            break;
+        v = (v << 4) | nibble;
+        n++;
+        p++;
+    }
+    if (n == 0 || (digits != 0 && n != digits))
+        return NULL;
+    *value = v;
+    return p;
+}
+
+static const char *scan_endpoint(const char *p, const char *end, int words,
+                                 uint8_t *addr, uint16_t *port) {
+    // The kernel prints each 32 bits word of an address in host order
+    for (int w = 0; w < words; w++) {
+        uint32_t v;
+        if ((p = scan_hex(p, end, 8, &v)) == NULL)
+            return NULL;
+        memcpy(addr + w * 4, &v, 4);
+    }
+
+    uint32_t v;
+    if (p >= end || *p != ':' || (p = scan_hex(p + 1, end, 0, &v)) == NULL)
+        return NULL;
+    *port = (uint16_t) v;
+    return p;
+}
+
+static const char *scan_row(const char *p, const char *end, int words, struct uid_row *row) {
+    // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid ...
+    while (p < end && *p != ':' && *p != '\n')
+        p++;
+    if (p >= end || *p != ':')
+        return NULL;
+
+    p = skip_space(p + 1, end);
+    if ((p = scan_endpoint(p, end, words, row->saddr, &row->sport)) == NULL)
+        return NULL;
+    p = skip_space(p, end);
+    if ((p = scan_endpoint(p, end, words, row->daddr, &row->dport)) == NULL)
+        return NULL;
+
+    for (int i = 0; i < 4; i++)
+        p = skip_field(p, end);
+    p = skip_space(p, end);
+
+    jint uid = 0;
+    int n = 0;
+    while (p < end && *p >= '0' && *p <= '9') {
+        uid = uid * 10 + (*p - '0');
+        n++;
+        p++;
+    }
+    if (n == 0)
+        return NULL;
+    row->uid = uid;
+
+    while (p < end && *p != '\n')
+        p++;
+    return (p < end ? p + 1 : p);
+}
+
+static int read_snapshot(struct uid_snapshot *s, const char *fn, int words) {
+    if (s->fd < 0) {
+        s->fd = open(fn, O_RDONLY | O_CLOEXEC);
+        if (s->fd < 0) {
+            log_android(ANDROID_LOG_ERROR, "open %s error %d: %s", fn, errno, strerror(errno));
+            return -1;
+        }
+    }
+
+    // Read the whole file into the reusable buffer
+    size_t length = 0;
+    while (1) {
+        if (length == s->size) {
+            size_t size = (s->size == 0 ? UID_SNAPSHOT_BUFFER : s->size * 2);
+            char *buffer = realloc(s->buffer, size);
+            if (buffer == NULL) {
+                log_android(ANDROID_LOG_ERROR, "%s buffer realloc %u failed", fn, size);
+                return -1;
+            }
+            s->buffer = buffer;
+            s->size = size;
+        }
+
+        ssize_t n = pread(s->fd, s->buffer + length, s->size - length, length);
+        if (n < 0) {
+            if (errno == EINTR)
+                continue;
+            log_android(ANDROID_LOG_ERROR, "pread %s error %d: %s", fn, errno, strerror(errno));
+            return -1;
+        }
+        if (n == 0)
+            break;
+        length += n;
+    }
+
+    // Parse all rows, skipping the header
+    s->rows = 0;
+    const char *p = s->buffer;
+    const char *end = s->buffer + length;
+    while (p < end && *p != '\n')
+        p++;
+    if (p < end)
+        p++;
+    while (p < end) {
+        if (s->rows == s->capacity) {
+            int capacity = (s->capacity == 0 ? 64 : s->capacity * 2);
+            struct uid_row *row = realloc(s->row, capacity * sizeof(struct uid_row));
+            if (row == NULL) {
+                log_android(ANDROID_LOG_ERROR, "%s rows realloc %d failed", fn, capacity);
+                return -1;
+            }
+            s->row = row;
+            s->capacity = capacity;
+        }
+
+        const char *next = scan_row(p, end, words, &s->row[s->rows]);
+        if (next == NULL) {
+            log_android(ANDROID_LOG_ERROR, "%s invalid row %d", fn, s->rows);
+            while (p < end && *p != '\n')
+                p++;
+            if (p < end)
+                p++;
+        } else {
+            s->rows++;
+            p = next;
+        }
+    }
+
+    // Index rows by local port, ephemeral ports are spread evenly over the low bits
+    int buckets = 64;
+    while (buckets < s->rows * 2)
+        buckets *= 2;
+    if (buckets > s->buckets) {
+        int *index = realloc(s->index, buckets * sizeof(int));
+        if (index == NULL) {
+            log_android(ANDROID_LOG_ERROR, "%s index realloc %d failed", fn, buckets);
+            return -1;
+        }
+        s->index = index;
+        s->buckets = buckets;
+    }
+    for (int i = 0; i < s->buckets; i++)
+        s->index[i] = -1;
+
+    // Later rows first, like the last match of a full scan
+    for (int i = 0; i < s->rows; i++) {
+        int h = s->row[i].sport & (s->buckets - 1);
+        s->row[i].next = s->index[h];
+        s->index[h] = i;
+    }
+
+    s->time = get_ms();
+    log_android(ANDROID_LOG_DEBUG, "%s read %u bytes %d rows", fn, length, s->rows);
+    return 0;
+}
+
+static const struct uid_row *find_row(const struct uid_snapshot *s, int version,
+                                      const void *saddr, uint16_t sport,
+                                      const void *daddr, uint16_t dport) {
+    static const uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    size_t alen = (version == 4 ? 4 : 16);
+
+    if (s->buckets == 0)
+        return NULL;
+
+    for (int i = s->index[sport & (s->buckets - 1)]; i >= 0; i = s->row[i].next) {
+        const struct uid_row *row = &s->row[i];
+        if (row->sport == sport &&
+            (row->dport == dport || row->dport == 0) &&
+            (memcmp(row->saddr, saddr, alen) == 0 || memcmp(row->saddr, zero, alen) == 0) &&
+            (memcmp(row->daddr, daddr, alen) == 0 || memcmp(row->daddr, zero, alen) == 0))
+            return row;
+    }
+    return NULL;
+}
+
+jint get_uid_snapshot(const int version, const int protocol,
+                      const void *saddr, const uint16_t sport,
+                      const void *daddr, const uint16_t dport,
+                      long long since, struct uid_row *match) {
+    int snapshot;
+    const char *fn = get_proc_name(version, protocol, &snapshot);
+    if (fn == NULL)
+        return -1;
+
+    struct uid_snapshot *s = &uid_snapshot[snapshot];
+    int words = (version == 4 ? 1 : 4);
+
+    // Sockets created after the snapshot was taken need another read
+    int fresh = 0;
+    if (s->time == 0 || s->time < since) {
+        if (read_snapshot(s, fn, words))
+            return -2;
+        fresh = 1;
+    }
+
+    const struct uid_row *row = find_row(s, version, saddr, sport, daddr, dport);
+    if (row == NULL && !fresh) {
+        if (read_snapshot(s, fn, words))
+            return -2;
+        row = find_row(s, version, saddr, sport, daddr, dport);
+    }
+
+    if (row == NULL)
+        return -1;
+
+    memcpy(match, row, sizeof(struct uid_row));
+    return row->uid;
+}
+
+void free_uid_snapshots() {
+    for (int i = 0; i < UID_SNAPSHOTS; i++) {
+        struct uid_snapshot *s = &uid_snapshot[i];
+        if (s->fd >= 0 && close(s->fd))
+            log_android(ANDROID_LOG_ERROR, "close proc error %d: %s", errno, strerror(errno));
+        free(s->buffer);
+        free(s->row);
+        free(s->index);
+        memset(s, 0, sizeof(struct uid_snapshot));
+        s->fd = -1;
+    }
+}
+
+static struct uid_cache_entry uid_cache[UID_CACHE_SIZE];
+static jint uid_cache_hits = 0;
+static jint uid_cache_misses = 0;
+static jint uid_cache_evictions = 0;
+
+static struct uid_cache_entry *get_uid_set(int version, int protocol,
+                                           const void *saddr, uint16_t sport) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    const uint8_t *a = (const uint8_t *) saddr;
+    size_t alen = (version == 4 ? 4 : 16);
+    for (size_t i = 0; i < alen; i++)
+        h = (h ^ a[i]) * 16777619u;
+    h = (h ^ (uint8_t) version) * 16777619u;
+    h = (h ^ (uint8_t) protocol) * 16777619u;
+    h = (h ^ (sport & 0xFF)) * 16777619u;
+    h = (h ^ (sport >> 8)) * 16777619u;
+    return &uid_cache[(h & (UID_CACHE_SIZE / UID_CACHE_WAYS - 1)) * UID_CACHE_WAYS];
+}
+
+const struct uid_cache_entry *find_uid_cache(const int version, const int protocol,
+                                            const void *saddr, const uint16_t sport,
+                                            const void *daddr, const uint16_t dport,
+                                            long now) {
+    static const uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    size_t alen = (version == 4 ? 4 : 16);
+
+    // Connected sockets first, then sockets bound to any address
+    for (int any = 0; any < 2; any++) {
+        const void *key = (any ? zero : saddr);
+        struct uid_cache_entry *set = get_uid_set(version, protocol, key, sport);
+        for (int w = 0; w < UID_CACHE_WAYS; w++) {
+            struct uid_cache_entry *e = &set[w];
+            if (e->time == 0)
+                continue;
+            if (now - e->time > UID_MAX_AGE) {
+                e->time = 0;
+                continue;
+            }
+            if (e->version == version &&
+                e->protocol == protocol &&
+                e->sport == sport &&
+                memcmp(e->saddr, key, alen) == 0 &&
+                (e->dport == dport || e->dport == 0) &&
+                (memcmp(e->daddr, daddr, alen) == 0 || memcmp(e->daddr, zero, alen) == 0)) {
+                uid_cache_hits++;
+                return e;
+            }
+        }
+    }
+
+    uid_cache_misses++;
+    return NULL;
+}
+
+void put_uid_cache(const int version, const int protocol, const struct uid_row *row, long now) {
+    size_t alen = (version == 4 ? 4 : 16);
+    struct uid_cache_entry *set = get_uid_set(version, protocol, row->saddr, row->sport);
+
+    // Reuse a free or expired entry, else evict the oldest one
+    struct uid_cache_entry *e = NULL;
+    for (int w = 0; w < UID_CACHE_WAYS; w++)
+        if (set[w].time == 0 || now - set[w].time > UID_MAX_AGE) {
+            e = &set[w];
+            break;
+        } else if (e == NULL || set[w].time < e->time)
+            e = &set[w];
+    if (e->time != 0 && now - e->time <= UID_MAX_AGE)
+        uid_cache_evictions++;
+
+    e->version = (uint8_t) version;
+    e->protocol = (uint8_t) protocol;
+    memset(e->saddr, 0, sizeof(e->saddr));
+    memcpy(e->saddr, row->saddr, alen);
+    e->sport = row->sport;
+    memset(e->daddr, 0, sizeof(e->daddr));
+    memcpy(e->daddr, row->daddr, alen);
+    e->dport = row->dport;
+    e->uid = row->uid;
+    e->time = now;
+}
+
+void get_uid_cache_stats(jint *values) {
+    values[0] = uid_cache_hits;
+    values[1] = uid_cache_misses;
+    values[2] = uid_cache_evictions;
+}
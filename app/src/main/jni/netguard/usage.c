@@ -0,0 +1,109 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Usage of closed sessions is aggregated per destination
+// and passed to Java periodically or when the table fills up
+
+static uint32_t hash_usage(int version, int protocol,
+                           const void *daddr, uint16_t dport, jint uid) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    const uint8_t *a = (const uint8_t *) daddr;
+    size_t alen = (version == 4 ? 4 : 16);
+    for (size_t i = 0; i < alen; i++)
+        h = (h ^ a[i]) * 16777619u;
+    h = (h ^ (uint8_t) protocol) * 16777619u;
+    h = (h ^ (dport & 0xFF)) * 16777619u;
+    h = (h ^ (dport >> 8)) * 16777619u;
+    for (int i = 0; i < 4; i++)
+        h = (h ^ (((uint32_t) uid >> (i * 8)) & 0xFF)) * 16777619u;
+    return h;
+}
+
+void account_usage(const struct arguments *args, jint version, jint protocol,
+                   const void *daddr, jint dport, jint uid, jlong sent, jlong received) {
+    struct worker *worker = args->worker;
+    size_t alen = (version == 4 ? 4 : 16);
+
+    size_t i = hash_usage(version, protocol, daddr, (uint16_t) dport, uid) &
+               (USAGE_TABLE_SIZE - 1);
+    while (worker->usage[i].used) {
+        struct usage *u = &worker->usage[i];
+        if (u->version == version && u->protocol == protocol &&
+            u->dport == dport && u->uid == uid &&
+            memcmp(u->daddr, daddr, alen) == 0)
+            break;
+        i = (i + 1) & (USAGE_TABLE_SIZE - 1);
+    }
+
+    struct usage *u = &worker->usage[i];
+    if (!u->used) {
+        u->used = 1;
+        u->version = (uint8_t) version;
+        u->protocol = (uint8_t) protocol;
+        u->dport = (uint16_t) dport;
+        u->uid = uid;
+        memset(u->daddr, 0, sizeof(u->daddr));
+        memcpy(u->daddr, daddr, alen);
+        u->sent = 0;
+        u->received = 0;
+        u->connections = 0;
+        worker->usage_count++;
+    }
+
+    u->sent += sent;
+    u->received += received;
+    u->connections++;
+
+    if (worker->usage_count >= USAGE_FLUSH_COUNT)
+        flush_usage(args);
+}
+
+void check_usage(const struct arguments *args) {
+    struct worker *worker = args->worker;
+    long long ms = get_ms();
+    if (worker->usage_count > 0 && ms - worker->usage_flushed > USAGE_FLUSH_INTERVAL)
+        flush_usage(args);
+}
+
+int get_usage_timeout(const struct worker *worker, int timeout) {
+    if (worker->usage_count == 0)
+        return timeout;
+
+    // Wake up in time for check_usage to flush
+    long long left = worker->usage_flushed + USAGE_FLUSH_INTERVAL - get_ms();
+    int seconds = (left < 0 ? 0 : (int) (left / 1000)) + 1;
+    return (seconds < timeout ? seconds : timeout);
+}
+
+void flush_usage(const struct arguments *args) {
+    struct worker *worker = args->worker;
+    worker->usage_flushed = get_ms();
+    if (worker->usage_count == 0)
+        return;
+
+    log_android(ANDROID_LOG_DEBUG, "Flush usage count %d", worker->usage_count);
+
+    account_usages(args, worker->usage, USAGE_TABLE_SIZE, worker->usage_count);
+
+    memset(worker->usage, 0, sizeof(worker->usage));
+    worker->usage_count = 0;
+}
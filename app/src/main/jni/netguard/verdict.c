@@ -0,0 +1,142 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Per worker cache of is_address_allowed results, direct mapped
+// Entries of an older generation are stale, the generation is bumped on every rule change
+
+static uint32_t hash_verdict(int version, int protocol,
+                             const void *daddr, uint16_t dport, jint uid) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    const uint8_t *a = (const uint8_t *) daddr;
+    size_t alen = (version == 4 ? 4 : 16);
+    for (size_t i = 0; i < alen; i++)
+        h = (h ^ a[i]) * 16777619u;
+    h = (h ^ (uint8_t) protocol) * 16777619u;
+    h = (h ^ (dport & 0xFF)) * 16777619u;
+    h = (h ^ (dport >> 8)) * 16777619u;
+    for (int i = 0; i < 4; i++)
+        h = (h ^ (((uint32_t) uid >> (i * 8)) & 0xFF)) * 16777619u;
+    return h;
+}
+
+void invalidate_verdicts(struct context *ctx) {
+    ctx->generation++;
+    if (ctx->generation == 0)
+        ctx->generation++; // zero means empty entry
+    log_android(ANDROID_LOG_DEBUG, "Verdicts invalidated generation %u", ctx->generation);
+}
+
+struct verdict *get_verdict(struct worker *worker, uint32_t generation,
+                            int version, int protocol,
+                            const void *daddr, uint16_t dport, jint uid) {
+    uint32_t h = hash_verdict(version, protocol, daddr, dport, uid);
+    struct verdict *v = &worker->verdict[h & (VERDICT_CACHE_SIZE - 1)];
+
+    if (v->generation != generation ||
+        v->version != version ||
+        v->protocol != protocol ||
+        v->dport != dport ||
+        v->uid != uid ||
+        memcmp(v->daddr, daddr, version == 4 ? 4 : 16) != 0)
+        return NULL;
+
+    // IP rules can expire
+    if (v->expires < get_ms()) {
+        v->generation = 0;
+        return NULL;
+    }
+
+    return v;
+}
+
+void put_verdict(struct worker *worker, uint32_t generation, uint32_t current,
+                 int version, int protocol,
+                 const void *daddr, uint16_t dport, jint uid,
+                 const struct allowed *redirect, long long expires) {
+    // Rules changed while is_address_allowed was being called
+    if (generation == 0 || generation != current)
+        return;
+
+    uint32_t h = hash_verdict(version, protocol, daddr, dport, uid);
+    struct verdict *v = &worker->verdict[h & (VERDICT_CACHE_SIZE - 1)];
+
+    v->generation = generation;
+    v->version = (uint8_t) version;
+    v->protocol = (uint8_t) protocol;
+    v->dport = dport;
+    v->uid = uid;
+    memset(v->daddr, 0, sizeof(v->daddr));
+    memcpy(v->daddr, daddr, version == 4 ? 4 : 16);
+    // Not beyond the expiry of the IP rule which decided, if any, in wall clock time
+    long long now = get_ms();
+    v->expires = now + VERDICT_MAX_AGE;
+    if (expires > 0) {
+        struct timespec ts;
+        clock_gettime(CLOCK_REALTIME, &ts);
+        long long left = expires - (ts.tv_sec * 1000LL + ts.tv_nsec / 1000000);
+        if (left < VERDICT_MAX_AGE)
+            v->expires = now + (left < 0 ? -1 : left);
+    }
+    v->allowed = (uint8_t) (redirect != NULL);
+    if (redirect == NULL)
+        memset(&v->redirect, 0, sizeof(struct allowed));
+    else
+        memcpy(&v->redirect, redirect, sizeof(struct allowed));
+}
+
+struct allowed *get_allowed(const struct arguments *args,
+                            int version, int protocol, const char *flags,
+                            const void *saddr, uint16_t sport,
+                            const void *daddr, uint16_t dport,
+                            jint uid, struct allowed *buffer) {
+    // Decide natively if the rules are known
+    int allowed = check_rules(args->ctx, version, protocol, daddr, dport, uid, buffer);
+    if (allowed < 0) {
+        uint32_t generation = args->ctx->generation;
+        struct verdict *verdict = get_verdict(args->worker, generation,
+                                              version, protocol, daddr, dport, uid);
+        if (verdict == NULL) {
+            // Ask Java, which will log the packet if needed
+            jobject objPacket = create_packet(
+                    args, version, protocol, flags, saddr, sport, daddr, dport, "", uid, 0);
+            long long expires = 0;
+            struct allowed *redirect = is_address_allowed(args, objPacket, buffer, &expires);
+            put_verdict(args->worker, generation, args->ctx->generation,
+                        version, protocol, daddr, dport, uid, redirect, expires);
+            return redirect;
+        }
+
+        allowed = verdict->allowed;
+        memcpy(buffer, &verdict->redirect, sizeof(struct allowed));
+    }
+
+    // Log like ServiceSinkhole.isAddressAllowed would have done
+    if (args->ctx->log && (protocol != IPPROTO_TCP || *flags) && uid != getuid()) {
+        char data[INET6_ADDRSTRLEN + 10];
+        *data = 0;
+        if (allowed && *buffer->raddr != 0 && buffer->rport != 0)
+            sprintf(data, "> %s/%u", buffer->raddr, buffer->rport);
+        log_packet(args, version, protocol, flags, saddr, sport, daddr, dport, data, uid, allowed);
+    }
+
+    return (allowed ? buffer : NULL);
+}